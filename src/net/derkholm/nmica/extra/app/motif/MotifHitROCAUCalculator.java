@@ -9,9 +9,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -24,7 +24,6 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import net.derkholm.nmica.build.NMExtraApp;
-import net.derkholm.nmica.maths.MathsTools;
 import net.derkholm.nmica.model.analysis.MotifROCAUCSummary;
 import net.derkholm.nmica.model.analysis.ScoredHit;
 import net.derkholm.nmica.motif.Motif;
@@ -34,10 +33,17 @@ import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
 import biobits.utils.IOTools;
+import cern.jet.stat.Probability;
 
 @App(overview="Area under an ROC", generateStub=true)
 @NMExtraApp(launchName = "nmrocauc")
 public class MotifHitROCAUCalculator {
+	public static enum AUCTest {
+		PERMUTATION,
+		NORMAL,
+		EXACT
+	}
+	
 	private int bootstraps = 50000;
 	private String target = null;
 	private Set<String> whiteList = null;
@@ -45,6 +51,8 @@ public class MotifHitROCAUCalculator {
 	private boolean evals = false;
 	private boolean evalsRaw = false;
 	private boolean test = false;
+	private boolean exact = false;
+	private AUCTest aucTest = AUCTest.PERMUTATION;
 	private List<ScoredHit> positiveHits;
 	private List<ScoredHit> negativeHits;
 	private HashMap<String,List<ScoredHit>> motifPositiveHitMap = new HashMap<String,List<ScoredHit>>();
@@ -74,6 +82,19 @@ public class MotifHitROCAUCalculator {
 		this.evals = b;
 	}
 	
+	@Option(help="Compute the e-values of -positiveSeqs and -negativeSeqs from the score distributions " +
+			"of the motifs instead of from shuffled sequences (see nmempeval -exact)", optional=true)
+	public void setExact(boolean b) {
+		this.exact = b;
+	}
+	
+	@Option(help="Significance of the AUCs from label permutations (-bootstraps of them), " +
+			"the normal approximation of the rank sum or its exact permutation distribution: " +
+			"permutation|normal|exact (default=permutation)", optional=true)
+	public void setTest(AUCTest test) {
+		this.aucTest = test;
+	}
+	
 	@Option(help="Target motif whose hits to seek (hits to other motifs are ignored)", optional=true)
 	public void setTarget(String s) {
 		this.target = s;
@@ -250,16 +271,18 @@ public class MotifHitROCAUCalculator {
 		return hits;
 	}
 	
+	/* hits of the named motifs grouped by motif in one pass (hits to other motifs are left out) */
 	public HashMap<String,List<ScoredHit>> mapHitsToMotifs(List<ScoredHit> hits, Collection<String> motifNames) {
 		HashMap<String,List<ScoredHit>> map = new HashMap<String, List<ScoredHit>>();
 		
 		for (String motifName : motifNames) {
 			map.put(motifName, new ArrayList<ScoredHit>());
-			for (ScoredHit hit : hits) {
-				if (hit.getMotifName().equals(motifName)) {
-					map.get(motifName).add(hit);
-				}
-			}			
+		}
+		for (ScoredHit hit : hits) {
+			List<ScoredHit> motifHits = map.get(hit.getMotifName());
+			if (motifHits != null) {
+				motifHits.add(hit);
+			}
 		}
 		return map;
 	}
@@ -280,6 +303,7 @@ public class MotifHitROCAUCalculator {
 			eValueCalc.setThreads(threads);
 			eValueCalc.setBootstraps(this.bootstraps);
 			eValueCalc.setCollectHits(true);
+			eValueCalc.setExact(exact);
 			
 			eValueCalc.setMotifs(new FileReader(motifs));
 			
@@ -344,7 +368,7 @@ public class MotifHitROCAUCalculator {
 			l.addAll(motifPositiveHitMap.get(motifName));
 			l.addAll(motifNegativeHitMap.get(motifName));
 			
-			summaryFutures.add(threadPool.submit(new ROCAUCTask(motifName, l, bootstraps, test)));
+			summaryFutures.add(threadPool.submit(new ROCAUCTask(motifName, l, bootstraps, test, aucTest)));
 		}
 		
 		List<MotifROCAUCSummary> summaries = new ArrayList<MotifROCAUCSummary>();
@@ -362,23 +386,38 @@ public class MotifHitROCAUCalculator {
 		threadPool.shutdown();
 	}
 	
+	/*
+	 * AUC from the Mann-Whitney rank sum of the positive hits, ties getting their mid rank
+	 * (a tied positive / negative pair counts as half). Ranks are kept doubled so that they are integers.
+	 * The permutation test draws the positives as a random subset of the ranks by a partial Fisher-Yates
+	 * shuffle of the (min(positives, negatives) first) rank array in place, with an xorshift generator.
+	 */
 	private static class ROCAUCTask implements Callable<MotifROCAUCSummary> {
+		private static final double EXACT_MAX_WORK = 1e8;
+		
 		private String motifName;
 		private int bootstraps;
 		private final List<ScoredHit> hits;
 		private boolean test;
+		private final AUCTest aucTest;
+		private long seed = System.nanoTime() ^ 0x9e3779b97f4a7c15L;
 		
-		public ROCAUCTask(String motifName, List<ScoredHit> hits, int numBootstraps, boolean test) {
+		public ROCAUCTask(String motifName, List<ScoredHit> hits, int numBootstraps, boolean test, AUCTest aucTest) {
 			this.hits = hits;
 			this.motifName = motifName;
 			this.bootstraps = numBootstraps;
 			this.test = test;
+			this.aucTest = aucTest;
 		}
 		
+		private int nextInt(int bound) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			return (int) (((seed >>> 32) * bound) >>> 32);
+		}
 		
 		public MotifROCAUCSummary call() throws Exception {
-			
-			
 			int numTrue = 0, numFalse = 0;
 			for (ScoredHit s : hits) {
 				if (s.isPositive()) {
@@ -387,42 +426,141 @@ public class MotifHitROCAUCalculator {
 					++numFalse;
 				}
 			}
+			if (numTrue == 0 || numFalse == 0) {
+				return new MotifROCAUCSummary(motifName, Double.NaN, 1.0);
+			}
 			
-			Collections.shuffle(hits); // destabilize;
-			Collections.sort(hits, new Comparator<ScoredHit>() {
-				public int compare(ScoredHit arg0, ScoredHit arg1) {
-					return MathsTools.sign(arg1.getScore() - arg0.getScore());
+			double[] trueScores = new double[numTrue], falseScores = new double[numFalse];
+			int t = 0, f = 0;
+			for (ScoredHit s : hits) {
+				if (s.isPositive()) {
+					trueScores[t++] = s.getScore();
+				} else {
+					falseScores[f++] = s.getScore();
 				}
-			});
+			}
+			Arrays.sort(trueScores);
+			Arrays.sort(falseScores);
+			
+			/* doubled mid ranks (1-based, ascending score) of all the hits, positives first */
+			int n = numTrue + numFalse;
+			long[] ranks = new long[n];
+			long trueRankSum = 0;
+			double tieSum = 0.0;
+			int rank = 1;
+			t = 0;
+			f = 0;
+			while (t < numTrue || f < numFalse) {
+				double score = Math.min(
+						t < numTrue ? trueScores[t] : Double.POSITIVE_INFINITY, 
+						f < numFalse ? falseScores[f] : Double.POSITIVE_INFINITY);
+				int tieTrue = 0, tieFalse = 0;
+				while (t + tieTrue < numTrue && trueScores[t + tieTrue] == score) ++tieTrue;
+				while (f + tieFalse < numFalse && falseScores[f + tieFalse] == score) ++tieFalse;
+				int ties = tieTrue + tieFalse;
+				long midRank = 2L * rank + ties - 1;
+				for (int i = 0; i < tieTrue; i++) ranks[t + i] = midRank;
+				for (int i = 0; i < tieFalse; i++) ranks[numTrue + f + i] = midRank;
+				trueRankSum += tieTrue * midRank;
+				tieSum += (double) ties * ties * ties - ties;
+				t += tieTrue;
+				f += tieFalse;
+				rank += ties;
+			}
 			
 			if (test) {
-				Collections.shuffle(hits);
+				trueRankSum = randomRankSum(ranks, numTrue);
 			}
 			
-			double auc = rocAuc2(hits, numTrue, numFalse);
-			int over = 0;
-			for (int b = 0; b < bootstraps; ++b) {
-				Collections.shuffle(hits);
-				if (rocAuc2(hits, numTrue, numFalse) >= auc) {
-					++over;
+			double pairs = (double) numTrue * numFalse;
+			double auc = (trueRankSum / 2.0 - numTrue * (numTrue + 1.0) / 2.0) / pairs;
+			
+			double pValue;
+			if (aucTest == AUCTest.NORMAL) {
+				pValue = normalTail(trueRankSum, numTrue, numFalse, tieSum);
+			} else if (aucTest == AUCTest.EXACT) {
+				pValue = exactTail(ranks, trueRankSum, numTrue, numFalse, tieSum);
+			} else {
+				int over = 0;
+				for (int b = 0; b < bootstraps; ++b) {
+					if (randomRankSum(ranks, numTrue) >= trueRankSum) {
+						++over;
+					}
 				}
+				pValue = (1.0 * over) / bootstraps;
 			}
-			return new MotifROCAUCSummary(motifName, auc, (1.0 * over) / bootstraps);
+			return new MotifROCAUCSummary(motifName, auc, pValue);
 		}
 		
-		private double rocAuc2(Collection<ScoredHit> l, int trues, int falses) {
-			int numTrue = 0;
-			int numFalse = 0;
-			double auc = 0.0;
-			for (ScoredHit sh : l) {
-				if (sh.isPositive()) {
-					++numTrue;
-					auc += (1.0 / trues) * ((1.0 * numFalse) / falses);
-				} else {
-					++numFalse;
+		/* 
+		 * The (doubled) rank sum of a random subset of numTrue hits: the ranks are partially shuffled 
+		 * in place, drawing the smaller of the two classes (the rank sum of the other is the rest).
+		 */
+		private long randomRankSum(long[] ranks, int numTrue) {
+			int n = ranks.length;
+			int k = Math.min(numTrue, n - numTrue);
+			long sum = 0;
+			for (int i = 0; i < k; i++) {
+				int j = i + nextInt(n - i);
+				long tmp = ranks[i];
+				ranks[i] = ranks[j];
+				ranks[j] = tmp;
+				sum += ranks[i];
+			}
+			if (k == numTrue) return sum;
+			return (long) n * (n + 1) - sum;
+		}
+		
+		/* P(rank sum >= the observed) from the normal approximation, with tie and continuity corrections */
+		private static double normalTail(long trueRankSum, int numTrue, int numFalse, double tieSum) {
+			double n = numTrue + numFalse;
+			double mean = numTrue * (n + 1.0) / 2.0;
+			double variance = numTrue * (double) numFalse / 12.0 * ((n + 1.0) - tieSum / (n * (n - 1.0)));
+			if (variance <= 0.0) return 1.0;
+			double z = (trueRankSum / 2.0 - mean - 0.5) / Math.sqrt(variance);
+			return 1.0 - Probability.normal(z);
+		}
+		
+		/*
+		 * P(rank sum >= the observed) from the exact permutation distribution of the (doubled) rank sum 
+		 * of the smaller class, by dynamic programming over the hits: after j hits, dist[k][s] is the 
+		 * probability that a random k-subset of them sums to s. Falls back to the normal approximation
+		 * if that would take too long.
+		 */
+		private double exactTail(long[] ranks, long trueRankSum, int numTrue, int numFalse, double tieSum) {
+			int n = ranks.length;
+			int k = Math.min(numTrue, numFalse);
+			long total = (long) n * (n + 1);
+			int maxSum = (int) Math.min(Integer.MAX_VALUE - 1, 2L * k * n);
+			if ((double) n * k * maxSum > EXACT_MAX_WORK) {
+				System.err.printf("Too many hits for the exact test of %s, using the normal approximation%n", motifName);
+				return normalTail(trueRankSum, numTrue, numFalse, tieSum);
+			}
+			
+			double[][] dist = new double[k + 1][maxSum + 1];
+			dist[0][0] = 1.0;
+			for (int j = 1; j <= n; j++) {
+				int r = (int) ranks[j - 1];
+				for (int c = Math.min(j, k); c >= 1; c--) {
+					double stay = (double) (j - c) / j, take = (double) c / j;
+					double[] to = dist[c], from = dist[c - 1];
+					for (int s = maxSum; s >= 0; s--) {
+						double p = to[s] * stay;
+						if (s >= r) p += from[s - r] * take;
+						to[s] = p;
+					}
 				}
 			}
-			return  1.0 - auc;
+			
+			/* the smaller class is the positives: P(sum >= observed), else P(negatives' sum <= the rest) */
+			double[] sums = dist[k];
+			double p = 0.0;
+			if (k == numTrue) {
+				for (long s = Math.max(0, trueRankSum); s <= maxSum; s++) p += sums[(int) s];
+			} else {
+				for (long s = 0; s <= Math.min(maxSum, total - trueRankSum); s++) p += sums[(int) s];
+			}
+			return Math.min(1.0, p);
 		}
 	}
 	
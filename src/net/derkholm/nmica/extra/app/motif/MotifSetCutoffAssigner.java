@@ -10,16 +10,16 @@ import java.io.FileReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamReader;
 
-import net.derkholm.nmica.apps.MotifScanner;
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.extra.app.seq.WordWeighter;
-import net.derkholm.nmica.model.MotifHitRecord;
+import net.derkholm.nmica.extra.motif.MotifSetScanner;
 import net.derkholm.nmica.model.analysis.ScoredString;
 import net.derkholm.nmica.model.motif.Mosaic;
 import net.derkholm.nmica.model.motif.MosaicIO;
@@ -27,9 +27,12 @@ import net.derkholm.nmica.model.motif.MosaicSequenceBackground;
 import net.derkholm.nmica.motif.Motif;
 import net.derkholm.nmica.motif.MotifIOTools;
 
+import org.biojava.bio.seq.DNATools;
+import org.biojava.bio.seq.Sequence;
 import org.biojava.bio.seq.SequenceIterator;
 import org.biojava.bio.seq.db.HashSequenceDB;
 import org.biojava.bio.seq.io.SeqIOTools;
+import org.biojava.bio.symbol.AlphabetManager;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 import org.bjv2.util.cli.UserLevel;
@@ -52,12 +55,24 @@ public class MotifSetCutoffAssigner {
 	// file
 	private double confidenceThreshold = 0.05;
 	private HashSequenceDB sequences;
-	private Hashtable<Motif, List<MotifHitRecord>> motifHitMap = new Hashtable<Motif, List<MotifHitRecord>>();
+	private Hashtable<Motif, List<ScoredString>> motifHitMap = new Hashtable<Motif, List<ScoredString>>();
 	private Hashtable<Motif, List<ScoredString>> enumSeqMap = new Hashtable<Motif,List<ScoredString>>();
 	private MosaicSequenceBackground backgroundModel;
 	private double defaultThreshold;
 	private int threads;
 	
+	/* a hit in the input sequences, each counted once in the observed histogram */
+	private static class ObservedHit extends ScoredString {
+		public ObservedHit(String seqName, double score) {
+			super(seqName, score);
+		}
+
+		@Override
+		public double hitWeight() {
+			return 1.0;
+		}
+	}
+
 	@Option(help = "Input motifs")
 	public void setMotifs(File motifFile) {
 		this.motifFile = motifFile;
@@ -136,22 +151,26 @@ public class MotifSetCutoffAssigner {
 		}
 
 		System.err.printf("Scanning motifs from against sequences...%n");
-		MotifScanner scanner = new MotifScanner();
-		scanner.setStoreHits(true);
-		scanner.setScoreThreshold(minThreshold);
-		scanner.scan(sequences, motifs);
-		List<MotifHitRecord> hitRecords = scanner.hitRecords();
-		for (Motif m : motifs) {
-			motifHitMap.put(m, new ArrayList<MotifHitRecord>());
-			for (MotifHitRecord rec : hitRecords) {
-				if (rec.getMotif() == m) {
-					motifHitMap.get(m).add(rec);					
-				}
-			}
-			System.err.printf("Number of hits for motif %s:%d%n",m.getName(),motifHitMap.get(m).size());
+		MotifSetScanner scanner = new MotifSetScanner(motifs, AlphabetManager.getAlphabetIndex(DNATools.getDNA()));
+		final List<List<ScoredString>> hits = new ArrayList<List<ScoredString>>();
+		for (int m = 0; m < motifs.length; m++) {
+			hits.add(new ArrayList<ScoredString>());
 		}
+		double[] thresholds = new double[motifs.length];
+		Arrays.fill(thresholds, minThreshold);
 		
-		hitRecords = null;
+		for (SequenceIterator si = sequences.sequenceIterator(); si.hasNext();) {
+			final Sequence seq = si.nextSequence();
+			scanner.hits(scanner.encode(seq), thresholds, new MotifSetScanner.HitHandler() {
+				public void hit(int motif, int pos, boolean reverse, double score) {
+					hits.get(motif).add(new ObservedHit(seq.getName(), score));
+				}
+			});
+		}
+		for (int m = 0; m < motifs.length; m++) {
+			motifHitMap.put(motifs[m], hits.get(m));
+			System.err.printf("Number of hits for motif %s:%d%n",motifs[m].getName(),hits.get(m).size());
+		}
 		scanner = null;
 		
 		System.err.printf(
@@ -175,7 +194,7 @@ public class MotifSetCutoffAssigner {
 		histogramComparitor.setConfidence(confidenceThreshold);
 		
 		for (Motif m : motifs) {
-			List<MotifHitRecord> realHits = motifHitMap.get(m);
+			List<ScoredString> realHits = motifHitMap.get(m);
 			List<ScoredString> expHits = enumSeqMap.get(m);
 			
 			histogramComparitor.setConfidence(confidenceThreshold);
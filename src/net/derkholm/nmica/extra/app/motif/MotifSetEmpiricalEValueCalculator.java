@@ -3,9 +3,9 @@ package net.derkholm.nmica.extra.app.motif;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
@@ -14,39 +14,35 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import net.derkholm.nmica.build.NMExtraApp;
-import net.derkholm.nmica.matrix.Matrix2D;
-import net.derkholm.nmica.matrix.SimpleMatrix2D;
+import net.derkholm.nmica.extra.motif.MotifSetScanner;
+import net.derkholm.nmica.extra.motif.ScoreDistribution;
 import net.derkholm.nmica.model.analysis.ScoredHit;
 import net.derkholm.nmica.motif.Motif;
 import net.derkholm.nmica.motif.MotifIOTools;
-import net.derkholm.nmica.seq.WmTools;
 
-import org.biojava.bio.dist.Distribution;
-import org.biojava.bio.dp.WeightMatrix;
 import org.biojava.bio.seq.DNATools;
 import org.biojava.bio.seq.Sequence;
 import org.biojava.bio.seq.SequenceIterator;
 import org.biojava.bio.seq.io.SeqIOTools;
 import org.biojava.bio.symbol.AlphabetIndex;
 import org.biojava.bio.symbol.AlphabetManager;
-import org.biojava.bio.symbol.AtomicSymbol;
-import org.biojava.bio.symbol.FiniteAlphabet;
-import org.biojava.bio.symbol.Symbol;
-import org.biojava.bio.symbol.SymbolList;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
 //m.getName(), seq.getName(), max, (1.0 * gte) / bootstraps, Math.log10((1.0 * gte) / bootstraps));
-@App(overview="Empirically find E-values for maxPerSeq motif scores.\nOutput:motif seq maxscore e-value log10(e-val)", generateStub=true)
+@App(overview="Empirically find E-values for maxPerSeq motif scores.\nOutput:motif seq maxscore e-value log10(e-val) [shuffles, with -exceedances or -significance]", generateStub=true)
 @NMExtraApp(launchName = "nmempeval")
 public class MotifSetEmpiricalEValueCalculator {
 
-	private static final double LOG_2 = Math.log(2.0);
-	
 	private Motif[] motifs;
 	private File seqs;
 	private int bootstraps = 10000;
 	private double pthresh = 1.0;
+	private boolean exact = false;
+	private int backgroundOrder = 0;
+	private double resolution = ScoreDistribution.DEFAULT_RESOLUTION;
+	private int exceedances = 0;
+	private double significance = 0.0;
 
 	private boolean collectHits;
 
@@ -64,6 +60,45 @@ public class MotifSetEmpiricalEValueCalculator {
 		this.pthresh = d;
 	}
 
+	@Option(help="Stop shuffling a sequence once this many shuffles have scored at least as high as it " +
+			"(Besag-Clifford sequential test, the e-value is then exceedances / shuffles) (default=0, off)", optional=true)
+	public void setExceedances(int i) {
+		this.exceedances = i;
+	}
+	
+	@Option(help="Relative standard error targeted for the e-values of shuffled sequences: " +
+			"sets -exceedances to 1 / precision^2 (e.g. 0.3 for 12 exceedances)", optional=true)
+	public void setPrecision(double d) {
+		this.exceedances = (int) Math.ceil(1.0 / (d * d));
+	}
+	
+	@Option(help="Stop shuffling a sequence once its e-value is below this level with 99.9% confidence, " +
+			"the e-value is then that upper confidence bound (default=0, off)", optional=true)
+	public void setSignificance(double d) {
+		this.significance = d;
+	}
+	
+	@Option(help="Compute the e-values from the score distribution of each motif " +
+			"(by dynamic programming, under a background estimated from the sequences) " +
+			"instead of from shuffled sequences (default=false)", optional=true)
+	public void setExact(boolean b) {
+		this.exact = b;
+	}
+	
+	@Option(help="Order of the background for -exact: 0 (base composition) or 1 (dinucleotides) (default=0)", optional=true)
+	public void setBackgroundOrder(int i) {
+		if (i < 0 || i > 1) {
+			System.err.println("-backgroundOrder needs to be 0 or 1");
+			System.exit(1);
+		}
+		this.backgroundOrder = i;
+	}
+	
+	@Option(help="Resolution of the score distributions of -exact in bits (default=0.01)", optional=true)
+	public void setResolution(double d) {
+		this.resolution = d;
+	}
+
 	@Option(help="Motif set file")
 	public void setMotifs(Reader min) 
 		throws Exception
@@ -112,80 +147,66 @@ public class MotifSetEmpiricalEValueCalculator {
 		this.threads = threads;
 	}
 	
-	private static class EValueTask implements Callable<List<ScoredHit>> {
+	/* the max scores and e-values of one motif in a block of sequences */
+	private static class EValueBlock {
+		final int motifIndex;
+		final int from;
+		final double[] maxScores;
+		final double[] eValues;
+		final int[] shuffles;
+		
+		EValueBlock(int motifIndex, int from, int count) {
+			this.motifIndex = motifIndex;
+			this.from = from;
+			this.maxScores = new double[count];
+			this.eValues = new double[count];
+			this.shuffles = new int[count];
+		}
+	}
+	
+	private static class EValueTask implements Callable<EValueBlock> {
+		/* z for the 99.9% (one sided) confidence bound of -significance */
+		private static final double Z = 3.09;
+		
 		private Random r = new Random();
-		private final Motif motif;
-		private final File seqs;
+		private final int motifIndex;
+		private final byte[][] seqs;
+		private final int from;
+		private final int to;
 		
-		private final AlphabetIndex index;
+		private final MotifSetScanner scanner;
+		private final ScoreDistribution forward;
+		private final ScoreDistribution reverse;
 		private final double pthresh;
-		private final boolean collectHits;
 		private final int bootstraps;
-		private final boolean positiveHits;
+		private final int exceedances;
+		private final double significance;
 		
 		public EValueTask(
-				Motif m,
-				File seqs,
-				AlphabetIndex index, 
+				int motifIndex,
+				byte[][] seqs,
+				int from,
+				int to,
+				MotifSetScanner scanner, 
+				ScoreDistribution forward,
+				ScoreDistribution reverse,
 				double pthresh,
 				int bootstraps,
-				boolean collectHits,
-				boolean positiveHits) {
-			this.motif = m;
+				int exceedances,
+				double significance) {
+			this.motifIndex = motifIndex;
 			this.seqs = seqs;
-			this.index = index;
+			this.from = from;
+			this.to = to;
+			this.scanner = scanner;
+			this.forward = forward;
+			this.reverse = reverse;
 			this.pthresh = pthresh;
-			this.collectHits = collectHits;
 			this.bootstraps = bootstraps;
-			this.positiveHits = positiveHits;
-		}
-		
-		private double maxScore(Scanner s, byte[] sin)
-		throws Exception {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxPos = sin.length - s.length();
-			for (int p = 0; p < maxPos; ++p) {
-				max = Math.max(max, s.score(sin, p, false));
-			}
-			double nm = max - s.getMaxScore();
-			return nm;
+			this.exceedances = exceedances;
+			this.significance = significance;
 		}
 		
-		private byte[] indexSeq(AlphabetIndex index, SymbolList sl)
-		    throws Exception
-		{
-		    Symbol gap = sl.getAlphabet().getGapSymbol();
-		    
-		    byte[] bsl = new byte[sl.length() + 1];
-		    for (int i = 1; i <= sl.length(); ++i) {
-		        Symbol s = sl.symbolAt(i);
-		        if (s == gap) {
-		            bsl[i] = -2;
-		        } else if (s instanceof AtomicSymbol) {
-		            bsl[i] = (byte) index.indexForSymbol(s);
-		        } else {
-		            bsl[i] = -1;
-		        }
-		    }
-		    return bsl;
-		}
-
-	    private Scanner makeScanner(AlphabetIndex index, WeightMatrix wm)
-		throws Exception {
-		    FiniteAlphabet alpha = (FiniteAlphabet) wm.getAlphabet();
-		    Matrix2D bm = new SimpleMatrix2D(alpha.size(), wm.columns());
-		    for (int c = 0; c < wm.columns(); ++c) {
-		        Distribution wmCol = wm.getColumn(c);
-		        
-		        for (Iterator<?> si = alpha.iterator(); si.hasNext(); ) {
-		            Symbol s = (Symbol) si.next();
-		            double baseWeight = wmCol.getWeight(s);
-		            bm.set(index.indexForSymbol(s), c, Math.log(baseWeight) / LOG_2);
-		        }
-		    }
-		    return new Scanner(bm, index, null);
-		}
-	    
 		private void shuffle(byte[] ba) {
 			int len = ba.length;
 			for (int c = len; c > 1; --c) {
@@ -196,101 +217,182 @@ public class MotifSetEmpiricalEValueCalculator {
 			}
 		}
 		
-		private boolean isMaxScoreGreater(Scanner s, byte[] sin, double target)
-		throws Exception {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxPos = sin.length - s.length();
-			for (int p = 0; p < maxPos; ++p) {
-				if(s.score(sin, p, false) - s.getMaxScore() >= target) {
-					return true;
-				}
-			}
-			return false;
+		/* upper Wilson score bound of the e-value after gte of n shuffles scored at least as high */
+		private static double upperBound(int gte, int n) {
+			double p = (1.0 * gte) / n;
+			double z2 = Z * Z;
+			double centre = p + z2 / (2.0 * n);
+			double spread = Z * Math.sqrt(p * (1.0 - p) / n + z2 / (4.0 * n * n));
+			return (centre + spread) / (1.0 + z2 / n);
 		}
-
-		public List<ScoredHit> call() throws Exception {
-			List<ScoredHit> hits = new ArrayList<ScoredHit>();
-			Scanner fScanner = makeScanner(index, motif.getWeightMatrix());
-			Scanner rScanner = makeScanner(index, WmTools.reverseComplement(motif.getWeightMatrix()));
-			for (SequenceIterator si = SeqIOTools.readFastaDNA(new BufferedReader(new FileReader(seqs))); si.hasNext(); ) {
-				Sequence seq = si.nextSequence();
-				byte[] sin = indexSeq(index, seq);
-				
-				double max = Math.max(
-						maxScore(fScanner, sin),
-						maxScore(rScanner, sin)
-				);
-				
-				byte[] rSin = new byte[sin.length];
-				System.arraycopy(sin, 0, rSin, 0, sin.length);
+		
+		public EValueBlock call() throws Exception {
+			EValueBlock block = new EValueBlock(motifIndex, from, to - from);
+			for (int i = from; i < to; i++) {
+				byte[] sin = seqs[i];
 				
-				int gte = 0;
-				int gteThresh = (int) Math.ceil(pthresh * bootstraps);
-				for (int rep = 0; rep < bootstraps && gte < gteThresh; ++rep) {
-					shuffle(rSin);
-					if (isMaxScoreGreater(fScanner, rSin, max) || isMaxScoreGreater(rScanner, rSin, max)) {
-						++gte;
-					}
-				}
+				double max = scanner.maxScore(motifIndex, sin);
 				
-				if (!collectHits) {
-					System.out.printf("%s\t%s\t%g\t%g\t%g%n", 
-							motif.getName(), 
-							seq.getName(), 
-							max, 
-							(1.0 * gte) / bootstraps, 
-							Math.log10((1.0 * gte) / bootstraps));					
+				double eValue;
+				int rep = 0;
+				if (forward != null) {
+					eValue = ScoreDistribution.maxScoreTail(
+							forward, reverse, max, scanner.windowCount(motifIndex, sin));
 				} else {
-					System.err.printf("%s\t%s\t%g\t%g\t%g%n", 
-							motif.getName(), 
-							seq.getName(), 
-							max, 
-							(1.0 * gte) / bootstraps, 
-							Math.log10((1.0 * gte) / bootstraps));	
-					hits.add(
-						new ScoredHit(
-							motif.getName(),
-							seq.getName(),
-							positiveHits,
-							max,
-							(1.0 * gte) / bootstraps));
+					/* the shared sequences are left as they are, a copy is shuffled */
+					byte[] rSin = new byte[sin.length];
+					System.arraycopy(sin, 0, rSin, 0, sin.length);
+					
+					int gte = 0;
+					int gteThresh = (int) Math.ceil(pthresh * bootstraps);
+					if (exceedances > 0) {
+						gteThresh = Math.min(gteThresh, exceedances);
+					}
+					boolean significant = false;
+					double bound = 1.0;
+					while (rep < bootstraps && gte < gteThresh) {
+						shuffle(rSin);
+						++rep;
+						if (scanner.hasHit(motifIndex, rSin, max)) {
+							++gte;
+						} else if (significance > 0.0) {
+							bound = upperBound(gte, rep);
+							if (bound < significance) {
+								significant = true;
+								break;
+							}
+						}
+					}
+					
+					if (significant) {
+						/* the bound that stopped the shuffling, gte is mostly still 0 then */
+						eValue = bound;
+					} else if (exceedances > 0 && gte >= exceedances) {
+						eValue = (1.0 * gte) / rep;
+					} else {
+						eValue = (1.0 * gte) / bootstraps;
+					}
 				}
+				block.maxScores[i - from] = max;
+				block.eValues[i - from] = eValue;
+				block.shuffles[i - from] = rep;
 			}
-			
-			return hits;
+			return block;
 		}
 	}
 	
+	/* 
+	 * The sequences are read and encoded once and shared by all the tasks, 
+	 * one task per motif and block of sequences. The results are written by the calling thread
+	 * as they come in, in the order of the motifs and sequences.
+	 */
 	public void calculate() throws Exception {
-		if (threads > motifs.length) {
-			System.err.println("Specified number of threads is larger than the number of motifs in the input. " +
-					"Will use only " + motifs.length + " threads.");
-		}
-		
 		threadPool = Executors.newFixedThreadPool(threads);
 		
 		AlphabetIndex index = AlphabetManager.getAlphabetIndex(DNATools.getDNA());
+		MotifSetScanner scanner = new MotifSetScanner(motifs, index);
+		
+		List<String> names = new ArrayList<String>();
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		for (SequenceIterator si = SeqIOTools.readFastaDNA(new BufferedReader(new FileReader(seqs))); si.hasNext(); ) {
+			Sequence seq = si.nextSequence();
+			names.add(seq.getName());
+			encoded.add(scanner.encode(seq));
+		}
+		byte[][] seqArray = encoded.toArray(new byte[encoded.size()][]);
+		encoded = null;
+		
+		ScoreDistribution[] forward = new ScoreDistribution[motifs.length];
+		ScoreDistribution[] reverse = new ScoreDistribution[motifs.length];
+		if (exact) {
+			computeScoreDistributions(scanner, seqArray, forward, reverse);
+		}
+		
+		/* enough blocks to keep the threads busy when there are fewer motifs than threads */
+		int blocksPerMotif = (int) Math.ceil((4.0 * threads) / Math.max(1, motifs.length));
+		int blockSize = Math.max(1, (int) Math.ceil((1.0 * seqArray.length) / blocksPerMotif));
 		
-		List<Future<List<ScoredHit>>> scoredHitFutures = new ArrayList<Future<List<ScoredHit>>>();
-		for (Motif m : motifs) {
-			scoredHitFutures.add(threadPool.submit(new EValueTask(
-					m,
-					seqs,
-					index, 
-					pthresh,
-					bootstraps,
-					collectHits,
-					positiveHits)));
+		List<Future<EValueBlock>> futures = new ArrayList<Future<EValueBlock>>();
+		for (int m = 0; m < motifs.length; m++) {
+			for (int from = 0; from < seqArray.length; from += blockSize) {
+				futures.add(threadPool.submit(new EValueTask(
+						m,
+						seqArray,
+						from,
+						Math.min(seqArray.length, from + blockSize),
+						scanner, 
+						forward[m],
+						reverse[m],
+						pthresh,
+						bootstraps,
+						exceedances,
+						significance)));
+			}
 		}
 		
-		if (this.collectHits) {
-			int i = 0;
-			for (Future<List<ScoredHit>> hitList : scoredHitFutures) {
-				this.collectedHits.addAll(hitList.get());
-			}			
+		/* the number of shuffles made is reported when they may stop early */
+		boolean sequential = !exact && (exceedances > 0 || significance > 0.0);
+		long totalShuffles = 0;
+		try {
+			PrintStream out = collectHits ? System.err : System.out;
+			for (Future<EValueBlock> f : futures) {
+				EValueBlock block = f.get();
+				Motif motif = motifs[block.motifIndex];
+				for (int i = 0; i < block.maxScores.length; i++) {
+					String seqName = names.get(block.from + i);
+					out.printf("%s\t%s\t%g\t%g\t%g", 
+							motif.getName(), 
+							seqName, 
+							block.maxScores[i], 
+							block.eValues[i], 
+							Math.log10(block.eValues[i]));
+					if (sequential) {
+						out.printf("\t%d", block.shuffles[i]);
+					}
+					out.println();
+					totalShuffles += block.shuffles[i];
+					if (collectHits) {
+						collectedHits.add(
+							new ScoredHit(
+								motif.getName(),
+								seqName,
+								positiveHits,
+								block.maxScores[i],
+								block.eValues[i]));
+					}
+				}
+			}
+			out.flush();
+			if (sequential) {
+				System.err.printf("Shuffled %.1f times per sequence and motif on average%n", 
+						(1.0 * totalShuffles) / Math.max(1, motifs.length * seqArray.length));
+			}
+		} finally {
+			threadPool.shutdown();
 		}
+	}
+	
+	/* 
+	 * The score distributions of both strands of each motif (computed once per motif)
+	 * under a background estimated from all the sequences.
+	 */
+	private void computeScoreDistributions(
+			MotifSetScanner scanner, 
+			byte[][] seqs,
+			ScoreDistribution[] forward, 
+			ScoreDistribution[] reverse) {
+		ScoreDistribution.BackgroundCounts counts = 
+			new ScoreDistribution.BackgroundCounts(scanner.getAlphabetSize(), backgroundOrder);
+		for (byte[] seq : seqs) {
+			counts.add(seq);
+		}
+		double[] initial = counts.initial();
+		double[][] transition = counts.transition();
 		
-		threadPool.shutdown();
+		for (int m = 0; m < motifs.length; m++) {
+			forward[m] = new ScoreDistribution(scanner, m, false, initial, transition, resolution);
+			reverse[m] = new ScoreDistribution(scanner, m, true, initial, transition, resolution);
+		}
 	}
 	
 	/**
@@ -302,78 +404,4 @@ public class MotifSetEmpiricalEValueCalculator {
 		this.calculate();
 	}
 
-	
-    private static class Scanner {
-        private Matrix2D bm;
-        private AlphabetIndex index;
-        private String name;
-        private double maxScore;
-        private int endPos;
-        
-        public int length() {
-        	return bm.columns();
-        }
-        
-        public int endPos() {
-            return endPos;
-        }
-        
-        Scanner(Matrix2D bm, AlphabetIndex index, String name) 
-            throws Exception
-        {
-            this.bm = bm;
-            this.index = index;
-            this.name = name;
-            this.maxScore = bmMaxScore(bm);
-        }
-        
-        public double getMaxScore() {
-            return maxScore;
-        }
-        
-        public double score(byte[] sl, int pos, boolean gm)
-            throws Exception
-        {
-            return scoreBM(sl, bm, pos, gm);
-        }
-        
-        private  double scoreBM(byte[] sl, Matrix2D bm, int pos, boolean gm)
-                throws Exception
-        {
-            double score = 0.0;
-            int scol = 0;
-            try {
-                for (int col = 0; col < bm.columns(); ++col, ++scol) {
-                    byte s = sl[pos + scol];
-                    while (gm && scol > 0 && s < 0) {
-                        s = sl[pos + ++scol];
-                    }
-                    if (s >= 0) {
-                        score += bm.get(s, col);
-                    } else {
-                        return Double.NEGATIVE_INFINITY;
-                    }
-                }
-            } catch (IndexOutOfBoundsException ex) {
-                return Double.NEGATIVE_INFINITY;
-            }
-            endPos = pos + scol - 1;
-            return score;
-        }
-        
-        
-        private double bmMaxScore(Matrix2D bm)
-                throws Exception
-        {
-            double wmScore = 0.0;
-            for (int c = 0; c < bm.columns(); ++c) {
-                double colScore = Double.NEGATIVE_INFINITY;
-                for (int i = 0; i < bm.rows(); ++i) {
-                    colScore = Math.max(colScore, bm.get(i, c));
-                }
-                wmScore += colScore;
-            }
-            return wmScore;
-        }
-    }
 }
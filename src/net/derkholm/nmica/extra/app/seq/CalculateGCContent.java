@@ -1,29 +1,29 @@
 package net.derkholm.nmica.extra.app.seq;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.app.seq.nextgen.BulkInserter;
+import net.derkholm.nmica.extra.app.seq.nextgen.CountDepths;
 import net.derkholm.nmica.extra.app.seq.nextgen.SAMProcessor;
+import net.derkholm.nmica.extra.seq.FastaByteReader;
+import net.derkholm.nmica.extra.seq.SlidingGCContent;
+import net.derkholm.nmica.extra.seq.nextgen.ZoomTrackWriter;
 
-import org.biojava.bio.BioException;
-import org.biojava.bio.seq.DNATools;
-import org.biojava.bio.seq.Sequence;
-import org.biojava.bio.seq.SequenceIterator;
-import org.biojava.bio.seq.io.SeqIOTools;
-import org.biojava.bio.symbol.Symbol;
-import org.biojava.bio.symbol.SymbolList;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
@@ -32,130 +32,248 @@ import org.bjv2.util.cli.Option;
 @App(overview = "Calculate the GC content of sequence windows", generateStub = true)
 public class CalculateGCContent {
 
+	public static enum Format {
+		TSV,
+		SQLITE,
+		BINARY
+	};
+
 	private File seqsFilename;
 	private int winSize;
+	private int step = -1;
+	private double minInformative = 0.5;
 	private File out;
+	private int[] binSizes;
 
-	@Option(help="Sequence filename")
+	private Format format = Format.SQLITE;
+	private Connection connection;
+	private HashMap<String, Integer> refIds = new HashMap<String, Integer>();
+	private Map<String, Integer> refSeqLengths;
+	private List<String> refSeqNames;
+
+	@Option(help="Sequence filename (multi-FASTA, optionally gzipped)")
 	public void setSeqs(File f) {
 		this.seqsFilename = f;
 
 	}
-	
+
 	@Option(help="Window size")
 	public void setWindowSize(int winSize) {
 		this.winSize = winSize;
 	}
-	
-	@Option(help="Output file")
+
+	@Option(help="Distance between the starts of consecutive windows (default = window size)", optional=true)
+	public void setStep(int step) {
+		this.step = step;
+	}
+
+	@Option(help="Minimum fraction of unambiguous bases in a window for it to be output (default = 0.5)", optional=true)
+	public void setMinInformative(double d) {
+		this.minInformative = d;
+	}
+
+	@Option(help="Output file (TSV is written to stdout if not given)", optional=true)
 	public void setOut(File f) {
 		this.out = f;
 	}
-	
-	private enum Format {
-		TSV,
-		SQLITE
-	};
-	
-	private Format format = Format.SQLITE;
-	private Connection connection;
-	private HashMap<String, Integer> refIds;
-	private Map<String, Integer> refSeqLengths;
-	private List<String> refSeqNames;
-	
+
+	@Option(help="Output format: tsv|sqlite|binary (default = sqlite). " +
+			"The binary format is a zoom track with the GC fraction as the bin mean " +
+			"and the fraction of unambiguous bases as the bin coverage", optional=true)
 	public void setFormat(Format format) {
 		this.format = format;
 	}
-	
-	@Option(help="Reference sequence lengths")
-	public void setRefSeqLengths(File f) {
+
+	@Option(help="Bin sizes of the binary output (default = window size)", optional=true)
+	public void setBinSizes(int[] sizes) {
+		this.binSizes = sizes;
+	}
+
+	@Option(help="Reference sequence lengths (reference ids follow the order of this file, " +
+			"otherwise the order of the sequences)", optional=true)
+	public void setRefSeqLengths(File f) throws Exception {
 		this.refSeqLengths = SAMProcessor.parseRefLengths(f);
 		this.refSeqNames = SAMProcessor.parseRefNamesFromRefLengthFile(f);
 	}
-	
+
 	public static void createGCContentTable(Connection conn) throws SQLException {
 		Statement stat = conn.createStatement();
 		stat.executeUpdate("DROP TABLE if exists gccontent;");
 		stat.executeUpdate(
 			"CREATE TABLE gccontent (" +
-				"id integer primary key autoincrement," +
+				"id integer primary key," +
 				"ref_id integer," +
 				"begin_coord integer," +
 				"end_coord integer," +
-				"gccontent float) ENGINE=InnoDB;");
+				"gccontent float);");
+		stat.close();
+	}
+
+	public static void createGCContentIndex(Connection conn) throws SQLException {
+		Statement stat = conn.createStatement();
 		stat.executeUpdate("CREATE INDEX gc_begin_end ON gccontent(ref_id,begin_coord,end_coord);");
 		stat.close();
 	}
-	
-	private Connection connection() throws SQLException {
+
+	private Connection connection() throws SQLException, ClassNotFoundException {
 		if (this.connection == null) {
-			this.connection = 
+			Class.forName("org.sqlite.JDBC");
+			this.connection =
 				DriverManager.getConnection(
 					String.format(
 						"jdbc:sqlite:%s",
 						this.out.getPath()));
-
-			this.connection.setAutoCommit(true);
+			BulkInserter.tuneConnection(this.connection, CountDepths.Format.SQLITE);
+			this.connection.setAutoCommit(false);
 		}
 		return this.connection;
 	}
-	
-	public void main(String[] args) throws FileNotFoundException, BioException, SQLException, ClassNotFoundException {
-		Class.forName("org.sqlite.JDBC");
-		createGCContentTable(connection());
-		BufferedReader br = new BufferedReader(new FileReader(seqsFilename));
-		SequenceIterator stream = SeqIOTools.readFastaDNA(br);
-		
-		PreparedStatement insertStatement = connection().prepareStatement("INSERT INTO gccontent VALUES (?, ?, ?, ?, ?)");
-		int id = 0;
-		
-		while (stream.hasNext()) {
-			Sequence seq = stream.nextSequence();
-			System.err.printf("Calculating GC content for %s%n");
-
-			int refId = getRefId(seq.getName());
-			
-			int len = seq.length();
-			
-			for (int i = 1; i <= (len-winSize); i++) {
-				SymbolList symList = seq.subList(i, i+winSize);
-				
-				/* ambiguous positions are ignored */
-				int gc = 0;
-				int at = 0;
-				
-			    for (int pos = 1; pos <= winSize; ++pos) {
-					Symbol sym = symList.symbolAt(pos);
-					if (sym.equals(DNATools.g()) || sym.equals(DNATools.c())) {++gc;}
-					else if (sym.equals(DNATools.a()) || sym.equals(DNATools.t())) {++at;}
-			    }
-			    double gcRatio = (double)gc/(double)(gc+at);
-			   
-			    /*
-			    if (!Double.isNaN(gcRatio)) {
-				    insertStatement.setInt(1, id++);
-				    insertStatement.setInt(2, refId);
-				    insertStatement.setInt(3, i);
-				    insertStatement.setInt(4, i+winSize);
-				    insertStatement.setFloat(5, (float) gcRatio);
-				    insertStatement.addBatch();
-				    insertStatement.executeBatch();
-			    }*/
+
+	public void main(String[] args) throws Exception {
+		if (winSize <= 0) {
+			System.err.println("-windowSize needs to be > 0");
+			System.exit(1);
+		}
+		if (step < 0) step = winSize;
+		if (step == 0) {
+			System.err.println("-step needs to be > 0");
+			System.exit(1);
+		}
+		if (out == null && format != Format.TSV) {
+			System.err.println("-out is required with -format " + format.toString().toLowerCase());
+			System.exit(1);
+		}
+		if (refSeqNames != null) {
+			for (String name : refSeqNames) getRefId(name);
+		}
+
+		InputStream in = new FileInputStream(seqsFilename);
+		if (seqsFilename.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		FastaByteReader reader = new FastaByteReader(in);
+
+		WindowOutput output;
+		if (format == Format.SQLITE) {
+			createGCContentTable(connection());
+			output = new SQLOutput(new BulkInserter(
+					connection(), CountDepths.Format.SQLITE, "gccontent", 5, 1000, 100000, false));
+		} else if (format == Format.TSV) {
+			PrintStream ps = out != null ? new PrintStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16))
+										: System.out;
+			output = new TSVOutput(ps);
+		} else {
+			output = null;
+		}
+		ZoomTrackWriter zoomWriter = null;
+		if (format == Format.BINARY) {
+			zoomWriter = new ZoomTrackWriter(out, binSizes != null ? binSizes : new int[] {winSize});
+		}
+
+		while (reader.next()) {
+			final String name = reader.getName();
+			final int len = reader.length();
+			System.err.printf("Calculating GC content for %s (%d bp)%n", name, len);
+
+			if (refSeqLengths != null && refSeqLengths.containsKey(name) && refSeqLengths.get(name) != len) {
+				System.err.printf("WARNING: %s has length %d in the reference lengths file but %d in the sequence file%n",
+						name, refSeqLengths.get(name), len);
+			}
+
+			if (zoomWriter != null) {
+				writeIndicators(zoomWriter.beginReference(name, len), reader.getResidues(), len);
+			} else {
+				final WindowOutput o = output;
+				final int refId = getRefId(name);
+				final int minBases = (int) Math.ceil(minInformative * winSize);
+				SlidingGCContent.slide(reader.getResidues(), len, winSize, step, new SlidingGCContent.Handler() {
+					public void window(int begin, int end, int gc, int at) throws Exception {
+						if (gc + at > 0 && gc + at >= minBases) {
+							o.window(refId, name, begin + 1, end, (double) gc / (gc + at));
+						}
+					}
+				});
 			}
-			
-			break;
 		}
+		in.close();
+
+		if (output != null) output.close();
+		if (zoomWriter != null) zoomWriter.close();
 	}
 
-	public int getRefId(String seqName) {
-		if (this.refIds == null) {
-			this.refIds = new HashMap<String,Integer>();
-			
-			int i = 0;
-			for (String name : this.refSeqNames) {
-				this.refIds.put(name, i++);
+	/* the GC content of each base (1 for G/C, 0 for A/T, ambiguous bases left out) as runs, binned by the zoom track */
+	private void writeIndicators(ZoomTrackWriter.Reference ref, byte[] seq, int len) throws Exception {
+		int runStart = 0;
+		byte runClass = len > 0 ? SlidingGCContent.classOf(seq[0]) : SlidingGCContent.AMBIGUOUS;
+		for (int i = 1; i <= len; i++) {
+			byte c = i < len ? SlidingGCContent.classOf(seq[i]) : -1;
+			if (c != runClass) {
+				if (runClass == SlidingGCContent.GC) {
+					ref.addRun(runStart, i, 1.0);
+				} else if (runClass == SlidingGCContent.AT) {
+					ref.addRun(runStart, i, 0.0);
+				}
+				runStart = i;
+				runClass = c;
 			}
 		}
-		return refIds.get(seqName);
+		ref.end();
+	}
+
+	private static interface WindowOutput {
+		public void window(int refId, String refName, int begin, int end, double gc) throws Exception;
+		public void close() throws Exception;
+	}
+
+	private static class TSVOutput implements WindowOutput {
+		private final PrintStream out;
+
+		public TSVOutput(PrintStream out) {
+			this.out = out;
+		}
+
+		public void window(int refId, String refName, int begin, int end, double gc) {
+			out.printf("%s\t%d\t%d\t%.4f%n", refName, begin, end, gc);
+		}
+
+		public void close() {
+			out.flush();
+			if (out != System.out) out.close();
+		}
+	}
+
+	private class SQLOutput implements WindowOutput {
+		private final BulkInserter inserter;
+		private int id = 1;
+
+		public SQLOutput(BulkInserter inserter) {
+			this.inserter = inserter;
+		}
+
+		public void window(int refId, String refName, int begin, int end, double gc) throws SQLException {
+			inserter.setInt(1, id++);
+			inserter.setInt(2, refId);
+			inserter.setInt(3, begin);
+			inserter.setInt(4, end);
+			inserter.setDouble(5, gc);
+			inserter.endRow();
+		}
+
+		public void close() throws Exception {
+			inserter.close();
+			createGCContentIndex(connection());
+			connection().commit();
+			connection().close();
+		}
+	}
+
+	/* ids follow the reference lengths file, sequences not in it are numbered in the order they are read */
+	public int getRefId(String seqName) {
+		Integer id = refIds.get(seqName);
+		if (id == null) {
+			id = refIds.size();
+			refIds.put(seqName, id);
+		}
+		return id;
 	}
-}
\ No newline at end of file
+}
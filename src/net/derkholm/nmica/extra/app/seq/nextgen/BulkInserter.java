@@ -0,0 +1,246 @@
+package net.derkholm.nmica.extra.app.seq.nextgen;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.derkholm.nmica.extra.app.seq.nextgen.CountDepths.Format;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Buffered inserts of rows into a single table.
+ *
+ * Values of a row are given with the setters (columns numbered from 1) and the row is finished with endRow().
+ * Rows are sent in batches of batchSize and committed every commitInterval rows (and on close()).
+ * MySQL gets multi-row INSERT statements or, optionally, LOAD DATA LOCAL INFILE from a temporary file,
+ * the other databases use JDBC statement batches.
+ */
+public class BulkInserter {
+	public static enum Mode {
+		BATCH,
+		MULTI_ROW,
+		LOAD_INFILE
+	}
+
+	private final Connection connection;
+	private final String table;
+	private final int columns;
+	private final int batchSize;
+	private final int commitInterval;
+	private final Mode mode;
+
+	private PreparedStatement statement;
+	private Object[] values;
+	private int rowsInBatch = 0;
+	private long rowsSinceCommit = 0;
+	private long rows = 0;
+	private long startTime = System.currentTimeMillis();
+
+	private File infile;
+	private Writer infileWriter;
+	private int column = 0;
+
+	public BulkInserter(
+			Connection connection,
+			Format format,
+			String table,
+			int columns,
+			int batchSize,
+			int commitInterval,
+			boolean loadInfile) throws SQLException {
+		this.connection = connection;
+		this.table = table;
+		this.columns = columns;
+		this.batchSize = Math.max(1, batchSize);
+		this.commitInterval = Math.max(this.batchSize, commitInterval);
+
+		if (format == Format.MYSQL) {
+			this.mode = loadInfile ? Mode.LOAD_INFILE : Mode.MULTI_ROW;
+		} else {
+			if (loadInfile) {
+				throw new BioError("LOAD DATA LOCAL INFILE is only supported with MySQL");
+			}
+			this.mode = Mode.BATCH;
+		}
+
+		if (mode == Mode.MULTI_ROW) {
+			this.statement = connection.prepareStatement(insertSQL(this.batchSize));
+			this.values = new Object[this.batchSize * columns];
+		} else if (mode == Mode.BATCH) {
+			this.statement = connection.prepareStatement(insertSQL(1));
+		}
+	}
+
+	/* Turn off fsyncs and the rollback journal for bulk loading SQLite databases */
+	public static void tuneConnection(Connection conn, Format format) throws SQLException {
+		if (format != Format.SQLITE) return;
+
+		boolean autoCommit = conn.getAutoCommit();
+		if (!autoCommit) {
+			conn.commit();
+			conn.setAutoCommit(true);
+		}
+		Statement stat = conn.createStatement();
+		stat.execute("PRAGMA synchronous = OFF;");
+		stat.execute("PRAGMA journal_mode = OFF;");
+		stat.execute("PRAGMA temp_store = MEMORY;");
+		stat.execute("PRAGMA cache_size = 100000;");
+		stat.close();
+		conn.setAutoCommit(autoCommit);
+	}
+
+	private String insertSQL(int rowCount) {
+		StringBuilder row = new StringBuilder("(");
+		for (int c = 0; c < columns; c++) {
+			if (c > 0) row.append(',');
+			row.append('?');
+		}
+		row.append(')');
+
+		StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES ");
+		for (int r = 0; r < rowCount; r++) {
+			if (r > 0) sql.append(',');
+			sql.append(row);
+		}
+		return sql.toString();
+	}
+
+	public void setInt(int col, int value) throws SQLException {
+		if (mode == Mode.LOAD_INFILE) {
+			field(Integer.toString(value));
+		} else if (mode == Mode.MULTI_ROW) {
+			values[rowsInBatch * columns + col - 1] = value;
+		} else {
+			statement.setInt(col, value);
+		}
+	}
+
+	public void setDouble(int col, double value) throws SQLException {
+		if (mode == Mode.LOAD_INFILE) {
+			field(Double.toString(value));
+		} else if (mode == Mode.MULTI_ROW) {
+			values[rowsInBatch * columns + col - 1] = value;
+		} else {
+			statement.setDouble(col, value);
+		}
+	}
+
+	public void setString(int col, String value) throws SQLException {
+		if (mode == Mode.LOAD_INFILE) {
+			field(value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n"));
+		} else if (mode == Mode.MULTI_ROW) {
+			values[rowsInBatch * columns + col - 1] = value;
+		} else {
+			statement.setString(col, value);
+		}
+	}
+
+	public void endRow() throws SQLException {
+		rowsInBatch++;
+		rowsSinceCommit++;
+		rows++;
+
+		if (mode == Mode.LOAD_INFILE) {
+			try {
+				infileWriter.write('\n');
+			} catch (IOException e) {
+				throw new BioError(e);
+			}
+			column = 0;
+		} else if (mode == Mode.BATCH) {
+			statement.addBatch();
+		}
+
+		if (rowsInBatch >= batchSize) {
+			executeBatch();
+		}
+		if (rowsSinceCommit >= commitInterval) {
+			commit();
+		}
+	}
+
+	private void field(String str) {
+		try {
+			if (infileWriter == null) {
+				infile = File.createTempFile(table, ".tsv");
+				infile.deleteOnExit();
+				infileWriter = new BufferedWriter(new FileWriter(infile), 1 << 20);
+			}
+			if (column++ > 0) infileWriter.write('\t');
+			infileWriter.write(str);
+		} catch (IOException e) {
+			throw new BioError(e);
+		}
+	}
+
+	private void executeBatch() throws SQLException {
+		if (rowsInBatch == 0) return;
+
+		if (mode == Mode.BATCH) {
+			statement.executeBatch();
+			statement.clearBatch();
+		} else if (mode == Mode.MULTI_ROW) {
+			/* a partially filled batch (before a commit) needs a statement of its own size */
+			PreparedStatement stat = rowsInBatch == batchSize ? 
+					statement : connection.prepareStatement(insertSQL(rowsInBatch));
+			for (int p = 0, n = rowsInBatch * columns; p < n; p++) {
+				stat.setObject(p + 1, values[p]);
+			}
+			stat.executeUpdate();
+			if (stat != statement) stat.close();
+		}
+		rowsInBatch = 0;
+	}
+
+	private void loadInfile() throws SQLException {
+		if (infileWriter == null) return;
+		try {
+			infileWriter.close();
+		} catch (IOException e) {
+			throw new BioError(e);
+		}
+		infileWriter = null;
+
+		Statement stat = connection.createStatement();
+		stat.execute(String.format(
+				"LOAD DATA LOCAL INFILE '%s' INTO TABLE %s", 
+				infile.getAbsolutePath().replace("\\", "/"), table));
+		stat.close();
+		infile.delete();
+		rowsInBatch = 0;
+	}
+
+	public void commit() throws SQLException {
+		if (mode == Mode.LOAD_INFILE) {
+			loadInfile();
+		} else {
+			executeBatch();
+		}
+		connection.commit();
+		rowsSinceCommit = 0;
+
+		double secs = (System.currentTimeMillis() - startTime) / 1000.0;
+		System.err.printf("%s: %d rows (%.0f rows/s)%n", table, rows, rows / Math.max(secs, 0.001));
+	}
+
+	public void close() throws SQLException {
+		commit();
+		if (statement != null) {
+			statement.close();
+		}
+		if (infile != null) {
+			infile.delete();
+		}
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+}
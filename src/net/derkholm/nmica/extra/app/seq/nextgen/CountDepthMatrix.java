@@ -0,0 +1,142 @@
+package net.derkholm.nmica.extra.app.seq.nextgen;
+
+import java.io.File;
+
+import net.derkholm.nmica.build.NMExtraApp;
+import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.seq.nextgen.DepthMatrixWriter;
+import net.derkholm.nmica.extra.seq.nextgen.DuplicateFilter;
+import net.derkholm.nmica.extra.seq.nextgen.MultiSampleBinner;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+
+import org.bjv2.util.cli.App;
+import org.bjv2.util.cli.Option;
+
+@NMExtraApp(launchName = "ngdepthmatrix", vm = VirtualMachine.SERVER)
+@App(overview = "Count the binned depths of several indexed read files (e.g. the ChIP and input libraries of an experiment) " +
+		"in one pass over each reference sequence, into a single binary matrix of bins x samples. " +
+		"Each sample is normalised by its library size (the reads counted for it).",
+		generateStub = true)
+public class CountDepthMatrix {
+	private File[] maps;
+	private File[] indices;
+	private String[] sampleNames;
+	private File outputFile;
+	private int binSize = 50;
+	private int extendedLength = 0;
+	private int qualityCutoff = 0;
+	private int maxDuplicates = 0;
+	private double normaliseTo = 1000000.0;
+
+	@Option(help="Input reads (BAM formatted, sorted by coordinate and indexed), one file per sample")
+	public void setMaps(File[] f) {
+		this.maps = f;
+	}
+
+	@Option(help="Index files of the inputs, in the same order (default: the input file names with .bai appended)", optional=true)
+	public void setIndices(File[] f) {
+		this.indices = f;
+	}
+
+	@Option(help="Sample names, in the same order as the inputs (default: the input file names)", optional=true)
+	public void setSampleNames(String[] names) {
+		this.sampleNames = names;
+	}
+
+	@Option(help="Output file")
+	public void setOut(File f) {
+		this.outputFile = f;
+	}
+
+	@Option(help="Bin size (default=50)", optional=true)
+	public void setBinSize(int i) {
+		this.binSize = i;
+	}
+
+	@Option(help="Extend reads to the specified fragment length (bound by reference sequence ends)", optional=true)
+	public void setExtendTo(int i) {
+		this.extendedLength = i;
+	}
+
+	@Option(help="Use only reads with at least this mapping quality (default=0)", optional=true)
+	public void setMappingQualityAbove(int i) {
+		this.qualityCutoff = i;
+	}
+
+	@Option(help="Keep at most this many reads with the same 5' position and strand in each sample " +
+			"(default=0, no duplicate filtering)", optional=true)
+	public void setMaxDuplicates(int i) {
+		this.maxDuplicates = i;
+	}
+
+	@Option(help="Depths are scaled to this library size (default=1000000)", optional=true)
+	public void setNormaliseTo(double d) {
+		this.normaliseTo = d;
+	}
+
+	public void main(String[] args) throws Exception {
+		int samples = maps.length;
+		if (indices != null && indices.length != samples) {
+			System.err.println("-indices needs one index file per input");
+			System.exit(1);
+		}
+		if (sampleNames != null && sampleNames.length != samples) {
+			System.err.println("-sampleNames needs one name per input");
+			System.exit(1);
+		}
+		if (binSize < 1) {
+			System.err.println("-binSize needs to be >= 1");
+			System.exit(1);
+		}
+		if (sampleNames == null) {
+			sampleNames = new String[samples];
+			for (int s = 0; s < samples; s++) {
+				sampleNames[s] = maps[s].getName();
+			}
+		}
+
+		SAMFileReader[] readers = new SAMFileReader[samples];
+		DuplicateFilter[] duplicates = maxDuplicates > 0 ? new DuplicateFilter[samples] : null;
+		for (int s = 0; s < samples; s++) {
+			File index = indices != null ? indices[s] : new File(maps[s].getPath() + ".bai");
+			readers[s] = new SAMFileReader(maps[s], index);
+			readers[s].setValidationStringency(ValidationStringency.SILENT);
+			if (duplicates != null) {
+				duplicates[s] = new DuplicateFilter(maxDuplicates);
+			}
+		}
+
+		DepthMatrixWriter writer = new DepthMatrixWriter(outputFile, sampleNames, binSize);
+		MultiSampleBinner binner = new MultiSampleBinner(samples, binSize, extendedLength, qualityCutoff, duplicates);
+
+		/* the reference sequences are those of the first input */
+		SAMFileReader[] refReaders = new SAMFileReader[samples];
+		for (SAMSequenceRecord seq : readers[0].getFileHeader().getSequenceDictionary().getSequences()) {
+			String name = seq.getSequenceName();
+			for (int s = 0; s < samples; s++) {
+				refReaders[s] = readers[s].getFileHeader().getSequence(name) != null ? readers[s] : null;
+				if (refReaders[s] == null) {
+					System.err.printf("WARNING: %s has no reference sequence %s%n", sampleNames[s], name);
+				}
+			}
+
+			System.err.printf("Counting depths for %s%n", name);
+			binner.bin(refReaders, name, seq.getSequenceLength(), writer.beginReference(name, seq.getSequenceLength()));
+		}
+
+		long[] librarySizes = binner.getReadCounts();
+		double[] scales = new double[samples];
+		for (int s = 0; s < samples; s++) {
+			scales[s] = librarySizes[s] > 0 ? normaliseTo / librarySizes[s] : 0.0;
+			System.err.printf("%s: %d reads%n", sampleNames[s], librarySizes[s]);
+		}
+		writer.close(librarySizes, scales);
+
+		for (SAMFileReader reader : readers) {
+			reader.close();
+		}
+		System.err.println("Done.");
+	}
+}
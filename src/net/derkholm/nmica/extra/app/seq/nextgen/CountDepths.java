@@ -1,7 +1,12 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -10,14 +15,19 @@ import java.sql.Statement;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
-import net.derkholm.nmica.extra.seq.nextgen.SAMPileup;
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrackWriter;
+import net.derkholm.nmica.extra.seq.nextgen.LocalBackground;
+import net.derkholm.nmica.extra.seq.nextgen.PoissonTail;
+import net.derkholm.nmica.extra.seq.nextgen.TiledPileup;
+import net.derkholm.nmica.extra.seq.nextgen.ZoomTrackWriter;
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrack.Encoding;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
-import net.sf.samtools.util.CloseableIterator;
 
 import org.biojava.bio.BioError;
 import org.biojava.bio.BioException;
@@ -25,23 +35,27 @@ import org.biojava.utils.JDBCPooledDataSource;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
-import cern.jet.random.Poisson;
-import cern.jet.random.engine.RandomEngine;
-
 @NMExtraApp(launchName = "ngdepth", vm = VirtualMachine.SERVER)
 @App(overview = "Output sequencing depth inside a window.", generateStub = true)
 public class CountDepths extends SAMProcessor {
-	public static enum Format {SQLITE, HSQLDB, MYSQL, TSV}
+	public static enum Format {SQLITE, HSQLDB, MYSQL, TSV, BINARY}
 
 	private Format format = Format.TSV;
-	private int windowIndex;
-	private Map<String, Poisson> nullDistributions = new HashMap<String, Poisson>();
+	/* TSV output of each reference being processed, written out in order by endReference() */
+	private Map<String, ReferenceOutput> outputs = new ConcurrentHashMap<String, ReferenceOutput>();
+	private Map<String, PoissonTail> nullDistributions = new HashMap<String, PoissonTail>();
+	private Map<String, Double> lambdas = new HashMap<String, Double>();
+	private Encoding encoding = Encoding.RLE;
+	private File zoomFile;
+	private int[] zoomBinSizes = ZoomTrackWriter.DEFAULT_BIN_SIZES;
 
 	private File outputFile;
 	private Connection connection;
-	private PreparedStatement insertDepthEntryStatement;
+	private BulkInserter depthInserter;
+	private int batchSize = 1000;
+	private int commitInterval = 100000;
+	private boolean loadInfile = false;
 
-	private RandomEngine randomEngine = RandomEngine.makeDefault();
 	private HashMap<String, Integer> refIds;
 	private List<String> refSeqNames;
 	private PreparedStatement insertRefSeqNameStatement;
@@ -52,6 +66,14 @@ public class CountDepths extends SAMProcessor {
 	private String database;
 	private HashMap<String, Integer> safeStartingPointIds;
 
+	private String controlIn;
+	private File controlIndexFile;
+	private Map<String, Integer> controlReadCounts;
+	private int[] localLambdaWindows = LocalBackground.DEFAULT_WINDOW_SIZES;
+	private File enrichmentFile;
+	private File enrichmentPValueFile;
+	private int memoryBudget = 512;
+
 	@Option(help="Database host")
 	public void setHost(String str) {
 		this.dbHost = str;
@@ -95,6 +117,11 @@ public class CountDepths extends SAMProcessor {
 		this.format = format;
 	}
 
+	@Option(help = "Encoding of the depths in the binary format: fixed|rle (default=rle)", optional=true)
+	public void setEncoding(Encoding encoding) {
+		this.encoding = encoding;
+	}
+
 	@Option(help = "Output file "
 			+ "(will be automatically suffixed with _x where x is LSB job index "
 			+ "if run on LSF as part of a job array)", optional=true)
@@ -125,6 +152,72 @@ public class CountDepths extends SAMProcessor {
 		super.setExtendTo(i);
 	}
 
+	@Option(help = "Rows per insert batch (default=1000)", optional=true)
+	public void setBatchSize(int i) {
+		this.batchSize = i;
+	}
+
+	@Option(help = "Rows per transaction (default=100000)", optional=true)
+	public void setCommitInterval(int i) {
+		this.commitInterval = i;
+	}
+
+	@Option(help = "Load rows into MySQL with LOAD DATA LOCAL INFILE (default=false)", optional=true)
+	public void setLoadInfile(boolean b) {
+		this.loadInfile = b;
+	}
+
+	@Option(help = "Output file for binned depth summaries at several resolutions "
+			+ "(suffixed with _x like -out when run as part of a job array)", optional=true)
+	public void setZoomOut(File f) {
+		if (jobIndex() >= 0) {
+			this.zoomFile = new File(String.format("%s_%d", f.getPath(), this.jobIndex()));
+		} else {
+			this.zoomFile = f;
+		}
+	}
+
+	@Option(help = "Bin sizes of the depth summaries (default=10,100,1000,10000)", optional=true)
+	public void setZoomBinSizes(int[] sizes) {
+		this.zoomBinSizes = sizes;
+	}
+
+	@Option(help = "Control reads (indexed BAM) for the local background of -enrichmentOut and -enrichmentPValueOut", optional=true)
+	public void setControl(String str) {
+		this.controlIn = str;
+	}
+
+	@Option(help = "Index file for the control reads", optional=true)
+	public void setControlIndex(File f) {
+		this.controlIndexFile = f;
+	}
+
+	@Option(help = "Control read counts per reference sequence (for scaling the control to the treatment library size)", optional=true)
+	public void setControlReadCounts(File f) {
+		this.controlReadCounts = SAMProcessor.parseReadCounts(f);
+	}
+
+	@Option(help = "Control window sizes for the local background (default=1000,5000,10000)", optional=true)
+	public void setLocalLambdaWindows(int[] sizes) {
+		this.localLambdaWindows = sizes;
+	}
+
+	@Option(help = "Output file for the fold enrichment over the local background (binary float track, needs -control)", optional=true)
+	public void setEnrichmentOut(File f) {
+		this.enrichmentFile = jobIndex() >= 0 ? new File(String.format("%s_%d", f.getPath(), jobIndex())) : f;
+	}
+
+	@Option(help = "Output file for the -log10 Poisson p-values of the depths given the local background " +
+			"(binary float track, needs -control)", optional=true)
+	public void setEnrichmentPValueOut(File f) {
+		this.enrichmentPValueFile = jobIndex() >= 0 ? new File(String.format("%s_%d", f.getPath(), jobIndex())) : f;
+	}
+
+	@Option(help = "Memory for the depths of a tile of the reference sequence in MB, longer references are done in tiles (default=512)", optional=true)
+	public void setMemoryBudget(int mb) {
+		this.memoryBudget = mb;
+	}
+
 	@Option(help = "Minimum depth (default=1)",optional=true)
 	public void setMinDepth(int i) {
 		this.minDepth = i;
@@ -165,6 +258,7 @@ public class CountDepths extends SAMProcessor {
 			Class.forName("org.sqlite.JDBC");
 			conn =DriverManager.getConnection(String.format(
 						"jdbc:sqlite:%s", outputFile.getPath()), "sa", "");
+			BulkInserter.tuneConnection(conn, format);
 		} else {
 			throw new BioError("Unsupported format for writing to output file: " + outputFile);
 		}
@@ -173,12 +267,18 @@ public class CountDepths extends SAMProcessor {
 		return conn;
 	}
 
-	private PreparedStatement insertDepthEntryStatement() throws Exception {
-		if (this.insertDepthEntryStatement == null) {
-			this.insertDepthEntryStatement = CountDepths
-					.insertDepthEntryStatement(this.connection());
+	private BulkInserter depthInserter() throws Exception {
+		if (this.depthInserter == null) {
+			this.depthInserter = new BulkInserter(
+					this.connection(), 
+					this.format, 
+					"depth", 
+					5, 
+					this.batchSize, 
+					this.commitInterval, 
+					this.loadInfile);
 		}
-		return this.insertDepthEntryStatement;
+		return this.depthInserter;
 	}
 
 	private PreparedStatement insertRefSeqNameStatement() throws Exception {
@@ -215,7 +315,8 @@ public class CountDepths extends SAMProcessor {
 					* (double) this.windowSize;
 
 			System.err.println("lambda:" + lambda);
-			nullDistributions.put(name, new Poisson(lambda, randomEngine));
+			lambdas.put(name, lambda);
+			nullDistributions.put(name, new PoissonTail(lambda));
 		}
 	}
 
@@ -231,9 +332,28 @@ public class CountDepths extends SAMProcessor {
 
 	@Override
 	public void main(String[] args) throws Exception {
+		/* the null distributions depend on the fragment length */
+		estimateFragmentSizeIfRequested();
 		initNullDistributions();
 		
-		this.windowIndex = 0;
+		boolean enrichment = this.enrichmentFile != null || this.enrichmentPValueFile != null;
+		if (enrichment && (this.controlIn == null || this.controlIndexFile == null || this.controlReadCounts == null)) {
+			System.err.println("-enrichmentOut and -enrichmentPValueOut need -control, -controlIndex and -controlReadCounts");
+			System.exit(1);
+		}
+		if (enrichment && this.format == Format.TSV) {
+			System.err.println("-enrichmentOut and -enrichmentPValueOut can't be used with -format tsv");
+			System.exit(1);
+		}
+
+		if (this.format == Format.TSV) {
+			/* window depths straight to stdout, one pass over each reference */
+			initializeSAMReader();
+			setIterationType(IterationType.STREAMING_WINDOW);
+			process();
+			return;
+		}
+		
 		System.err.println("Opening indexed reads...");
 		SAMFileReader reader = new SAMFileReader(new File(in), indexFile);
 		System.err.println("Reads OK.");
@@ -254,50 +374,175 @@ public class CountDepths extends SAMProcessor {
 			}
 		}
 
+		DepthTrackWriter trackWriter = null;
+		if (this.format == Format.BINARY) {
+			trackWriter = new DepthTrackWriter(this.outputFile, this.encoding);
+		}
+		ZoomTrackWriter zoomWriter = null;
+		if (this.zoomFile != null) {
+			zoomWriter = new ZoomTrackWriter(this.zoomFile, this.zoomBinSizes);
+		}
+
+		SAMFileReader controlReader = null;
+		LocalBackground background = null;
+		DepthTrackWriter foldWriter = null, pvalueWriter = null;
+		if (enrichment) {
+			controlReader = new SAMFileReader(new File(this.controlIn), this.controlIndexFile);
+			controlReader.setValidationStringency(ValidationStringency.SILENT);
+			background = new LocalBackground(this.localLambdaWindows, librarySizeRatio());
+			if (this.enrichmentFile != null) {
+				foldWriter = new DepthTrackWriter(this.enrichmentFile, Encoding.FLOAT);
+			}
+			if (this.enrichmentPValueFile != null) {
+				pvalueWriter = new DepthTrackWriter(this.enrichmentPValueFile, Encoding.FLOAT);
+			}
+		}
+
+		/* one tile of treatment depths, plus one of control depths reaching over the lambda windows */
+		int tileSize = TiledPileup.tileSizeFor((long) this.memoryBudget << 20, background != null ? 2 : 1);
+		TiledPileup tiles = new TiledPileup(tileSize);
+		TiledPileup controlTiles = background != null ? new TiledPileup(tileSize + 2 * background.halo()) : null;
+		System.err.printf("Computing pileups in tiles of %d positions%n", tileSize);
+
 		for (String name : this.refSeqLengths.keySet()) {
 			if (chromoName != null &! name.equals(chromoName)) continue;
 
 			System.err.printf("Calculating pileup for %s%n", name);
 			int refId = getRefId(name);
-			Poisson nullDist = this.nullDistributions.get(name);
+			int len = this.refSeqLengths.get(name);
+			PoissonTail nullDist = this.nullDistributions.get(name);
+
+			ZoomTrackWriter.Reference zoomRef = zoomWriter != null ? zoomWriter.beginReference(name, len) : null;
+			DepthTrackWriter.Reference trackRef = trackWriter != null
+				? trackWriter.beginReference(name, this.readCounts.get(name), this.lambdas.get(name), len, nullDist)
+				: null;
+			DepthTrackWriter.ValueBlock folds = foldWriter != null ? foldWriter.reserveValues(name, len) : null;
+			DepthTrackWriter.ValueBlock pvalues = pvalueWriter != null ? pvalueWriter.reserveValues(name, len) : null;
+			BulkInserter ins = trackWriter == null ? this.depthInserter() : null;
+			long duplicateCount = 0;
+
+			for (int from = 0; from < len; from += tileSize) {
+				int to = (int) Math.min(len, (long) from + tileSize);
+
+				int[] depths = tiles.fill(reader, name, len, this.extendedLength, from, to, this.qualityCutoff, duplicateFilter());
+				duplicateCount += tiles.getDuplicateCount();
+
+				if (background != null) {
+					writeEnrichment(name, len, depths, from, to, controlReader, controlTiles, background, folds, pvalues);
+				}
 
-			SAMPileup pileup = new SAMPileup(name,
-					this.refSeqLengths.get(name), this.extendedLength);
+				if (zoomRef != null) {
+					/* only covered positions, so the coverage of a bin is the fraction with depth > 0
+					 * (and mean * coverage the mean depth of the whole bin) */
+					int runStart = 0;
+					for (int i = 1; i <= to - from; i++) {
+						if (i == to - from || depths[i] != depths[runStart]) {
+							if (depths[runStart] > 0) {
+								zoomRef.addRun(from + runStart, from + i, depths[runStart]);
+							}
+							runStart = i;
+						}
+					}
+				}
 
-			CloseableIterator<SAMRecord> recIterator = reader.queryOverlapping(
-					name, 0, this.refSeqLengths.get(name));
-			while (recIterator.hasNext()) {
-				pileup.add(recIterator.next());
-			}
-			recIterator.close();
-
-			System.err.println("Storing pileup data to database...");
-			System.err.println("Iterating through");
-			PreparedStatement ins = this.insertDepthEntryStatement();
-
-			for (int i = 0, len = this.refSeqLengths.get(name); i < len; i=i+this.frequency) {
-				int depth = pileup.depthAt(i);
-
-				if (depth >= this.minDepth) {
-					ins.setInt(1, primaryId++);
-					ins.setInt(2, refId);
-					ins.setInt(3, i+1);
-					ins.setDouble(4, (double) depth);
-					ins.setDouble(5, 1.0 - nullDist.cdf(depth));
-					ins.executeUpdate();
+				if (trackRef != null) {
+					trackRef.add(depths, 0, to - from);
+					continue;
 				}
 
-				if ((i % (len / 100)) == 0) {
-					System.err.printf(".");
+				/* every frequency'th position of the reference */
+				for (int i = (from + this.frequency - 1) / this.frequency * this.frequency; i < to; i = i + this.frequency) {
+					int depth = depths[i - from];
+
+					if (depth >= this.minDepth) {
+						ins.setInt(1, primaryId++);
+						ins.setInt(2, refId);
+						ins.setInt(3, i+1);
+						ins.setDouble(4, (double) depth);
+						ins.setDouble(5, nullDist.pvalue(depth));
+						ins.endRow();
+					}
 				}
+				System.err.printf(".");
+			}
+			System.err.println();
 
+			if (duplicateCount > 0) {
+				System.err.printf("Removed %d duplicate reads%n", duplicateCount);
 			}
+			if (folds != null) folds.finish();
+			if (pvalues != null) pvalues.finish();
+			if (zoomRef != null) zoomRef.end();
+			if (trackRef != null) trackRef.end();
+		}
+		if (trackWriter != null) {
+			trackWriter.close();
+		}
+		if (zoomWriter != null) {
+			zoomWriter.close();
+		}
+		if (foldWriter != null) {
+			foldWriter.close();
+		}
+		if (pvalueWriter != null) {
+			pvalueWriter.close();
+		}
+		if (controlReader != null) {
+			controlReader.close();
+		}
+		if (this.depthInserter != null) {
+			this.depthInserter.close();
 		}
 		System.err.println("Done.");
 
 		this.shutdown();
 	}
 
+	/* treatment / control library size */
+	private double librarySizeRatio() {
+		long treatment = 0, control = 0;
+		for (String name : this.refSeqLengths.keySet()) {
+			if (this.readCounts.containsKey(name)) treatment += this.readCounts.get(name);
+			if (this.controlReadCounts.containsKey(name)) control += this.controlReadCounts.get(name);
+		}
+		if (control == 0) {
+			throw new BioError("No control reads in -controlReadCounts");
+		}
+		System.err.printf("Treatment / control library size: %d / %d%n", treatment, control);
+		return (double) treatment / (double) control;
+	}
+
+	/*
+	 * Fold enrichment and p-values of the treatment depths of [from, to) over the local background
+	 * from the control depths (reads extended the same way) around them.
+	 * The reference-wide expected depth is the floor of the local lambda.
+	 */
+	private void writeEnrichment(
+			String name,
+			int len,
+			int[] depths,
+			int from,
+			int to,
+			SAMFileReader controlReader,
+			TiledPileup controlTiles,
+			LocalBackground background,
+			final DepthTrackWriter.ValueBlock folds,
+			final DepthTrackWriter.ValueBlock pvalues) throws Exception {
+		int controlFrom = Math.max(0, from - background.halo());
+		int controlTo = Math.min(len, to + background.halo());
+		int[] control = controlTiles.fill(
+				controlReader, name, len, this.extendedLength,
+				controlFrom, controlTo, this.qualityCutoff, duplicateFilter());
+		double minLambda = (double) this.readCounts.get(name) * this.extendedLength / len;
+
+		background.walk(depths, control, controlFrom, from, to, len, minLambda, new LocalBackground.Handler() {
+			public void position(int pos, int depth, double lambda, double fold, double minusLog10P) {
+				if (folds != null) folds.set(pos, (float) fold);
+				if (pvalues != null) pvalues.set(pos, (float) minusLog10P);
+			}
+		});
+	}
+
 	public static void createDepthTable(Connection conn, boolean dropTable) throws SQLException {
 		Statement stat = conn.createStatement();
 
@@ -328,23 +573,78 @@ public class CountDepths extends SAMProcessor {
 		stat.close();
 	}
 
+	/*
+	 * The TSV lines of a reference: straight to stdout with one thread, otherwise spooled to
+	 * a temporary file that endReference() copies to stdout once the earlier references are out.
+	 */
+	private static class ReferenceOutput {
+		private final File spool;
+		private final PrintStream out;
+		private int windowIndex = 0;
+
+		ReferenceOutput(boolean spooled) throws IOException {
+			if (spooled) {
+				this.spool = File.createTempFile("ngdepth", ".tsv");
+				this.spool.deleteOnExit();
+				this.out = new PrintStream(new BufferedOutputStream(new FileOutputStream(spool), 1 << 16));
+			} else {
+				this.spool = null;
+				this.out = System.out;
+			}
+		}
+
+		void end() throws IOException {
+			out.flush();
+			if (spool == null) return;
+			out.close();
+			InputStream in = new FileInputStream(spool);
+			try {
+				byte[] buf = new byte[1 << 16];
+				for (int n; (n = in.read(buf)) > 0;) {
+					System.out.write(buf, 0, n);
+				}
+				System.out.flush();
+			} finally {
+				in.close();
+				spool.delete();
+			}
+		}
+	}
+
+	/* called from one thread at a time for any given reference, the windows are numbered per reference */
 	@Override
 	public void process(final List<SAMRecord> recs, String refName, int begin,
 			int end, int seqLength) {
-		double avg = 0.0;
+		ReferenceOutput out = this.outputs.get(refName);
+		if (out == null) {
+			try {
+				out = new ReferenceOutput(this.threads > 1);
+			} catch (IOException e) {
+				throw new BioError(e);
+			}
+			this.outputs.put(refName, out);
+		}
 		int depth = recs.size();
-		double pvalue = 1.0 - this.nullDistributions.get(refName).cdf(depth);
 
-		if (depth > 0) {
-			if (format == Format.TSV) {
-				System.out.printf("%s\t%d\t%d\t%d\t%d\t%.8f%n", refName,
-						this.windowIndex, begin, end, depth, pvalue);
-			} else {
+		if (depth > 0 && format == Format.TSV) {
+			double pvalue = this.nullDistributions.get(refName).pvalue(depth);
+			out.out.printf("%s\t%d\t%d\t%d\t%d\t%.8f%n", refName,
+					out.windowIndex, begin, end, depth, pvalue);
+		}
 
+		out.windowIndex++;
+	}
+
+	@Override
+	protected void endReference(String refName) {
+		ReferenceOutput out = this.outputs.remove(refName);
+		if (out != null) {
+			try {
+				out.end();
+			} catch (IOException e) {
+				throw new BioError(e);
 			}
 		}
-
-		this.windowIndex++;
 	}
 
 	public int getRefId(String seqName) throws Exception {
@@ -1,69 +1,192 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
-import net.sf.samtools.SAMRecord;
-import net.sf.samtools.util.CloseableIterator;
+import net.derkholm.nmica.extra.seq.nextgen.BAMIndexStatistics;
+import net.derkholm.nmica.extra.seq.nextgen.DuplicateFilter;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.util.BlockCompressedInputStream;
 
 import org.biojava.bio.BioException;
 import org.bjv2.util.cli.App;
+import org.bjv2.util.cli.Option;
 
 
 
 @NMExtraApp(launchName = "ngcount", vm = VirtualMachine.SERVER)
 @App(overview = "Output the number of reads mapped to each of the reference sequences.", generateStub = true)
 public class CountReads extends SAMProcessor {
-	
+	private static final int FLAG_UNMAPPED = 0x4;
+	private static final int FLAG_REVERSE = 0x10;
+
 	private String[] names;
-	private int[] readCounts;
-	private int currentRefSeqIndex;
-	
-	public void main(String[] args) throws BioException {
+	private Map<String, Integer> refIndices = new HashMap<String, Integer>();
+	private long[] readCounts;
+
+	@Override
+	@Option(help="Count only reads with at least this mapping quality (default=0)", optional=true)
+	public void setMappingQualityAbove(int quality) {
+		super.setMappingQualityAbove(quality);
+	}
+
+	public void main(String[] args) throws BioException, IOException {
 		setIterationType(IterationType.MAPPED_TO_REF);
 		setQueryType(QueryType.OVERLAP);
 
-		this.names = (String[]) 
+		this.names = (String[])
 			this.refSeqLengths.keySet().toArray(
 				new String[this.refSeqLengths.keySet().size()]);
-		this.readCounts = new int[names.length];
-		
+		this.readCounts = new long[names.length];
+
 		initializeSAMReader();
-		
-		process();
-		
-		for (String seqName : this.names) {
+
+		SAMSequenceDictionary dict = inReader.getFileHeader().getSequenceDictionary();
+		for (String name : this.names) {
+			refIndices.put(name, dict.getSequenceIndex(name));
+		}
+		inReader.close();
+
+		BAMIndexStatistics stats = BAMIndexStatistics.read(this.indexFile);
+		if (this.qualityCutoff <= 0 && this.maxDuplicates <= 0 && hasMetaData(stats)) {
+			/* mapped read counts straight from the index, no reads decoded */
 			for (int i = 0; i < this.names.length; i++) {
-				if (this.names[i].equals(seqName)) {
-					System.out.printf("%s\t%d%n",seqName, this.readCounts[i]);
-					continue;
+				int ref = refIndices.get(this.names[i]);
+				this.readCounts[i] = ref >= 0 ? stats.getMappedCount(ref) : 0;
+			}
+		} else {
+			countByDecoding(stats);
+		}
+
+		for (int i = 0; i < this.names.length; i++) {
+			System.out.printf("%s\t%d%n", this.names[i], this.readCounts[i]);
+		}
+	}
+
+	private boolean hasMetaData(BAMIndexStatistics stats) {
+		for (String name : this.names) {
+			int ref = refIndices.get(name);
+			if (ref >= 0 && ref < stats.getRefCount() && !stats.hasMetaData(ref)) {
+				System.err.printf("No read counts for %s in the index, counting reads from the BAM file%n", name);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* one task per reference sequence, each with its own stream into the BAM file */
+	private void countByDecoding(final BAMIndexStatistics stats) throws BioException {
+		ExecutorService threadPool = Executors.newFixedThreadPool(this.threads);
+
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (final String name : this.names) {
+			futures.add(threadPool.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					int ref = refIndices.get(name);
+					if (ref < 0 || ref >= stats.getRefCount() || stats.getFirstOffset(ref) < 0) {
+						return 0L;
+					}
+					System.err.printf("Counting reads mapped to %s%n", name);
+					return countReads(ref, stats.getFirstOffset(ref));
 				}
+			}));
+		}
+
+		try {
+			for (int i = 0; i < this.names.length; i++) {
+				this.readCounts[i] = futures.get(i).get();
 			}
+		} catch (InterruptedException e) {
+			throw new BioException(e);
+		} catch (ExecutionException e) {
+			throw new BioException(e.getCause());
+		} finally {
+			threadPool.shutdown();
 		}
 	}
-	
-	@Override
-	protected void setCurrentRefSeqName(String seqName) {
-		for (int i = 0; i < this.names.length; i++) {
-			if (this.names[i].equals(seqName)) {
-				this.currentRefSeqIndex = i;
-				return;
+
+	/*
+	 * Reads the fixed length part of the BAM records of a reference sequence
+	 * (refID, pos, bin/mapq/name length, flag/cigar length) and skips the rest,
+	 * so no SAMRecords are created. With duplicate filtering the cigar is read 
+	 * as well for the 5' end of reads on the negative strand.
+	 */
+	private long countReads(int ref, long firstOffset) throws IOException {
+		BlockCompressedInputStream bam = new BlockCompressedInputStream(new File(in));
+		try {
+			bam.seek(firstOffset);
+
+			byte[] buf = new byte[1024];
+			long count = 0;
+			DuplicateFilter duplicates = duplicateFilter();
+			while (readFully(bam, buf, 4)) {
+				int blockSize = intAt(buf, 0);
+				if (blockSize > buf.length) {
+					buf = new byte[Math.max(blockSize, buf.length * 2)];
+				}
+				if (!readFully(bam, buf, blockSize)) break;
+
+				if (intAt(buf, 0) != ref) break;
+
+				int mapq = (intAt(buf, 8) >>> 8) & 0xff;
+				int flag = intAt(buf, 12) >>> 16;
+				if ((flag & FLAG_UNMAPPED) != 0 || mapq < this.qualityCutoff) continue;
+				
+				if (duplicates != null) {
+					int start = intAt(buf, 4) + 1;
+					boolean negative = (flag & FLAG_REVERSE) != 0;
+					int fivePrime = negative ? start + referenceSpan(buf) - 1 : start;
+					if (!duplicates.accept(ref, start, fivePrime, negative)) continue;
+				}
+				count++;
 			}
+			return count;
+		} finally {
+			bam.close();
 		}
-		throw new IllegalStateException("Did not find an index for the reference sequence");
 	}
-	
-	public void processAndClose(
-			CloseableIterator<SAMRecord> recs, 
-			String refName, 
-			int len) {
-		while (recs.hasNext()) {
-			SAMRecord r = recs.next();
-			if (r.getMappingQuality() < this.qualityCutoff) continue;
-			this.readCounts[this.currentRefSeqIndex] += 1;
+
+	/* number of reference bases covered by the cigar operations (M, D, N, =, X) */
+	private static int referenceSpan(byte[] buf) {
+		int nameLength = intAt(buf, 8) & 0xff;
+		int cigarOps = intAt(buf, 12) & 0xffff;
+		int span = 0;
+		for (int i = 0; i < cigarOps; i++) {
+			int op = intAt(buf, 32 + nameLength + 4 * i);
+			switch (op & 0xf) {
+			case 0: case 2: case 3: case 7: case 8:
+				span += op >>> 4;
+			}
 		}
-		recs.close();
+		return Math.max(1, span);
+	}
+
+	private static boolean readFully(InputStream in, byte[] buf, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(buf, off, len - off);
+			if (n < 0) return false;
+			off += n;
+		}
+		return true;
+	}
+
+	private static int intAt(byte[] buf, int off) {
+		return (buf[off] & 0xff)
+			| ((buf[off + 1] & 0xff) << 8)
+			| ((buf[off + 2] & 0xff) << 16)
+			| ((buf[off + 3] & 0xff) << 24);
 	}
 }
@@ -38,6 +38,8 @@ public class CreateDepthDatabase {
 	private Map<String, Integer> refLengths;
 	private HashMap<String, Integer> refIds;
 	private Map<String, Integer> readCounts;
+	private int batchSize = 1000;
+	private int commitInterval = 100000;
 
 	@Option(help="Database host")
 	public void setHost(String str) {
@@ -80,6 +82,16 @@ public class CreateDepthDatabase {
 	}
 
 
+	@Option(help = "Rows per insert batch (default=1000)", optional=true)
+	public void setBatchSize(int i) {
+		this.batchSize = i;
+	}
+
+	@Option(help = "Rows per transaction (default=100000)", optional=true)
+	public void setCommitInterval(int i) {
+		this.commitInterval = i;
+	}
+
 	@Option(help = "Reference sequence lengths")
 	public void setRefLengths(File f) throws BioException, IOException {
 		try {
@@ -155,25 +167,23 @@ public class CreateDepthDatabase {
 
 		int i = 0;
 
-		PreparedStatement stat;
+		BulkInserter ins;
 		try {
-			stat = CountDepths.insertRefSeqNameStatement(this.connection());
+			ins = new BulkInserter(this.connection(), this.format, "ref_seq", 3, this.batchSize, this.commitInterval, false);
 
 			for (String name : this.refSeqNames) {
 				this.refIds.put(name, i);
-				stat.setInt(1, i);
-				stat.setString(2, name);
+				ins.setInt(1, i);
+				ins.setString(2, name);
 				if (this.readCounts == null) {
-					stat.setDouble(3, 0);
+					ins.setDouble(3, 0);
 				} else {
-					stat.setDouble(3, (double)this.readCounts.get(name));					
+					ins.setDouble(3, (double)this.readCounts.get(name));					
 				}
-				stat.addBatch();
-				stat.executeBatch();
-				stat.clearBatch();
-				connection().commit();
+				ins.endRow();
 				i++;
 			}
+			ins.close();
 		} catch (SQLException e) {
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
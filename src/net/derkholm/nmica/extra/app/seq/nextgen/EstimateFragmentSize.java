@@ -0,0 +1,88 @@
+package net.derkholm.nmica.extra.app.seq.nextgen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+import net.derkholm.nmica.build.NMExtraApp;
+import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.seq.nextgen.FragmentSizeEstimator;
+
+import org.biojava.bio.BioException;
+import org.bjv2.util.cli.App;
+import org.bjv2.util.cli.Option;
+
+@NMExtraApp(launchName = "ngfragsize", vm = VirtualMachine.SERVER)
+@App(overview = "Estimate the fragment length of single end reads from the cross-correlation " +
+		"of the read 5' ends on the two strands. " +
+		"The estimate is output to stdout (the same estimate is made by the -estimateFragmentSize option of the read processing tools).",
+		generateStub = true)
+public class EstimateFragmentSize {
+	private File in;
+	private int minLength = FragmentSizeEstimator.DEFAULT_MIN_LENGTH;
+	private int maxLength = FragmentSizeEstimator.DEFAULT_MAX_LENGTH;
+	private int qualityCutoff = 0;
+	private int threads = 1;
+	private File profileFile;
+
+	@Option(help="Input reads (SAM/BAM formatted)")
+	public void setMap(File f) {
+		this.in = f;
+	}
+
+	@Option(help="Smallest fragment length considered (default=50)", optional=true)
+	public void setMinFragmentSize(int i) {
+		this.minLength = i;
+	}
+
+	@Option(help="Largest fragment length considered (default=500)", optional=true)
+	public void setMaxFragmentSize(int i) {
+		this.maxLength = i;
+	}
+
+	@Option(help="Use only reads with at least this mapping quality (default=0)", optional=true)
+	public void setMappingQualityAbove(int i) {
+		this.qualityCutoff = i;
+	}
+
+	@Option(help="Number of threads for the cross-correlation (default = 1). " +
+			"Reference sequences are correlated in parallel.", optional=true)
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			System.err.println("-threads needs to be >= 1");
+			System.exit(1);
+		}
+		this.threads = threads;
+	}
+
+	@Option(help="Output file for the cross-correlation at each fragment length (TSV)", optional=true)
+	public void setProfile(File f) {
+		this.profileFile = f;
+	}
+
+	public void main(String[] args) throws BioException, Exception {
+		if (minLength < 1 || maxLength < minLength) {
+			System.err.println("-minFragmentSize needs to be >= 1 and <= -maxFragmentSize");
+			System.exit(1);
+		}
+
+		FragmentSizeEstimator estimator = FragmentSizeEstimator.fromReads(in, minLength, maxLength, qualityCutoff);
+		double[] corr = estimator.crossCorrelation(threads);
+
+		if (profileFile != null) {
+			PrintStream out = new PrintStream(new FileOutputStream(profileFile));
+			for (int i = 0; i < corr.length; i++) {
+				out.printf("%d\t%g%n", minLength + i, corr[i]);
+			}
+			out.close();
+		}
+
+		int estimate = estimator.estimate(threads);
+		if (estimate == minLength || estimate == maxLength) {
+			System.err.printf(
+				"WARNING: the cross-correlation is highest at the end of the fragment length range (%d), " +
+				"consider widening it%n", estimate);
+		}
+		System.out.println(estimate);
+	}
+}
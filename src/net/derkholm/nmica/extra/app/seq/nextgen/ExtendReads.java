@@ -1,47 +1,111 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.seq.nextgen.ReadFragment;
 import net.sf.samtools.Cigar;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMRecord;
 
+import org.biojava.bio.BioError;
 import org.biojava.bio.BioException;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
 @NMExtraApp(launchName = "ngextend", vm = VirtualMachine.SERVER)
 @App(overview = "Extend reads by specified number of nucleotides. " +
-		"Note that the output simply moves the read start along the reference " +
+		"The extended reads are output as BED intervals by default. " +
+		"With -format sam the output simply moves the read start along the reference " +
 		"and adds elements to the cigar string. " +
 		"That is, the sequence read itself is not changed and each of the SAM records is in fact " +
 		"invalid.", generateStub = true)
 public class ExtendReads extends FilteringSAMProcessor {
+	public static enum Format {BED, SAM}
+	
 	private int extraCigarLength;
+	private Format format = Format.BED;
+	private Writer bedWriter;
+	private String fragmentRefName;
+	private ReadFragment fragment;
 	
-	@Option(help="Extend reads by specified number of nucleotides (bound by reference sequence ends)")
+	@Option(help="Extend reads by specified number of nucleotides (bound by reference sequence ends). " +
+			"Reads are extended to the fragment length instead if -extendTo or -estimateFragmentSize is given", optional=true)
 	public void setExtendBy(int i) {
 		this.extraCigarLength = i;
 	}
 	
-	public void main(String[] args) throws BioException {
+	@Option(help="Output format: bed|sam (default=bed)", optional=true)
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+	
+	public void main(String[] args) throws BioException, IOException {
 		setIterationType(IterationType.ONE_BY_ONE);
 		initializeSAMReader();
-		initializeSAMWriter(this.sorted);
+		if (extendedLength <= 0 && extraCigarLength <= 0) {
+			System.err.println("Either -extendBy, -extendTo or -estimateFragmentSize needs to be given");
+			System.exit(1);
+		}
+		if (format == Format.SAM) {
+			initializeSAMWriter(this.sorted);
+		} else if (outString.equals("-")) {
+			bedWriter = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+		} else {
+			bedWriter = new BufferedWriter(new FileWriter(outString), 1 << 16);
+		}
 		
 		process();
-		outWriter.close();
+		if (format == Format.SAM) {
+			outWriter.close();
+		} else {
+			bedWriter.close();
+		}
 	}
 		
 	@Override
 	public void process(SAMRecord rec, int readIndex) {
-		ExtendReads.extendReadBy(rec, this.refSeqLengths, this.extraCigarLength);
-		outWriter.addAlignment(rec);
+		if (format == Format.SAM) {
+			int extendBy = extendedLength > 0 ? 
+					Math.max(0, extendedLength - rec.getReadLength()) : this.extraCigarLength;
+			ExtendReads.extendReadBy(rec, this.refSeqLengths, extendBy);
+			outWriter.addAlignment(rec);
+			return;
+		}
+		
+		/* one view per reference sequence, the record itself is left untouched */
+		String refName = rec.getReferenceName();
+		if (!refName.equals(fragmentRefName)) {
+			fragmentRefName = refName;
+			fragment = extendedLength > 0 ? 
+					ReadFragment.extendedTo(extendedLength, refSeqLengths.get(refName)) :
+					ReadFragment.extendedBy(extraCigarLength, refSeqLengths.get(refName));
+		}
+		try {
+			bedWriter.write(refName);
+			bedWriter.write('\t');
+			bedWriter.write(Integer.toString(fragment.bedStart(rec)));
+			bedWriter.write('\t');
+			bedWriter.write(Integer.toString(fragment.bedEnd(rec)));
+			bedWriter.write('\t');
+			bedWriter.write(rec.getReadName());
+			bedWriter.write('\t');
+			bedWriter.write(Integer.toString(rec.getMappingQuality()));
+			bedWriter.write('\t');
+			bedWriter.write(rec.getReadNegativeStrandFlag() ? '-' : '+');
+			bedWriter.write('\n');
+		} catch (IOException e) {
+			throw new BioError(e);
+		}
 	}
 	
 	public static void extendReadBy(SAMRecord rec, Map<String,Integer> refSeqLengths, int extraCigarLength) {
@@ -32,7 +32,8 @@ public class FilterByMappingQuality extends FilteringSAMProcessor {
 	
 	public void main(String[] args) throws FileNotFoundException, BioException {
 		initializeSAMReader();
-		initializeSAMWriter(false);
+		/* filtering keeps the order of the input */
+		initializeSAMWriter(true);
 		process();
 		
 		outWriter.close();
@@ -1,6 +1,9 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
 import java.io.File;
+import java.io.IOException;
+
+import net.derkholm.nmica.extra.seq.nextgen.ParallelBAMWriter;
 
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
@@ -11,7 +14,7 @@ import org.bjv2.util.cli.Option;
 
 abstract public class FilteringSAMProcessor extends SAMProcessor {
 	protected File outFile = null;
-	private String outString = "-";
+	protected String outString = "-";
 	protected SAMFileWriter outWriter;
 	protected boolean sorted = false;
 
@@ -25,19 +28,27 @@ abstract public class FilteringSAMProcessor extends SAMProcessor {
 		this.sorted  = b;
 	}
 	
+	/* 
+	 * With -ioThreads > 1 BAM output is compressed in parallel if the records are added presorted,
+	 * as that writer keeps them in the order they are added instead of sorting them.
+	 */
 	public void initializeSAMWriter(boolean presorted) {
 		SAMFileWriterFactory factory = new SAMFileWriterFactory();
-		SAMFileHeader samHeader = new SAMFileHeader();
-		
-		if (inReader == null) {
-			throw new BioError("Internal error: SAM reader needs to be initialised before the SAM writer");
-		}
+		SAMFileHeader header = getInputHeader();
 		
 		if (this.outString.equals("-")) {
-			this.outWriter = factory.makeSAMWriter(inReader.getFileHeader(), presorted, System.out);
+			this.outWriter = factory.makeSAMWriter(header, presorted, System.out);
 		} else {
 			this.outFile = new File(outString);
-			this.outWriter = factory.makeSAMOrBAMWriter(inReader.getFileHeader(), presorted, this.outFile);
+			if (presorted && ioThreads > 1 && outString.endsWith(".bam")) {
+				try {
+					this.outWriter = new ParallelBAMWriter(header, this.outFile, ioThreads);
+				} catch (IOException e) {
+					throw new BioError(e);
+				}
+			} else {
+				this.outWriter = factory.makeSAMOrBAMWriter(header, presorted, this.outFile);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -1,18 +1,26 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.app.seq.nextgen.CountDepths.Format;
 import net.derkholm.nmica.extra.peak.Peak;
-import net.derkholm.nmica.extra.peak.Window;
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrack;
+import net.derkholm.nmica.extra.seq.nextgen.PoissonTail;
 
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
@@ -21,27 +29,31 @@ import org.bjv2.util.cli.Option;
 @NMExtraApp(launchName = "ngpeaks", vm = VirtualMachine.SERVER)
 @App(overview = "Call peaks from sequencing depth data.", generateStub = true)
 public class PeakCaller {
-	
+
 	private Connection depthConnection;
 	private Connection controlDepthConnection;
 	private File depthFile;
 	private File controlDepthFile;
-	private Map<String, Integer> readCounts;
 	private Map<String, Integer> refSeqLengths;
+	private List<String> refSeqNames;
 	private double pvalue = 1e-6;
 	private double fdr = 0.1;
+	private int maxGap = 0;
 	private Connection connection;
 	private File outputFile;
-	private PreparedStatement depthAtPositionStatement;
-	private PreparedStatement controlDepthAtPositionStatement;
-	private Peak peak;
+	private DepthTrack depthTrack;
+	private DepthTrack controlDepthTrack;
 
-	@Option(help="Sequencing depths")
-	public void setDepths(File f) throws ClassNotFoundException, SQLException {
-		Class.forName("org.sqlite.JDBC");
+	@Option(help="Sequencing depths (SQLite database or binary depth track)")
+	public void setDepths(File f) throws ClassNotFoundException, SQLException, IOException {
 		this.depthFile = f;
+		if (DepthTrack.isDepthTrack(f)) {
+			this.depthTrack = DepthTrack.open(f);
+			return;
+		}
+		Class.forName("org.sqlite.JDBC");
 		if (this.depthConnection == null) {
-			this.depthConnection = 
+			this.depthConnection =
 				DriverManager.getConnection(
 					String.format(
 						"jdbc:sqlite:%s",
@@ -50,13 +62,17 @@ public class PeakCaller {
 			this.depthConnection.setAutoCommit(true);
 		}
 	}
-	
-	@Option(help="Control sequencing depths")
-	public void setControlDepths(File f) throws ClassNotFoundException, SQLException {
-		Class.forName("org.sqlite.JDBC");
+
+	@Option(help="Control sequencing depths (SQLite database or binary depth track)", optional=true)
+	public void setControlDepths(File f) throws ClassNotFoundException, SQLException, IOException {
 		this.controlDepthFile = f;
+		if (DepthTrack.isDepthTrack(f)) {
+			this.controlDepthTrack = DepthTrack.open(f);
+			return;
+		}
+		Class.forName("org.sqlite.JDBC");
 		if (this.controlDepthConnection == null) {
-			this.controlDepthConnection = 
+			this.controlDepthConnection =
 				DriverManager.getConnection(
 					String.format(
 						"jdbc:sqlite:%s",
@@ -65,32 +81,33 @@ public class PeakCaller {
 			this.controlDepthConnection.setAutoCommit(true);
 		}
 	}
-	
+
 	@Option(help="Output file")
 	public void setOut(File f) {
 		this.outputFile = f;
 	}
-	/*
-	@Option(help="Read counts")
-	public void setReadCounts(File f) {
-		this.readCounts = SAMProcessor.parseReadCounts(f);
-	}*/
-	
+
 	@Option(help="Reference sequence lengths")
 	public void setRefLengths(File f) {
 		this.refSeqLengths = SAMProcessor.parseRefLengths(f);
+		this.refSeqNames = SAMProcessor.parseRefNamesFromRefLengthFile(f);
 	}
-	
-	@Option(help="P-value cutoff (default=1e-6)",optional=true)
+
+	@Option(help="P-value cutoff for the candidate regions, which are then filtered by -fdr (default=1e-6)",optional=true)
 	public void setPValue(double d) {
 		this.pvalue = d;
 	}
-	
-	@Option(help="FDR cutoff (default=0.10)",optional=true)
+
+	@Option(help="FDR cutoff, Benjamini-Hochberg over all the tested positions (default=0.10)",optional=true)
 	public void setFDR(double d) {
 		this.fdr = d;
 	}
-	
+
+	@Option(help="Merge significant regions separated by at most this many positions (default=0)",optional=true)
+	public void setMaxGap(int i) {
+		this.maxGap = i;
+	}
+
 	private void createPeakDatabase() throws SQLException, ClassNotFoundException {
 		Statement stat = connection().createStatement();
 		stat.executeUpdate("DROP TABLE if exists peak;");
@@ -102,109 +119,265 @@ public class PeakCaller {
 				"depth float," +
 				"depth_control float," +
 				"pvalue float," +
-				"fdr float) ENGINE=InnoDB;");
-		stat.executeUpdate("CREATE INDEX ref_name_begin_end_idx ON depth(ref_name,begin_coord,end_coord);");
-		stat.executeUpdate("CREATE INDEX ref_name_begin_idx ON depth(ref_name,begin_coord);");
-	}
-	
-	private PreparedStatement 
-		getDepthAtPositionStatement() throws SQLException {
-		if (this.depthAtPositionStatement == null) {
-			this.depthAtPositionStatement = 
-				depthConnection.prepareStatement(
-					"SELECT begin_coord,end_coord,depth,pvalue " +
-					"FROM window WHERE ref_name = ? AND begin_coord = ?");
-		}
-		return this.depthAtPositionStatement;
-	}
-	
-	private PreparedStatement 
-		getControlDepthAtPositionStatement() throws SQLException {
-		if (this.controlDepthAtPositionStatement == null) {
-			this.controlDepthAtPositionStatement = 
-				controlDepthConnection.prepareStatement(
-					"SELECT begin_coord,end_coord,depth,pvalue " +
-					"FROM window WHERE ref_name = ? AND begin_coord = ?");
-		}
-		return this.controlDepthAtPositionStatement;
-	}
-
-	private Window getDepth(String refSeq, int position) throws SQLException {
-		this.getDepthAtPositionStatement().setString(1, refSeq);
-		this.getDepthAtPositionStatement().setInt(2, position);
-		this.getDepthAtPositionStatement().execute();
-		ResultSet results = this.getDepthAtPositionStatement().getResultSet();
-		int beginCoord = results.getInt(1);
-		int endCoord = results.getInt(2);
-		double depth = results.getDouble(3);
-		double pvalue = results.getDouble(4);
-		
-		return new Window(refSeq, beginCoord, endCoord, depth, pvalue);
-	}
-	
-	private Window getControlDepth(String refSeq, int position) throws SQLException {
-		this.getControlDepthAtPositionStatement().setString(1, refSeq);
-		this.getControlDepthAtPositionStatement().setInt(2, position);
-		this.getControlDepthAtPositionStatement().execute();
-		ResultSet results = this.getControlDepthAtPositionStatement().getResultSet();
-		int beginCoord = results.getInt(1);
-		int endCoord = results.getInt(2);
-		double depth = results.getDouble(3);
-		double pvalue = results.getDouble(4);
-		
-		return new Window(refSeq, beginCoord, endCoord, depth, pvalue);
-	}
-	
+				"fdr float);");
+		stat.executeUpdate("CREATE INDEX ref_name_begin_end_idx ON peak(ref_name,begin_coord,end_coord);");
+		stat.close();
+	}
+
 	private Connection connection() throws SQLException, ClassNotFoundException {
 		Class.forName("org.sqlite.JDBC");
 		if (this.connection == null) {
-			this.connection = 
+			this.connection =
 				DriverManager.getConnection(
 					String.format(
 						"jdbc:sqlite:%s",
 						this.outputFile.getPath()));
-
-			this.connection.setAutoCommit(true);
+			BulkInserter.tuneConnection(this.connection, Format.SQLITE);
+			this.connection.setAutoCommit(false);
 		}
 		return this.connection;
 	}
-	
-	public void main(String[] args) throws SQLException, ClassNotFoundException {
-		this.createPeakDatabase();
-		for (String refSeq : this.refSeqLengths.keySet()) {
-			//int readCount = this.readCounts.get(refSeq);
-			int refSeqLength = this.refSeqLengths.get(refSeq);
-			
-			
-			for (int i = 0; i < refSeqLength; i++) {
-				Window depth = this.getDepth(refSeq, i);
-				Window controlDepth = this.getControlDepth(refSeq, i);
-				
-				if (depth.getPvalue() > this.pvalue) {
-					if (this.peakIsOpen()) {
-						this.endPeak();
-					}
-				} else {
-					if (!this.peakIsOpen()) {
-						this.startPeak(refSeq,i);
-					}
+
+	/*
+	 * Depths of a reference sequence as consecutive segments of constant depth, in coordinate order
+	 * (0-based, end exclusive). Positions not covered by any segment have depth 0.
+	 */
+	private static abstract class DepthCursor {
+		int start, end;
+		double depth, pvalue;
+		boolean exhausted = false;
+
+		abstract boolean next() throws SQLException;
+
+		/* moves to the segment containing or following pos */
+		void advanceTo(int pos) throws SQLException {
+			while (!exhausted && end <= pos) {
+				if (!next()) {
+					exhausted = true;
 				}
 			}
 		}
+
+		boolean covers(int pos) {
+			return !exhausted && start <= pos;
+		}
+
+		/* the next position where the depth may change */
+		int boundary(int pos) {
+			if (exhausted) return Integer.MAX_VALUE;
+			return covers(pos) ? end : start;
+		}
+
+		abstract int readCount();
+
+		abstract void close() throws SQLException;
+	}
+
+	private static class TrackCursor extends DepthCursor {
+		private final DepthTrack.Reference ref;
+
+		TrackCursor(DepthTrack.Reference ref) {
+			this.ref = ref;
+		}
+
+		boolean next() {
+			if (end >= ref.length()) return false;
+			start = end;
+			end = ref.segmentEnd(start);
+			depth = ref.depthAt(start);
+			pvalue = ref.hasPValues() ? ref.pvalueAt(start) : 1.0;
+			return true;
+		}
+
+		int readCount() {
+			return ref.getReadCount();
+		}
+
+		void close() {}
+	}
+
+	/* the depth and ref_seq tables written by ngdepth, read in one range scan per reference */
+	private static class SQLCursor extends DepthCursor {
+		private int readCount = 0;
+		private ResultSet results;
+		private PreparedStatement statement;
+
+		SQLCursor(Connection conn, String refName) throws SQLException {
+			PreparedStatement refStat = conn.prepareStatement("SELECT id, read_count FROM ref_seq WHERE name = ?");
+			refStat.setString(1, refName);
+			ResultSet refs = refStat.executeQuery();
+			if (!refs.next()) {
+				exhausted = true;
+				refStat.close();
+				return;
+			}
+			int refId = refs.getInt(1);
+			this.readCount = (int) refs.getDouble(2);
+			refStat.close();
+
+			this.statement = conn.prepareStatement(
+					"SELECT coord, depth, pvalue FROM depth WHERE ref_id = ? ORDER BY coord");
+			this.statement.setFetchSize(10000);
+			this.statement.setInt(1, refId);
+			this.results = this.statement.executeQuery();
+		}
+
+		boolean next() throws SQLException {
+			if (results == null || !results.next()) return false;
+			start = results.getInt(1) - 1; // coordinates are stored 1-based
+			end = start + 1;
+			depth = results.getDouble(2);
+			pvalue = results.getDouble(3);
+			return true;
+		}
+
+		int readCount() {
+			return readCount;
+		}
+
+		void close() throws SQLException {
+			if (statement != null) statement.close();
+		}
 	}
 
-	private void startPeak(String refSeq, int i) {
-		this.peak = new Peak(refSeq, i);
+	private DepthCursor cursor(DepthTrack track, Connection conn, String refSeq) throws SQLException {
+		if (track != null) {
+			if (!track.hasReference(refSeq)) return null;
+			return new TrackCursor(track.reference(refSeq));
+		} else if (conn != null) {
+			return new SQLCursor(conn, refSeq);
+		}
+		return null;
 	}
 
-	private void endPeak() {
-		// TODO Auto-generated method stub
-		
+	/* P(X >= depth) for X ~ Poisson(lambda), one memoised table per control depth of the reference */
+	private static double upperTail(Map<Integer, PoissonTail> tails, double depth, double controlDepth, double scale) {
+		int c = (int) Math.round(controlDepth);
+		PoissonTail tail = tails.get(c);
+		if (tail == null) {
+			tail = new PoissonTail(c * scale);
+			tails.put(c, tail);
+		}
+		return tail.pvalue((int) Math.ceil(depth) - 1);
 	}
 
-	private boolean peakIsOpen() {
-		// TODO Auto-generated method stub
-		return false;
+	/*
+	 * Walks the treatment (and control) depths of a reference in one pass.
+	 * A position is significant if its treatment p-value is below the cutoff and,
+	 * when a control is given, the treatment depth is also significant against the
+	 * library size scaled control depth.
+	 * Returns the number of positions tested.
+	 */
+	private int callPeaks(String refSeq, int refSeqLength, List<Peak> peaks) throws SQLException {
+		DepthCursor treatment = cursor(depthTrack, depthConnection, refSeq);
+		if (treatment == null) {
+			System.err.printf("No depths for %s, skipping%n", refSeq);
+			return 0;
+		}
+		DepthCursor control = cursor(controlDepthTrack, controlDepthConnection, refSeq);
+
+		double scale = 1.0;
+		if (control != null && treatment.readCount() > 0 && control.readCount() > 0) {
+			scale = (double) treatment.readCount() / (double) control.readCount();
+		}
+		Map<Integer, PoissonTail> tails = new HashMap<Integer, PoissonTail>();
+
+		Peak peak = null;
+		int lastSignificant = -1;
+		int pos = 0;
+		treatment.advanceTo(0);
+		if (control != null) control.advanceTo(0);
+
+		while (pos < refSeqLength) {
+			double depth = treatment.covers(pos) ? treatment.depth : 0.0;
+			double p = treatment.covers(pos) ? treatment.pvalue : 1.0;
+			double controlDepth = 0.0;
+			int next = Math.min(refSeqLength, treatment.boundary(pos));
+
+			if (control != null) {
+				controlDepth = control.covers(pos) ? control.depth : 0.0;
+				next = Math.min(next, control.boundary(pos));
+
+				double lambda = controlDepth * scale;
+				if (p <= this.pvalue && lambda > 0) {
+					p = depth > lambda ? Math.max(p, upperTail(tails, depth, controlDepth, scale)) : 1.0;
+				}
+			}
+
+			if (depth > 0 && p <= this.pvalue) {
+				if (peak == null || (pos - lastSignificant - 1) > this.maxGap) {
+					if (peak != null) peaks.add(peak);
+					peak = new Peak(refSeq, pos);
+				}
+				peak.setMax(next);
+				if (depth > peak.getDepth()) {
+					peak.setDepth(depth);
+					peak.setControlDepth(controlDepth);
+					peak.setSummit(pos);
+				}
+				peak.setPvalue(Math.min(peak.getPvalue(), p));
+				lastSignificant = next - 1;
+			}
+
+			pos = next;
+			treatment.advanceTo(pos);
+			if (control != null) control.advanceTo(pos);
+		}
+		if (peak != null) peaks.add(peak);
+
+		treatment.close();
+		if (control != null) control.close();
+		return refSeqLength;
+	}
+
+	/*
+	 * Benjamini-Hochberg adjusted p-values over all the tested positions (m), not only the peaks
+	 * that passed the p-value cutoff. The positions that didn't pass are all less significant than
+	 * the peaks, so the peaks keep their ranks among them, and leaving them out of the step-up
+	 * minimum can only make the adjusted values larger.
+	 */
+	private static void assignFDR(List<Peak> peaks, long m) {
+		Peak[] sorted = peaks.toArray(new Peak[peaks.size()]);
+		Arrays.sort(sorted, new Comparator<Peak>() {
+			public int compare(Peak p1, Peak p2) {
+				return Double.compare(p1.getPvalue(), p2.getPvalue());
+			}
+		});
+
+		double q = 1.0;
+		for (int i = sorted.length - 1; i >= 0; i--) {
+			q = Math.min(q, sorted[i].getPvalue() * m / (i + 1));
+			sorted[i].setFdr(q);
+		}
+	}
+
+	public void main(String[] args) throws SQLException, ClassNotFoundException {
+		this.createPeakDatabase();
+
+		List<Peak> peaks = new ArrayList<Peak>();
+		long tested = 0;
+		for (String refSeq : this.refSeqNames) {
+			System.err.printf("Calling peaks for %s%n", refSeq);
+			tested += callPeaks(refSeq, this.refSeqLengths.get(refSeq), peaks);
+		}
+		assignFDR(peaks, tested);
+
+		BulkInserter ins = new BulkInserter(connection(), Format.SQLITE, "peak", 8, 1000, 100000, false);
+		int id = 1;
+		for (Peak peak : peaks) {
+			if (peak.getFdr() > this.fdr) continue;
+
+			ins.setInt(1, id++);
+			ins.setString(2, peak.getRefSeqName());
+			ins.setInt(3, peak.getMin());
+			ins.setInt(4, peak.getMax());
+			ins.setDouble(5, peak.getDepth());
+			ins.setDouble(6, peak.getControlDepth());
+			ins.setDouble(7, peak.getPvalue());
+			ins.setDouble(8, peak.getFdr());
+			ins.endRow();
+		}
+		ins.close();
+		System.err.printf("%d peaks called, %d with FDR <= %g%n", peaks.size(), id - 1, this.fdr);
 	}
-	
 }
@@ -1,31 +1,23 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
+import java.io.PrintStream;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
-import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakEntry;
 import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakFormat;
 import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.RankOrder;
-import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.RankedProperty;
+import net.derkholm.nmica.extra.peak.PeakList;
+import net.derkholm.nmica.extra.peak.PeakWriter;
 
-import org.biojava.bio.program.gff.GFFWriter;
-import org.biojava.bio.program.gff.SimpleGFFRecord;
-import org.biojava.bio.seq.StrandedFeature;
 import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
-@App(overview = "Convert peak files from various formats to GFF", generateStub = true)
+@App(overview = "Convert peak files from various formats to GFF (or BED)", generateStub = true)
 @NMExtraApp(launchName = "ngpeak2gff", vm = VirtualMachine.SERVER)
 public class PeaksToGFF {
 	
@@ -37,12 +29,18 @@ public class PeaksToGFF {
 	private int minLength;
 	private int maxCount;
 	private boolean groupBySeq;
+	private PeakWriter.Format outputFormat = PeakWriter.Format.GFF;
 
 	@Option(help="Peak file format")
 	public void setFormat(RetrievePeakSequencesFromEnsembl.PeakFormat format) {
 		this.format = format;
 	}
 
+	@Option(help="Output format: gff|bed (default=gff)", optional=true)
+	public void setOutputFormat(PeakWriter.Format format) {
+		this.outputFormat = format;
+	}
+
 	@Option(help="Input peak file")
 	public void setPeaks(FileReader f) {
 		this.peaksReader = f;
@@ -79,60 +77,22 @@ public class PeaksToGFF {
 	}
 	
 	public void main(String[] args) throws FileNotFoundException, IOException {
-		SortedSet<PeakEntry> peaks = RetrievePeakSequencesFromEnsembl.parsePeaks(
+		PeakList peaks = RetrievePeakSequencesFromEnsembl.parsePeaks(
 				new BufferedReader(peaksReader), 
 				format, 
 				rankOrder, 
 				groupBySeq,
 				aroundPeak, 
 				minLength, 
-				maxLength);
-		
-		if (maxCount == 0) {
-			maxCount = peaks.size();
-		}
+				maxLength,
+				maxCount);
 		
 		System.err.printf("Parsed %d peaks%n", peaks.size());
-		GFFWriter writer = new GFFWriter(new PrintWriter(System.out));
-		
-		Iterator<PeakEntry> peakIterator = peaks.iterator();
-		int i = 0;
-		
-		while (i < maxCount) {
-			final PeakEntry peak = peakIterator.next();
-			SimpleGFFRecord rec = new SimpleGFFRecord();
-			rec.setEnd(peak.endCoord);
-			rec.setFeature("peak");
-			rec.setFrame(0);
-			Map<String,List<String>> attribs = new HashMap<String,List<String>>();
-			
-			if (!this.format.equals(PeakFormat.SWEMBL)) { 
-				List<String> fdr = new ArrayList<String>();
-				fdr.add("" + peak.fdr);
-				attribs.put("fdr", fdr);				
-			}
-			
-			List<String> score = new ArrayList<String>();
-			score.add("" + peak.score );
-			attribs.put("score", score);
-			
-			List<String> tagCount = new ArrayList<String>();
-			tagCount.add("" + peak.tagCount);
-			attribs.put("tag_count", tagCount);
-			
-			rec.setGroupAttributes(attribs);
-			rec.setScore(peak.fdr);
-			rec.setSeqName(peak.seqName);
-			rec.setSource(format.name());
-			rec.setStart(peak.startCoord);
-			rec.setStrand(StrandedFeature.UNKNOWN);
-			
-			writer.recordLine(rec);
-			writer.endDocument();
-			
-			i++;
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+		PeakWriter writer = new PeakWriter(out, outputFormat, format.name());
+		for (int i : peaks.rankedIndices()) {
+			writer.write(peaks, i);
 		}
-		writer.endDocument();
-
+		writer.flush();
 	}
-}
\ No newline at end of file
+}
@@ -13,22 +13,16 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.StringTokenizer;
-import java.util.TreeSet;
-import java.util.regex.Pattern;
 
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
 import net.derkholm.nmica.extra.app.seq.RetrieveEnsemblSequences;
 import net.derkholm.nmica.extra.app.seq.RetrieveSequenceFeaturesFromEnsembl;
 import net.derkholm.nmica.extra.app.seq.SequenceSplitter;
-import net.derkholm.nmica.extra.peak.PeakEntryAscComparitor;
-import net.derkholm.nmica.extra.peak.PeakEntryDescComparitor;
-import net.derkholm.nmica.extra.peak.PeakEntryRandomComparitor;
+import net.derkholm.nmica.extra.peak.PeakList;
+import net.derkholm.nmica.extra.peak.PeakReader;
 
 import org.biojava.bio.Annotation;
-import org.biojava.bio.BioError;
 import org.biojava.bio.program.gff.GFFWriter;
 import org.biojava.bio.program.gff.SimpleGFFRecord;
 import org.biojava.bio.seq.DNATools;
@@ -72,7 +66,9 @@ public class RetrievePeakSequencesFromEnsembl extends RetrieveEnsemblSequences {
 		MACS,
 		SWEMBL,
 		FINDPEAKS,
-		PEAKS
+		PEAKS,
+		NARROWPEAK,
+		GFF
 	}
 	
 	public static enum PeakOutputFormat {
@@ -291,14 +287,16 @@ public class RetrievePeakSequencesFromEnsembl extends RetrieveEnsemblSequences {
 		
 		BufferedReader br = new BufferedReader(new FileReader(peaksFile));
 
-		SortedSet<PeakEntry> peaks = RetrievePeakSequencesFromEnsembl.parsePeaks(
+		/* peaks can still be left out below, so they aren't cut to -maxCount here */
+		PeakList peaks = RetrievePeakSequencesFromEnsembl.parsePeaks(
 				br,
 				this.inputFormat, 
 				rankOrder, 
 				this.groupBySeq,
 				aroundPeak, 
 				this.minLength, 
-				this.maxLength);
+				this.maxLength,
+				0);
 		
 		/*
 		for (PeakEntry e : peaks) {
@@ -593,172 +591,59 @@ public class RetrievePeakSequencesFromEnsembl extends RetrieveEnsemblSequences {
 				totalLength, 100.0 * (double)maskedSeqLength / (double)totalLength);
 	}
 
-	public static SortedSet<PeakEntry> parsePeaks(
+	/*
+	 * Reads the peaks that pass the length filters (cut to aroundPeak around their summits if given)
+	 * in one pass over the file. With maxCount > 0 only the best maxCount peaks in the rank order are kept.
+	 */
+	public static PeakList parsePeaks(
 			BufferedReader br,
 			PeakFormat inputFormat,
 			RankOrder rankOrder,
 			boolean groupBySeq,
 			int aroundPeak,
 			int minLength,
-			int maxLength) throws IOException {
-		
-		PeakEntryComparator comp = null;
-		int peakCount = 0;
-		if (rankOrder == RankOrder.ASC) {
-			comp = new PeakEntryAscComparitor(groupBySeq,inputFormat);
-		} else if (rankOrder == RankOrder.DESC) {
-			comp = new PeakEntryDescComparitor(groupBySeq,inputFormat);
-		} else {
-			comp = new PeakEntryRandomComparitor();
-		}
+			int maxLength,
+			int maxCount) throws IOException {
 		
-		SortedSet<PeakEntry> peaks = new TreeSet<PeakEntry>(comp);
-		String line = null;
-		//br.readLine();//ignore the header
+		PeakList peaks = new PeakList(inputFormat, rankOrder, groupBySeq, maxCount);
+		PeakReader reader = new PeakReader(br, inputFormat);
+		int peakCount = 0, maxLengthFiltered = 0, minLengthFiltered = 0, skipped = 0;
 		
-		int peakId = 1;
-		while ((line = br.readLine()) != null) {
-			//ignore comment lines regardless of exact format
-			if (Pattern.compile("^#").matcher(line).find()) {
+		while (!peaks.isFull() && reader.next()) {
+			int length = Math.abs(reader.start - reader.end);
+			if ((maxLength > 0) && !(length < maxLength)) {
+				maxLengthFiltered++;
 				continue;
 			}
-			
-			//the MACS header
-			if (inputFormat == PeakFormat.MACS && Pattern.compile("chr\\s+start\\s+end").matcher(line).find()) {
-				continue;
-			}
-			
-			//the SWEMBL header
-			if (inputFormat == PeakFormat.SWEMBL && Pattern.compile("Region\\s+Start").matcher(line).find()) {
-				continue;
-			}
-			
-			//the BED header
-			if (inputFormat == PeakFormat.BED && Pattern.compile("track name").matcher(line).find()) {
-				continue;
-			}
-			
-			String id; //not really used for anything (not present in the BED format)
-			String chromo;
-			int startCoord;
-			int endCoord;
-			int peakCoord;
-			double tagCount = Double.NaN;
-			double pValue = Double.NaN;
-			double fdr = Double.NaN;
-			
-			StringTokenizer tok = new StringTokenizer(line,"\t");
-			
-			if (inputFormat == PeakFormat.BED) {
-				chromo = tok.nextToken();
-				startCoord = Integer.parseInt(tok.nextToken());
-				endCoord = Integer.parseInt(tok.nextToken());
-				id = tok.nextToken();
-				peakCoord = -1;
-				pValue = Double.parseDouble(tok.nextToken());
-				
-			} else if (inputFormat == PeakFormat.MACS) {
-				id = "" + peakId++;
-				chromo = tok.nextToken();
-				startCoord = Integer.parseInt(tok.nextToken()) - 1; //1-based coords
-				endCoord = Integer.parseInt(tok.nextToken()) - 1; //1-based coords
-				tok.nextToken();//length
-				peakCoord  = startCoord + Integer.parseInt(tok.nextToken());//summit reported relative to start coord
-				tagCount = Double.parseDouble(tok.nextToken());
-				pValue = Math.pow(10.0, -Double.parseDouble(tok.nextToken()) / 10.0) ; //p-value
-				fdr = Double.parseDouble(tok.nextToken());
-				
-			} else if (inputFormat == PeakFormat.SWEMBL) {
-				chromo = tok.nextToken();
-				id = "" + peakId++;
-				startCoord = Integer.parseInt(tok.nextToken());
-				endCoord = Integer.parseInt(tok.nextToken());
-				tagCount = Double.parseDouble(tok.nextToken());//count
-				tok.nextToken();//length
-				tok.nextToken();//uniquePos
-				pValue = Double.parseDouble(tok.nextToken());//score
-				tok.nextToken();//Ref. count
-				tok.nextToken();//Max. coverage
-				peakCoord = (int)Math.round(Double.parseDouble(tok.nextToken()));
-			
-			}else if (inputFormat == PeakFormat.FINDPEAKS) {
-				id = tok.nextToken();
-				chromo = tok.nextToken();
-				startCoord = Integer.parseInt(tok.nextToken());
-				endCoord = Integer.parseInt(tok.nextToken());
-				peakCoord = (int)Math.round(Double.parseDouble(tok.nextToken()));
-				pValue = Double.parseDouble(tok.nextToken());
-			} else if (inputFormat == PeakFormat.PEAKS) {
-				/* <chromosome> 
-				 * <genomic start> 
-				 * <genomic end>
-				 *  <position of peak maximum relative to genomic start> 
-				 *  <peak height> 
-				 *  <number of reads in the peak>
-				 */
-				
-				id = "" + peakId++;
-				chromo = tok.nextToken();
-				startCoord = Integer.parseInt(tok.nextToken());
-				endCoord = Integer.parseInt(tok.nextToken());
-				peakCoord = startCoord + Integer.parseInt(tok.nextToken());
-				tagCount = Double.parseDouble(tok.nextToken());
-			} else {
-				throw 
-					new BioError(
-							String.format(
-								"Unexpected input format %s", inputFormat));
-			}
-
-			boolean maxLengthCondition = (Math.abs(startCoord - endCoord) < maxLength);
-			if ((maxLength > 0)&!maxLengthCondition) {
-				System.err.println("Maximum length condition not met");
-				continue;
-			}
-			boolean minLengthCondition = (Math.abs(startCoord - endCoord) > minLength) && (minLength > 0);
-			if ((minLength > 0)&!minLengthCondition) {
-				System.err.println("Minimum length condition not met");
+			if ((minLength > 0) && !(length > minLength)) {
+				minLengthFiltered++;
 				continue;
 			}
 			if (aroundPeak > 0) {
 				int halfLength = (int) Math.round((double)aroundPeak / 2.0);
-				int peakStartCoord = Math.max(startCoord,peakCoord - halfLength);
-				int peakEndCoord = Math.min(endCoord,peakCoord + halfLength);
+				int peakStartCoord = Math.max(reader.start, reader.peak - halfLength);
+				int peakEndCoord = Math.min(reader.end, reader.peak + halfLength);
 				
 				if (peakStartCoord > peakEndCoord) {
-					System.err.printf("Peak start (%d) larger than end (%d) -- will skip%n", 
-							peakStartCoord, peakEndCoord);	
+					skipped++;
 					continue;
 				}
-				peakCount++;
-				System.err.printf(".");
-				peaks.add(
-					new PeakEntry(
-						id, 
-						chromo, 
-						peakStartCoord, 
-						peakEndCoord, 
-						peakCoord, 
-						pValue,
-						fdr,
-						tagCount));
-			} else {
-				peakCount++;
-				System.err.printf("-");
-				peaks.add(
-					new PeakEntry(
-						id, 
-						chromo, 
-						startCoord, 
-						endCoord, 
-						peakCoord, 
-						pValue, 
-						fdr,
-						tagCount));	
+				reader.start = peakStartCoord;
+				reader.end = peakEndCoord;
 			}
-			
+			peakCount++;
+			peaks.add(reader);
+		}
+		if (maxLengthFiltered > 0) {
+			System.err.printf("Maximum length condition not met by %d peaks%n", maxLengthFiltered);
+		}
+		if (minLengthFiltered > 0) {
+			System.err.printf("Minimum length condition not met by %d peaks%n", minLengthFiltered);
+		}
+		if (skipped > 0) {
+			System.err.printf("Skipped %d peaks whose start around the peak maximum is larger than the end%n", skipped);
 		}
 		System.err.println("peaks:"+peakCount);
 		return peaks;
 	}
-}
\ No newline at end of file
+}
@@ -1,25 +1,41 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.naming.OperationNotSupportedException;
 
+import net.derkholm.nmica.extra.seq.nextgen.DuplicateFilter;
+import net.derkholm.nmica.extra.seq.nextgen.FragmentSizeEstimator;
+import net.derkholm.nmica.extra.seq.nextgen.ParallelBAMReader;
+import net.derkholm.nmica.extra.seq.nextgen.ReadFragment;
+import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.samtools.util.CloseableIterator;
 
+import org.biojava.bio.BioError;
 import org.biojava.bio.BioException;
 import org.biojava.bio.seq.db.HashSequenceDB;
 import org.biojava.bio.seq.db.SequenceDB;
@@ -32,6 +48,7 @@ public abstract class SAMProcessor {
 	public enum IterationType {
 		ONE_BY_ONE,
 		MOVING_WINDOW,
+		STREAMING_WINDOW,
 		WITH_FREQUENCY,
 		MAPPED_TO_REF
 	}
@@ -43,6 +60,7 @@ public abstract class SAMProcessor {
 	}
 	
 	protected SAMFileReader inReader;
+	private ParallelBAMReader parallelReader;
 	private SequenceDB seqDB = new HashSequenceDB();
 	protected int qualityCutoff = 0;
 	
@@ -62,6 +80,13 @@ public abstract class SAMProcessor {
 	private boolean readLengthWasSet;
 	private String currentRefSeqName;
 	private int readQualityCutoff;
+	protected int threads = 1;
+	protected int maxDuplicates = 0;
+	protected int ioThreads = 1;
+	private boolean estimateFragmentSize = false;
+	private boolean fragmentSizeEstimated = false;
+	protected int minFragmentSize = FragmentSizeEstimator.DEFAULT_MIN_LENGTH;
+	protected int maxFragmentSize = FragmentSizeEstimator.DEFAULT_MAX_LENGTH;
 
 
 	@Option(help="Input reads (SAM/BAM formatted). Read from stdin if not specified.", optional=true)
@@ -97,6 +122,22 @@ public abstract class SAMProcessor {
 		this.extendedLength = i;
 	}
 
+	@Option(help="Estimate the fragment length from the strand cross-correlation of the reads " +
+			"and extend reads to it (overrides -extendTo, the reads need to be in a file)", optional=true)
+	public void setEstimateFragmentSize(boolean b) {
+		this.estimateFragmentSize = b;
+	}
+	
+	@Option(help="Smallest fragment length considered by -estimateFragmentSize (default=50)", optional=true)
+	public void setMinFragmentSize(int i) {
+		this.minFragmentSize = i;
+	}
+	
+	@Option(help="Largest fragment length considered by -estimateFragmentSize (default=500)", optional=true)
+	public void setMaxFragmentSize(int i) {
+		this.maxFragmentSize = i;
+	}
+
 	@Option(help="Reference sequence names and lengths in a TSV formatted file")
 	public void setRefLengths(File f) throws NoSuchElementException, BioException, NumberFormatException, IOException {
 		this.refSeqLengths = SAMProcessor.parseRefLengths(f);
@@ -180,6 +221,37 @@ public abstract class SAMProcessor {
 		this.readQualityCutoff = quality;
 	}
 	
+	@Option(help="Number of threads (default = 1). " +
+			"Reference sequences are processed in parallel, each with its own reader of the indexed input.", optional = true)
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			System.err.println("-threads needs to be >= 1");
+			System.exit(1);
+		}
+		this.threads = threads;
+	}
+	
+	@Option(help="Number of threads for decompressing BAM input and compressing BAM output " +
+			"when reads are processed one by one in file order (default = 1)", optional = true)
+	public void setIoThreads(int threads) {
+		if (threads < 1) {
+			System.err.println("-ioThreads needs to be >= 1");
+			System.exit(1);
+		}
+		this.ioThreads = threads;
+	}
+	
+	@Option(help="Keep at most this many reads with the same reference sequence, strand and 5' position " +
+			"(default = 0, duplicates are not filtered). The reads need to be sorted by coordinate.", optional=true)
+	public void setMaxDuplicates(int i) {
+		this.maxDuplicates = i;
+	}
+	
+	/* a new duplicate filter for one pass over (coordinate sorted) reads, or null if duplicates are kept */
+	protected DuplicateFilter duplicateFilter() {
+		return maxDuplicates > 0 ? new DuplicateFilter(maxDuplicates) : null;
+	}
+	
 	@Option(help="Include unmapped reads (default=false)", optional=true, userLevel=UserLevel.DEBUG)
 	public void setIncludeUnmapped(boolean b) {
 		this.includeUnmapped  = b;
@@ -200,18 +272,64 @@ public abstract class SAMProcessor {
 		
 	}
 	
+	//override in subclass, called in the order of the reference sequences (from the calling thread with -threads)
+	protected void endReference(String refName) {
+	
+	}
+	
 	//override in subclass
 	public void processAndClose(CloseableIterator<SAMRecord> recs, String refName, int len) {
 	
 	}
 	
-	public void initializeSAMReader() {
+	/* 
+	 * Sets extendedLength to the estimated fragment length if -estimateFragmentSize was given
+	 * (an extra pass over the reads before they are processed, done only once). 
+	 */
+	public void estimateFragmentSizeIfRequested() throws BioException {
+		if (!estimateFragmentSize || fragmentSizeEstimated) return;
+		if (this.in.equals("-")) {
+			System.err.println("-estimateFragmentSize can't be used when reading from stdin");
+			System.exit(1);
+		}
+		
+		System.err.println("Estimating the fragment length...");
+		FragmentSizeEstimator estimator = FragmentSizeEstimator.fromReads(
+				new File(in), minFragmentSize, maxFragmentSize, qualityCutoff);
+		int estimate = estimator.estimate(threads);
+		if (extendedLength > 0 && extendedLength != estimate) {
+			System.err.printf("Using the estimated fragment length instead of -extendTo %d%n", extendedLength);
+		}
+		System.err.printf("Estimated fragment length: %d%n", estimate);
+		this.extendedLength = estimate;
+		this.fragmentSizeEstimated = true;
+	}
+	
+	public void initializeSAMReader() throws BioException {
+		estimateFragmentSizeIfRequested();
 		if (this.in.equals("-")) {
 			if (queryType != QueryType.RECORD) {
 				System.err.println("Query type -record is the only allowed query type when reading from stdin");
 				System.exit(1);
 			}
-			this.inReader = new SAMFileReader(System.in);
+			if (threads > 1 && iterationType != IterationType.ONE_BY_ONE) {
+				System.err.println("Reads need to be read from an indexed file when -threads > 1");
+				System.exit(1);
+			}
+			if (ioThreads > 1) {
+				try {
+					InputStream stdin = new BufferedInputStream(System.in, 1 << 16);
+					if (ParallelBAMReader.isCompressed(stdin)) {
+						this.parallelReader = new ParallelBAMReader(stdin, ioThreads);
+						return;
+					}
+					this.inReader = new SAMFileReader(stdin);
+				} catch (IOException e) {
+					throw new BioException(e);
+				}
+			} else {
+				this.inReader = new SAMFileReader(System.in);
+			}
 		} else {
 			if (indexFile == null && (this.queryType.equals(QueryType.CONTAINED) || this.queryType.equals(QueryType.OVERLAP))) {
 				System.err.println("Index file was not specified but is required for query types 'contained' and 'overlap'");
@@ -227,6 +345,30 @@ public abstract class SAMProcessor {
 		this.inReader.setValidationStringency(ValidationStringency.SILENT);
 	}
 	
+	public SAMFileHeader getInputHeader() {
+		if (inReader != null) return inReader.getFileHeader();
+		if (parallelReader != null) return parallelReader.getFileHeader();
+		throw new BioError("Internal error: SAM reader needs to be initialised before reading the header");
+	}
+	
+	/* 
+	 * the reads in file order, BAM files decompressed on ioThreads threads 
+	 * (the SAMFileReader of a BAM file is closed then, the header comes from the parallel reader)
+	 */
+	protected Iterable<SAMRecord> sequentialRecords() throws BioException {
+		if (parallelReader == null && ioThreads > 1 && !in.equals("-") && inReader.isBinary()) {
+			try {
+				this.parallelReader = new ParallelBAMReader(new FileInputStream(in), ioThreads);
+			} catch (IOException e) {
+				throw new BioException(e);
+			}
+			this.inReader.close();
+			this.inReader = null;
+		}
+		if (parallelReader != null) return parallelReader;
+		return inReader;
+	}
+	
 	public int jobIndex() {
 		String jobIndex = System.getenv("LSB_JOBINDEX");
 		if (jobIndex == null) return -1;
@@ -240,13 +382,12 @@ public abstract class SAMProcessor {
 	}
 	
 	public void process() throws BioException {
-		int halfWindow = Math.max(1,this.windowSize / 2);
-
 		if (iterationType == IterationType.ONE_BY_ONE) {
 			int excludedReads = 0;
 			int readCount = 0;
+			DuplicateFilter duplicates = duplicateFilter();
 
-			for (SAMRecord record : inReader) {
+			for (SAMRecord record : sequentialRecords()) {
 				if ((readCount++ % frequency) != 0) continue;
 				
 				int quality = record.getMappingQuality();
@@ -265,111 +406,244 @@ public abstract class SAMProcessor {
 					continue;
 				}
 				
-				if (this.extendedLength > 0) {
-					ExtendReads.extendReadBy(
-							record, 
-							refSeqLengths, 
-							this.extendedLength - this.readLength);
+				if (duplicates != null && !duplicates.accept(record)) {
+					excludedReads += 1;
+					continue;
 				}
+				
 				process(record, readCount);
 			}
 			System.err.printf(
 				"Excluded %d reads (%.2f%%)%n", 
 				excludedReads, 
-				(double)excludedReads / (double)readCount * 100.0);			
-		} else if (iterationType == IterationType.MOVING_WINDOW) {
+				(double)excludedReads / (double)readCount * 100.0);
+			if (duplicates != null) {
+				System.err.printf("(%d of them as duplicates)%n", duplicates.getDuplicateCount());
+			}
+		} else {
+			if (iterationType == IterationType.WITH_FREQUENCY) {
+				windowSize = frequency;
+			}
 			
-			final List<SAMRecord> recs = new ArrayList<SAMRecord>();
+			if (iterationType != IterationType.MAPPED_TO_REF) {
+				restrictToJobIndex();
+			}
 			
-			/* Each chromosome is dealt as a single job in a job array */
-			if (jobIndex() >= 0) {
-				String name = nameList.get(jobIndex()-1);
-				System.err.printf(
-						"Running as part of a LSF job array. " +
-						"Will process only %s%n", name);
-				
-				ArrayList<String> names = new ArrayList<String>();
-				names.add(name);
-				this.nameList = names;
+			if (threads > 1) {
+				processReferencesInParallel();
+			} else {
+				for (String seqName : nameList) {
+					processReference(inReader, seqName);
+					endReference(seqName);
+				}
+			}
+		}
+	}
+	
+	/* 
+	 * One worker per reference sequence, each with its own reader. 
+	 * The process() callbacks will then be called concurrently 
+	 * (but only from one thread for any given reference sequence),
+	 * and endReference() from this thread in the order of the reference sequences.
+	 */
+	private void processReferencesInParallel() throws BioException {
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (final String seqName : nameList) {
+			futures.add(threadPool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					SAMFileReader reader = new SAMFileReader(new File(in), indexFile);
+					reader.setValidationStringency(ValidationStringency.SILENT);
+					try {
+						processReference(reader, seqName);
+					} finally {
+						reader.close();
+					}
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+				endReference(nameList.get(i));
 			}
+		} catch (InterruptedException e) {
+			throw new BioException(e);
+		} catch (ExecutionException e) {
+			throw new BioException(e.getCause());
+		} finally {
+			threadPool.shutdown();
+		}
+	}
+	
+	private void processReference(SAMFileReader reader, String seqName) {
+		int halfWindow = Math.max(1,this.windowSize / 2);
+		int len = refSeqLengths.get(seqName);
+		
+		System.err.printf("Processing %s%n",seqName);
+		
+		if (iterationType == IterationType.MOVING_WINDOW && maxDuplicates > 0) {
+			/* 
+			 * duplicates can only be told apart in one pass over the reference in coordinate order,
+			 * the streamed windows are the same as the queried ones
+			 */
+			streamWindows(reader, seqName, len, 2 * halfWindow, frequency, halfWindow);
+			System.err.printf(".");
 			
-			for (String seqName : nameList) {
-				System.err.printf("Processing %s%n",seqName);
+		} else if (iterationType == IterationType.MOVING_WINDOW) {
+			final List<SAMRecord> recs = new ArrayList<SAMRecord>();
+			final ReadFragment fragment = ReadFragment.extendedTo(extendedLength, len);
+			
+			int windowCenter = halfWindow;
+			while ((windowCenter + halfWindow) < len) {
+				CloseableIterator<SAMRecord> recIterator;
 				
-				int windowCenter = halfWindow;
-				int len = refSeqLengths.get(seqName);
-				while ((windowCenter + halfWindow) < len) {
-					CloseableIterator<SAMRecord> recIterator;
-					
-					if (this.extendedLength > 0) {
-						int extendedStart = windowCenter - extendedLength;
-						int extendedEnd = windowCenter + extendedLength;
-						
-						recIterator = this.query(seqName, extendedStart, extendedEnd);
-						iterateAndFilterToList(recIterator,windowCenter,recs);
-					} else {
-						recIterator = this.query(seqName, windowCenter - halfWindow, windowCenter + Math.max(1,halfWindow));
-						iterateAndFilterToList(recIterator,windowCenter,recs);
-					}
-					recIterator.close();
+				if (this.extendedLength > 0) {
+					int extendedStart = windowCenter - extendedLength;
+					int extendedEnd = windowCenter + extendedLength;
 					
-					process(recs,seqName,windowCenter - halfWindow,windowCenter + Math.max(1,halfWindow),len);
-					recs.clear();
-					windowCenter += frequency;
+					recIterator = this.query(reader, seqName, extendedStart, extendedEnd);
+					iterateAndFilterToList(recIterator,fragment,windowCenter,recs);
+				} else {
+					recIterator = this.query(reader, seqName, windowCenter - halfWindow, windowCenter + Math.max(1,halfWindow));
+					iterateAndFilterToList(recIterator,fragment,windowCenter,recs);
 				}
-				System.err.printf(".");
+				recIterator.close();
+				
+				process(recs,seqName,windowCenter - halfWindow,windowCenter + Math.max(1,halfWindow),len);
+				recs.clear();
+				windowCenter += frequency;
 			}
+			System.err.printf(".");
 			
-		} else if (iterationType == IterationType.WITH_FREQUENCY) {
-			windowSize = frequency;
+		} else if (iterationType == IterationType.STREAMING_WINDOW) {
+			streamWindows(reader, seqName, len, 2 * halfWindow, frequency, halfWindow);
+			System.err.printf(".");
 			
-			final List<SAMRecord> recs = new ArrayList<SAMRecord>();
+		} else if (iterationType == IterationType.WITH_FREQUENCY) {
+			/* adjacent bins of size 'frequency', counted in one pass over the reference */
+			streamWindows(reader, seqName, len, frequency, frequency, frequency / 2);
+			System.err.printf(".");
 			
-			/* Each chromosome is dealt as a single job in a job array */
-			if (jobIndex() >= 0) {
-				String name = nameList.get(jobIndex()-1);
-				System.err.printf(
-						"Running as part of a LSF job array. " +
-						"Will process only %s%n", name);
-				ArrayList<String> names = new ArrayList<String>();
-				names.add(name);
-				this.nameList = names;
+		} else if (iterationType == IterationType.MAPPED_TO_REF) {
+			this.setCurrentRefSeqName(seqName);
+			CloseableIterator<SAMRecord> recs = 
+				reader.queryContained(seqName, 0, len);
+			DuplicateFilter duplicates = duplicateFilter();
+			if (duplicates != null) {
+				recs = duplicates.filter(recs);
 			}
+			processAndClose(recs, seqName, len);
+		}
+	}
 
-			for (String seqName : nameList) {
-				System.err.printf("Processing %s%n",seqName);
+	/* Each chromosome is dealt as a single job in a job array */
+	private void restrictToJobIndex() {
+		if (jobIndex() >= 0) {
+			String name = nameList.get(jobIndex()-1);
+			System.err.printf(
+					"Running as part of a LSF job array. " +
+					"Will process only %s%n", name);
+			
+			ArrayList<String> names = new ArrayList<String>();
+			names.add(name);
+			this.nameList = names;
+		}
+	}
+	
+	/* 
+	 * Windows [begin, begin + width] every 'step' nucleotides, with the reference read once in coordinate order.
+	 * Reads that can still reach a window are kept in a deque and dropped 
+	 * once the windows have moved past their (extended) end.
+	 * Extended reads are tested against windowSize around begin + centerOffset, as in iterateAndFilterToList,
+	 * and their alignments also need to overlap (or with -queryType contained, be within) extendedLength 
+	 * of the center, as those of the query of MOVING_WINDOW.
+	 */
+	private void streamWindows(SAMFileReader reader, String seqName, int len, int width, int step, int centerOffset) {
+		final List<SAMRecord> recs = new ArrayList<SAMRecord>();
+		final ArrayDeque<SAMRecord> active = new ArrayDeque<SAMRecord>();
+		final ReadFragment fragment = ReadFragment.extendedTo(extendedLength, len);
+		final DuplicateFilter duplicates = duplicateFilter();
+		
+		CloseableIterator<SAMRecord> recIterator = this.query(reader, seqName, 0, len);
+		SAMRecord next = nextAccepted(recIterator, duplicates);
+		
+		int begin = 0;
+		while ((begin + width) < len) {
+			int winStart, winEnd;
+			int center = begin + centerOffset;
+			if (extendedLength > 0) {
+				winStart = center - (windowSize / 2);
+				winEnd = center + (windowSize / 2);
+			} else {
+				winStart = begin;
+				winEnd = begin + width;
+			}
+			
+			/* a read on the negative strand can reach back by extendedLength from its start */
+			while (next != null && next.getAlignmentStart() <= (winEnd + Math.max(0, extendedLength))) {
+				active.addLast(next);
+				next = nextAccepted(recIterator, duplicates);
+			}
+			
+			for (Iterator<SAMRecord> it = active.iterator(); it.hasNext();) {
+				SAMRecord rec = it.next();
+				int fragStart = fragment.start(rec);
+				int fragEnd = fragment.end(rec);
 				
-				int windowBegin = 0;
-				int len = refSeqLengths.get(seqName);
+				boolean contained = queryType == QueryType.CONTAINED;
 				
-				while ((windowBegin + frequency)  < len) {
-					CloseableIterator<SAMRecord> recIterator = this.query(seqName, windowBegin, windowBegin + frequency);
-					iterateAndFilterToList(recIterator, windowBegin + (frequency / 2), recs);
-					recIterator.close();
-					
-					process(recs,seqName,windowBegin,windowBegin + frequency,len);
-					recs.clear();
+				/* the centers only move forward, so a read starting before this one's query can't be in a later one */
+				if (fragEnd < winStart || 
+						(extendedLength > 0 && rec.getAlignmentEnd() < center - extendedLength) ||
+						(contained && extendedLength <= 0 && fragStart < winStart) ||
+						(contained && extendedLength > 0 && rec.getAlignmentStart() < center - extendedLength)) {
+					it.remove();
+					continue;
 				}
-				windowBegin += frequency;
-			}
-		} else if (iterationType == IterationType.MAPPED_TO_REF) {
-			for (String seqName : nameList) {
-				System.err.printf("Processing %s%n",seqName);
 				
-				this.setCurrentRefSeqName(seqName);
-				CloseableIterator<SAMRecord> recs = 
-					inReader.queryContained(seqName, 0, refSeqLengths.get(seqName));
-				processAndClose(recs, seqName, refSeqLengths.get(seqName));
+				if (contained && extendedLength <= 0) {
+					if (fragEnd <= winEnd) recs.add(rec);
+				} else if (contained) {
+					if (fragStart <= winEnd && rec.getAlignmentEnd() <= center + extendedLength) recs.add(rec);
+				} else if (extendedLength > 0) {
+					if (fragStart <= winEnd && rec.getAlignmentStart() <= center + extendedLength) recs.add(rec);
+				} else if (fragStart <= winEnd) {
+					recs.add(rec);
+				}
 			}
+			
+			process(recs,seqName,begin,begin + width,len);
+			recs.clear();
+			begin += step;
+		}
+		recIterator.close();
+		if (duplicates != null) {
+			System.err.printf("Removed %d duplicate reads from %s%n", duplicates.getDuplicateCount(), seqName);
 		}
 	}
-
+	
+	private SAMRecord nextAccepted(CloseableIterator<SAMRecord> recIterator, DuplicateFilter duplicates) {
+		while (recIterator.hasNext()) {
+			SAMRecord rec = recIterator.next();
+			if (rec.getReadUnmappedFlag()) continue;
+			if (rec.getMappingQuality() < this.qualityCutoff) continue;
+			if (duplicates != null && !duplicates.accept(rec)) continue;
+			return rec;
+		}
+		return null;
+	}
+	
 	protected void setCurrentRefSeqName(String seqName) {
 		this.currentRefSeqName = seqName;
 	}
 
 	private void iterateAndFilterToList(
 			CloseableIterator<SAMRecord> recIterator,
+			ReadFragment fragment,
 			int windowCenter,
 			final List<SAMRecord> recs) {
 		int winStart = windowCenter - (windowSize / 2);
@@ -379,50 +653,10 @@ public abstract class SAMProcessor {
 			SAMRecord rec = recIterator.next();
 			if (rec.getMappingQuality() < this.qualityCutoff) continue;
 			
-			
-			if (extendedLength > 0) {
-				boolean onPositiveStrand = !rec.getReadNegativeStrandFlag();
-				
-				if (onPositiveStrand) {
-					if ((rec.getAlignmentStart() + extendedLength) < winStart) {
-						
-						/*System.err.printf("%d - %d on + strand cannot be extended to hit win start at %d%n", 
-								rec.getAlignmentStart(), 
-								rec.getAlignmentStart() + extendedLength,
-								winStart);*/
-						continue; // if you can't extend the read to hit the win start pos
-					}
-					if (rec.getAlignmentStart() > winEnd) {
-
-						/*
-						System.err.printf("%d - %d on + strand cannot be extended to hit win end at %d%n", 
-								rec.getAlignmentStart(), 
-								rec.getAlignmentStart() + extendedLength,
-								winEnd);*/
-						continue; // if the read doesn't start before the window ends
-					}
-				} else {
-					if (rec.getAlignmentEnd() < winStart) {
-						/*System.err.printf("%d - %d on - strand cannot be extended to hit win start at %d%n", 
-								rec.getAlignmentStart(), 
-								rec.getAlignmentStart() + extendedLength,
-								winStart);*/
-						continue; //if the read doesn't start before the window starts
-					}
-					if ((rec.getAlignmentEnd() - extendedLength) > winEnd) {
-						/*System.err.printf("%d - %d on - strand cannot be extended to hit win end at %d%n", 
-								rec.getAlignmentStart(), 
-								rec.getAlignmentStart() + extendedLength,
-								winEnd);*/
-						continue; // if the read can't be extended to hit inside the window (min coordinate smaller than window's end)
-					}
-				}
-				/*
-				System.err.printf("YES! Read %d - %d (%s strand) overlaps with the target range %d - %d%n",
-						rec.getAlignmentStart(), 
-						rec.getAlignmentStart() + extendedLength, 
-						rec.getReadNegativeStrandFlag() ? "-" : "+",
-						winStart, winEnd);*/
+			/* skip reads that can't be extended to reach the window */
+			if (extendedLength > 0 && 
+					(fragment.end(rec) < winStart || fragment.start(rec) > winEnd)) {
+				continue;
 			}
 			
 			recs.add(rec);
@@ -430,11 +664,11 @@ public abstract class SAMProcessor {
 		return;
 	}
 	
-	private CloseableIterator<SAMRecord> query(String seqName, int begin, int end) {
+	private CloseableIterator<SAMRecord> query(SAMFileReader reader, String seqName, int begin, int end) {
 		if (this.queryType == QueryType.CONTAINED) {
-			return inReader.queryContained(seqName, begin, end);			
+			return reader.queryContained(seqName, begin, end);			
 		} else {
-			return inReader.queryOverlapping(seqName, begin, end);
+			return reader.queryOverlapping(seqName, begin, end);
 		}
 	}
 
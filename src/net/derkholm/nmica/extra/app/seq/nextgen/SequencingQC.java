@@ -0,0 +1,221 @@
+package net.derkholm.nmica.extra.app.seq.nextgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import net.derkholm.nmica.build.NMExtraApp;
+import net.derkholm.nmica.build.VirtualMachine;
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakFormat;
+import net.derkholm.nmica.extra.peak.PeakIntervals;
+import net.derkholm.nmica.extra.seq.nextgen.CoverageHistogram;
+import net.derkholm.nmica.extra.seq.nextgen.DuplicateFilter;
+import net.derkholm.nmica.extra.seq.nextgen.FragmentSizeEstimator;
+import net.derkholm.nmica.extra.seq.nextgen.ReadFragment;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.biojava.bio.BioError;
+import org.biojava.bio.BioException;
+import org.bjv2.util.cli.App;
+import org.bjv2.util.cli.Option;
+
+/*
+ * Everything collected in one pass over coordinate sorted reads, into primitive arrays
+ * indexed by MAPQ, reference index and depth: mapping qualities, reads per reference,
+ * strands, duplicates, the 5' ends for the fragment length estimate,
+ * the coverage histogram and the reads in peaks.
+ *
+ * Mapped reads are counted for the read counts file if they pass -mappingQualityAbove
+ * and -maxDuplicates, as they are by ngdepth and the other tools that read the file.
+ * Duplicates are reported at -maxDuplicates 1 in any case.
+ */
+@NMExtraApp(launchName = "ngqc", vm = VirtualMachine.SERVER)
+@App(overview = "Quality control report of mapped reads (mapping qualities, read counts, strands, " +
+		"duplicates, fragment length, coverage and reads in peaks) made in one pass over a sorted SAM/BAM file. " +
+		"Also writes the read counts in the format of -readCounts.", generateStub = true)
+public class SequencingQC extends SAMProcessor {
+	private File readCountsOut;
+	private File peaksFile;
+	private PeakFormat peakFormat = PeakFormat.BED;
+	private int maxDepth = 1000;
+
+	@Override
+	@Option(help="Count reads with at least this mapping quality in the read counts (default=0)", optional=true)
+	public void setMappingQualityAbove(int quality) {
+		super.setMappingQualityAbove(quality);
+	}
+
+	@Override
+	@Option(help="Reference sequence names and lengths in a TSV formatted file " +
+			"(ignored, they are taken from the header of the reads)", optional=true)
+	public void setRefLengths(File f) {
+	}
+
+	@Option(help="Write the read counts to this file (TSV formatted, as accepted by -readCounts)", optional=true)
+	public void setReadCountsOut(File f) {
+		this.readCountsOut = f;
+	}
+
+	@Option(help="Peaks for the fraction of reads in peaks", optional=true)
+	public void setPeaks(File f) {
+		this.peaksFile = f;
+	}
+
+	@Option(help="Format of the peak file (default=bed)", optional=true)
+	public void setPeakFormat(PeakFormat format) {
+		this.peakFormat = format;
+	}
+
+	@Option(help="Depths from this up are counted together in the coverage histogram (default=1000)", optional=true)
+	public void setMaxDepth(int i) {
+		this.maxDepth = i;
+	}
+
+	/* the fragment length is estimated from the same pass as everything else */
+	@Override
+	public void estimateFragmentSizeIfRequested() {
+	}
+
+	public void main(String[] args) throws BioException, IOException {
+		PeakIntervals peaks = null;
+		if (peaksFile != null) {
+			peaks = new PeakIntervals(new BufferedReader(new FileReader(peaksFile)), peakFormat);
+			System.err.printf("Read %d peaks covering %d nucleotides%n", peaks.getPeakCount(), peaks.coveredLength());
+		}
+
+		initializeSAMReader();
+		SAMFileHeader header = getInputHeader();
+		if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+			System.err.println("Warning: the reads are not marked as sorted by coordinate, they need to be for duplicates and coverage");
+		}
+
+		List<SAMSequenceRecord> seqs = header.getSequenceDictionary().getSequences();
+		int refCount = seqs.size();
+		String[] names = new String[refCount];
+		int[] lengths = new int[refCount];
+		FragmentSizeEstimator estimator = new FragmentSizeEstimator(minFragmentSize, maxFragmentSize);
+		for (int i = 0; i < refCount; i++) {
+			names[i] = seqs.get(i).getSequenceName();
+			lengths[i] = seqs.get(i).getSequenceLength();
+			estimator.addReference(names[i], lengths[i]);
+		}
+
+		long[] mapqs = new long[256];
+		long[] mappedCounts = new long[refCount];
+		long[] counts = new long[refCount];
+		boolean[] covered = new boolean[refCount];
+		long total = 0, unmapped = 0, plus = 0, minus = 0, inPeaks = 0;
+
+		DuplicateFilter duplicates = new DuplicateFilter(1);
+		DuplicateFilter countFilter = duplicateFilter();
+		CoverageHistogram coverage = new CoverageHistogram(maxDepth, extendedLength);
+		ReadFragment fragment = null;
+		int currentRef = -1, lastStart = 0;
+
+		for (SAMRecord rec : sequentialRecords()) {
+			if (++total % 1000000 == 0) {
+				System.err.printf("Read %d reads%n", total);
+			}
+			Integer refIndex = rec.getReferenceIndex();
+			if (rec.getReadUnmappedFlag() || refIndex == null || refIndex < 0) {
+				unmapped++;
+				continue;
+			}
+			int ref = refIndex;
+			int start = rec.getAlignmentStart();
+			if (ref != currentRef) {
+				if (ref < currentRef) {
+					throw new BioError("The reads need to be sorted by coordinate (" + names[ref] + " after " + names[currentRef] + ")");
+				}
+				coverage.beginReference(lengths[ref]);
+				fragment = ReadFragment.extendedTo(extendedLength, lengths[ref]);
+				covered[ref] = true;
+				currentRef = ref;
+			} else if (start < lastStart) {
+				throw new BioError("The reads need to be sorted by coordinate (" + names[ref] + ":" + start + " after " + lastStart + ")");
+			}
+			lastStart = start;
+
+			int mapq = rec.getMappingQuality();
+			mapqs[mapq & 0xff]++;
+			mappedCounts[ref]++;
+			duplicates.accept(rec);
+
+			if (mapq < qualityCutoff) continue;
+			if (rec.getReadNegativeStrandFlag()) {
+				minus++;
+			} else {
+				plus++;
+			}
+			estimator.add(ref, rec);
+
+			if (countFilter != null && !countFilter.accept(rec)) continue;
+			counts[ref]++;
+			coverage.add(start, fragment.start(rec), fragment.end(rec));
+			if (peaks != null && peaks.overlaps(names[ref], start - 1, rec.getAlignmentEnd())) {
+				inPeaks++;
+			}
+		}
+		coverage.endReference();
+		for (int i = 0; i < refCount; i++) {
+			if (!covered[i]) coverage.addUncovered(lengths[i]);
+		}
+
+		long mapped = total - unmapped;
+		long counted = 0;
+		for (long c : counts) counted += c;
+
+		System.err.println("Estimating the fragment length...");
+		int fragmentSize = estimator.estimate(threads);
+
+		PrintStream out = System.out;
+		out.printf("total_reads\t%d%n", total);
+		out.printf("unmapped_reads\t%d%n", unmapped);
+		out.printf("mapped_reads\t%d%n", mapped);
+		out.printf("duplicate_reads\t%d%n", duplicates.getDuplicateCount());
+		out.printf("duplicate_rate\t%.4f%n", fraction(duplicates.getDuplicateCount(), mapped));
+		out.printf("plus_strand_reads\t%d%n", plus);
+		out.printf("minus_strand_reads\t%d%n", minus);
+		out.printf("plus_strand_fraction\t%.4f%n", fraction(plus, plus + minus));
+		out.printf("counted_reads\t%d%n", counted);
+		out.printf("fragment_length\t%d%n", fragmentSize);
+		if (peaks != null) {
+			out.printf("reads_in_peaks\t%d%n", inPeaks);
+			out.printf("fraction_of_reads_in_peaks\t%.4f%n", fraction(inPeaks, counted));
+		}
+
+		out.println("#mapq\treads");
+		for (int q = 0; q < mapqs.length; q++) {
+			if (mapqs[q] > 0) out.printf("%d\t%d%n", q, mapqs[q]);
+		}
+
+		out.println("#reference\tmapped_reads\tcounted_reads");
+		for (int i = 0; i < refCount; i++) {
+			out.printf("%s\t%d\t%d%n", names[i], mappedCounts[i], counts[i]);
+		}
+
+		out.printf("#depth\tpositions (extended to %d, the last row counts depths >= %d)%n", extendedLength, maxDepth);
+		long[] hist = coverage.getHistogram();
+		for (int d = 0; d < hist.length; d++) {
+			if (hist[d] > 0) out.printf("%d\t%d%n", d, hist[d]);
+		}
+		out.flush();
+
+		if (readCountsOut != null) {
+			PrintStream countsOut = new PrintStream(readCountsOut);
+			for (int i = 0; i < refCount; i++) {
+				countsOut.printf("%s\t%d%n", names[i], counts[i]);
+			}
+			countsOut.close();
+		}
+	}
+
+	private static double fraction(long n, long total) {
+		return total > 0 ? (double) n / total : 0.0;
+	}
+}
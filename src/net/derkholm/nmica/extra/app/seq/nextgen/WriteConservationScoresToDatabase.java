@@ -1,18 +1,22 @@
 package net.derkholm.nmica.extra.app.seq.nextgen;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -20,6 +24,10 @@ import java.util.zip.GZIPInputStream;
 import net.derkholm.nmica.build.NMExtraApp;
 import net.derkholm.nmica.build.VirtualMachine;
 import net.derkholm.nmica.extra.app.seq.nextgen.CountDepths.Format;
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrackWriter;
+import net.derkholm.nmica.extra.seq.nextgen.WiggleParser;
+import net.derkholm.nmica.extra.seq.nextgen.ZoomTrackWriter;
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrack.Encoding;
 
 import org.biojava.bio.BioException;
 import org.biojava.utils.JDBCPooledDataSource;
@@ -27,7 +35,7 @@ import org.bjv2.util.cli.App;
 import org.bjv2.util.cli.Option;
 
 @NMExtraApp(launchName = "ngconservation", vm = VirtualMachine.SERVER)
-@App(overview = "Write conservation scores to a database", generateStub = true)
+@App(overview = "Write conservation scores (fixedStep / variableStep wiggle or bedGraph) to a database or a binary track", generateStub = true)
 public class WriteConservationScoresToDatabase {
 
 	public static PreparedStatement insertDepthEntryStatement(Connection conn)
@@ -44,8 +52,23 @@ public class WriteConservationScoresToDatabase {
 	private String database;
 	private Connection connection;
 	private HashMap<String, Integer> refIds;
+	private int batchSize = 1000;
+	private int commitInterval = 100000;
+	private boolean loadInfile = false;
+	private File zoomFile;
+	private int[] zoomBinSizes = ZoomTrackWriter.DEFAULT_BIN_SIZES;
+	private Format format = Format.MYSQL;
+	private File outputFile;
+	private int threads = 1;
 
-	@Option(help="Input files. Files that do not fit the pattern ^chr(.*).data.gz will be ignored.")
+	private BulkInserter inserter;
+	private DepthTrackWriter trackWriter;
+	private ZoomTrackWriter zoomWriter;
+	private Map<String, DepthTrackWriter.ValueBlock> valueBlocks = new HashMap<String, DepthTrackWriter.ValueBlock>();
+	private Map<String, Integer> firstIds = new HashMap<String, Integer>();
+
+	@Option(help="Input files (optionally gzipped). " +
+			"The chromosome is read from the files, files named chr*_random.data.gz are ignored.")
 	public void setConservationScores(File[] f) {
 		this.files = f;
 	}
@@ -57,32 +80,84 @@ public class WriteConservationScoresToDatabase {
 	}
 
 
-	@Option(help="Database host")
+	@Option(help = "Output format: mysql|sqlite|hsqldb|binary (default=mysql)", optional=true)
+	public void setFormat(Format format) {
+		if (format == Format.TSV) {
+			System.err.println("-format tsv is not supported for conservation scores");
+			System.exit(1);
+		}
+		this.format = format;
+	}
+
+	@Option(help = "Output file (for the sqlite, hsqldb and binary formats)", optional=true)
+	public void setOut(File f) {
+		this.outputFile = f;
+	}
+
+	@Option(help="Number of files loaded concurrently (default = 1)", optional = true)
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			System.err.println("-threads needs to be >= 1");
+			System.exit(1);
+		}
+		this.threads = threads;
+	}
+
+	@Option(help = "Rows per insert batch (default=1000)", optional=true)
+	public void setBatchSize(int i) {
+		this.batchSize = i;
+	}
+
+	@Option(help = "Rows per transaction (default=100000)", optional=true)
+	public void setCommitInterval(int i) {
+		this.commitInterval = i;
+	}
+
+	@Option(help = "Load rows with LOAD DATA LOCAL INFILE (default=false)", optional=true)
+	public void setLoadInfile(boolean b) {
+		this.loadInfile = b;
+	}
+
+	@Option(help = "Output file for binned conservation score summaries at several resolutions", optional=true)
+	public void setZoomOut(File f) {
+		this.zoomFile = f;
+	}
+
+	@Option(help = "Bin sizes of the conservation score summaries (default=10,100,1000,10000)", optional=true)
+	public void setZoomBinSizes(int[] sizes) {
+		this.zoomBinSizes = sizes;
+	}
+
+	@Option(help="Database host", optional=true)
 	public void setHost(String str) {
 		this.dbHost = str;
 	}
 
-	@Option(help="Database username")
+	@Option(help="Database username", optional=true)
 	public void setUser(String str) {
 		this.dbUser = str;
 	}
 
-	@Option(help="Database password")
+	@Option(help="Database password", optional=true)
 	public void setPassword(String str) {
 		this.dbPassword = str;
 	}
 
-	@Option(help="Database schema name")
+	@Option(help="Database schema name", optional=true)
 	public void setDatabase(String str) {
 		this.database = str;
 	}
 
 	private Connection connection() throws SQLException, Exception {
 		if (this.connection == null) {
-			this.connection = WriteConservationScoresToDatabase.connection(this.dbHost,
-																		   this.database,
-																		   this.dbUser,
-																		   this.dbPassword);
+			if (this.format == Format.MYSQL) {
+				this.connection = WriteConservationScoresToDatabase.connection(this.dbHost,
+																			   this.database,
+																			   this.dbUser,
+																			   this.dbPassword);
+			} else {
+				this.connection = CountDepths.connection(this.format, this.outputFile);
+			}
 		}
 		return this.connection;
 	}
@@ -103,81 +178,187 @@ public class WriteConservationScoresToDatabase {
 
 	public void main(String[] args) throws SQLException, Exception {
 		String chromoName = null;
-		int primaryId = 1;
 		if (System.getenv().get("LSB_JOBINDEX") != null) {
 			int index = Integer.parseInt(System.getenv().get("LSB_JOBINDEX")) - 1;
 			chromoName = this.refSeqNames.get(index);
-			System.err.println("The task is being run as part of an LSF job array. Will only calculate depth for " + chromoName);
+			System.err.println("The task is being run as part of an LSF job array. Will only load scores for " + chromoName);
+		}
 
-			for (String str : this.refSeqNames) {
-				if (str.equals(chromoName)) break;
+		/* ids are position based so that they don't depend on the order the files are loaded in */
+		int primaryId = 1;
+		for (String str : this.refSeqNames) {
+			this.firstIds.put(str, primaryId);
+			primaryId += this.refSeqLengths.get(str) + 1;
+		}
 
-				primaryId += this.refSeqLengths.get(str)+1;
-			}
+		if (this.format == Format.BINARY) {
+			this.trackWriter = new DepthTrackWriter(this.outputFile, Encoding.FLOAT);
+		} else {
+			this.inserter = new BulkInserter(
+					this.connection(), 
+					this.format, 
+					"conservation", 
+					4, 
+					this.batchSize, 
+					this.commitInterval, 
+					this.loadInfile);
+		}
+		if (this.zoomFile != null) {
+			this.zoomWriter = new ZoomTrackWriter(this.zoomFile, this.zoomBinSizes);
 		}
 
-		Pattern headerPattern = Pattern.compile("^fixedStep chrom=chr(\\S)+ start=(\\d+) step=(\\d+)");
-		PreparedStatement insertStatement = WriteConservationScoresToDatabase.insertDepthEntryStatement(this.connection());
-		for (File f : this.files) {
-			System.err.printf("Handling file %s...%n",f.getPath());
-			String chrName = null;
+		ExecutorService threadPool = Executors.newFixedThreadPool(this.threads);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (final File f : this.files) {
 			Matcher randomM  = Pattern.compile("^chr(.*)\\_random.data.gz").matcher(f.getName());
 			Matcher m = Pattern.compile("^chr(.*).data.gz").matcher(f.getName());
 
 			if (randomM.find()) {
 				System.err.printf("Ignoring file %s%n",f.getName());
 				continue;
-			} else if (m.find()) {
-				chrName = m.group(1);
-			}
-			if (refSeqLengths.get(chrName) == null) {
-				System.err.printf("No chromosome with name %s. Will ignore file.%n", refSeqLengths);
-				System.exit(1);
+			} else if (m.find() && chromoName != null && !m.group(1).equals(chromoName)) {
+				continue;
 			}
-			int refId = getRefId(chrName);
-
-			BufferedReader in = new BufferedReader(
-									new InputStreamReader(
-										new GZIPInputStream(
-											new FileInputStream(f))));
-			String line = null;
-
-			int step = 1;
-			int i = 1; //positions start from 1 as this database is made for a DAS data source
-			while ((line = in.readLine()) != null) {
-				Matcher headerM = headerPattern.matcher(line);
-
-				if (headerM.find()) {
-					//System.err.printf("Found header line:%s%n",line);
-					if (!headerM.group(1).equals(chrName)) {
-						System.err.printf(
-							"WARNING! Chromosome name %s doesn't match expected value (%s)!\n",headerM.group(1),chrName);
+
+			futures.add(threadPool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					System.err.printf("Handling file %s...%n",f.getPath());
+					InputStream in = new FileInputStream(f);
+					if (f.getName().endsWith(".gz")) {
+						in = new GZIPInputStream(in, 1 << 16);
+					}
+					ScoreLoader loader = new ScoreLoader();
+					try {
+						new WiggleParser(in, loader).parse();
+					} finally {
+						in.close();
 					}
-					i = Integer.parseInt(headerM.group(2)); // the start position
-					step = Integer.parseInt(headerM.group(3));
-					continue;
+					loader.finish();
+					return null;
 				}
+			}));
+		}
 
-				double consScore = Double.parseDouble(line);
-				insertStatement.setInt(1, primaryId++);
-				insertStatement.setInt(2, refId);
-				insertStatement.setInt(3, i);
-				insertStatement.setDouble(4, (double) consScore);
-				insertStatement.addBatch();
+		try {
+			for (Future<Object> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			throw new BioException(e.getCause());
+		} finally {
+			threadPool.shutdown();
+		}
+
+		if (this.inserter != null) {
+			this.inserter.close();
+		}
+		if (this.trackWriter != null) {
+			this.trackWriter.close();
+		}
+		if (this.zoomWriter != null) {
+			this.zoomWriter.close();
+		}
+	}
+
+	/* reference sequence names in the files may or may not have the chr prefix */
+	private String refSeqName(String chrom) throws BioException {
+		if (this.refSeqLengths.containsKey(chrom)) {
+			return chrom;
+		} else if (chrom.startsWith("chr") && this.refSeqLengths.containsKey(chrom.substring(3))) {
+			return chrom.substring(3);
+		}
+		throw new BioException("No reference sequence with name " + chrom);
+	}
+
+	private synchronized DepthTrackWriter.ValueBlock valueBlock(String name) throws IOException {
+		DepthTrackWriter.ValueBlock block = this.valueBlocks.get(name);
+		if (block == null) {
+			block = this.trackWriter.reserveValues(name, this.refSeqLengths.get(name));
+			this.valueBlocks.put(name, block);
+		}
+		return block;
+	}
+
+	private synchronized void insertRows(int refId, int firstId, int[] positions, float[] scores, int n) throws SQLException {
+		for (int r = 0; r < n; r++) {
+			this.inserter.setInt(1, firstId + positions[r] - 1);
+			this.inserter.setInt(2, refId);
+			this.inserter.setInt(3, positions[r]);
+			this.inserter.setDouble(4, scores[r]);
+			this.inserter.endRow();
+		}
+	}
+
+	/* 
+	 * Scores of one file, buffered in primitive arrays and handed to the shared inserter a batch at a time 
+	 * (or written straight into the reserved block of the binary track).
+	 */
+	private class ScoreLoader implements WiggleParser.Handler {
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		private final int[] positions = new int[BUFFER_SIZE];
+		private final float[] scores = new float[BUFFER_SIZE];
+		private int buffered = 0;
+
+		private String name;
+		private int refId, firstId, length;
+		private DepthTrackWriter.ValueBlock block;
+		private ZoomTrackWriter.Reference zoomRef;
 
-				i += step;
+		public void chromosome(String chrom) throws Exception {
+			finish();
+			this.name = refSeqName(chrom);
+			this.refId = getRefId(name);
+			this.firstId = firstIds.get(name);
+			this.length = refSeqLengths.get(name);
+			if (trackWriter != null) {
+				this.block = valueBlock(name);
+			}
+			if (zoomWriter != null) {
+				this.zoomRef = zoomWriter.beginReference(name, length);
+			}
+		}
 
-				if ((i % 1000) == 0) {
-					insertStatement.executeBatch();
-					insertStatement.clearBatch();
+		public void value(int start, int span, double value) throws Exception {
+			if (name == null) {
+				throw new BioException("Score given before a chromosome was declared");
+			}
+			int end = Math.min(start + span, length + 1);
+			if (block != null) {
+				block.set(start - 1, end - 1, (float) value);
+			} else {
+				for (int pos = start; pos < end; pos++) {
+					positions[buffered] = pos; //positions start from 1 as this database is made for a DAS data source
+					scores[buffered++] = (float) value;
+					if (buffered == BUFFER_SIZE) flush();
 				}
+			}
+			if (zoomRef != null && start <= length) {
+				zoomRef.addRun(start - 1, end - 1, value);
+			}
+		}
 
+		private void flush() throws SQLException {
+			if (buffered > 0) {
+				insertRows(refId, firstId, positions, scores, buffered);
+				buffered = 0;
+			}
+		}
+
+		void finish() throws Exception {
+			flush();
+			if (block != null) {
+				block.finish();
+				block = null;
+			}
+			if (zoomRef != null) {
+				zoomRef.end();
+				zoomRef = null;
 			}
 		}
-		insertStatement.execute();
 	}
 
-	public int getRefId(String seqName) throws Exception {
+	public synchronized int getRefId(String seqName) throws Exception {
 		if (this.refIds == null) {
 			this.refIds = new HashMap<String, Integer>();
 
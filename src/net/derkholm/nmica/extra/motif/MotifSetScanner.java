@@ -0,0 +1,238 @@
+package net.derkholm.nmica.extra.motif;
+
+import java.util.Iterator;
+
+import net.derkholm.nmica.motif.Motif;
+import net.derkholm.nmica.seq.WmTools;
+
+import org.biojava.bio.dist.Distribution;
+import org.biojava.bio.dp.WeightMatrix;
+import org.biojava.bio.symbol.AlphabetIndex;
+import org.biojava.bio.symbol.AtomicSymbol;
+import org.biojava.bio.symbol.FiniteAlphabet;
+import org.biojava.bio.symbol.Symbol;
+import org.biojava.bio.symbol.SymbolList;
+
+/*
+ * Log-odds (bits) scanner for a set of motifs over sequences encoded as bytes.
+ *
+ * The weight matrices are flattened into one double[] table, column by column: for each column
+ * the scores of the forward matrix indexed by symbol code, followed by those of its reverse complement.
+ * Both strands are scored from the same symbol reads in one pass, and gaps and ambiguity symbols
+ * have a code of their own that scores -infinity, so there is no branch in the inner loop.
+ *
+ * Scores are relative to the best possible score of the motif (0 for the best matching word),
+ * as those of nmscan. Instances are immutable and can be shared by threads.
+ */
+public class MotifSetScanner {
+	private static final double LOG_2 = Math.log(2.0);
+
+	public static interface HitHandler {
+		public void hit(int motif, int pos, boolean reverse, double score);
+	}
+
+	private final AlphabetIndex index;
+	private final int rows;
+	private final byte ambiguous;
+	private final int[] lengths;
+	private final int[] offsets;
+	private final double[] maxScores;
+	private final double[] table;
+
+	public MotifSetScanner(Motif[] motifs, AlphabetIndex index) throws Exception {
+		this.index = index;
+		this.ambiguous = (byte) index.getAlphabet().size();
+		this.rows = ambiguous + 1;
+		this.lengths = new int[motifs.length];
+		this.offsets = new int[motifs.length];
+		this.maxScores = new double[motifs.length];
+
+		int size = 0;
+		for (int m = 0; m < motifs.length; m++) {
+			lengths[m] = motifs[m].getWeightMatrix().columns();
+			offsets[m] = size;
+			size += 2 * rows * lengths[m];
+		}
+		this.table = new double[size];
+
+		for (int m = 0; m < motifs.length; m++) {
+			WeightMatrix wm = motifs[m].getWeightMatrix();
+			fill(wm, offsets[m]);
+			fill(WmTools.reverseComplement(wm), offsets[m] + rows);
+			maxScores[m] = maxScore(offsets[m], lengths[m]);
+		}
+	}
+
+	private void fill(WeightMatrix wm, int offset) throws Exception {
+		FiniteAlphabet alpha = (FiniteAlphabet) wm.getAlphabet();
+		for (int c = 0; c < wm.columns(); ++c) {
+			Distribution wmCol = wm.getColumn(c);
+			int t = offset + 2 * rows * c;
+			for (int i = 0; i < rows; i++) {
+				table[t + i] = Double.NEGATIVE_INFINITY;
+			}
+			for (Iterator<?> si = alpha.iterator(); si.hasNext(); ) {
+				Symbol s = (Symbol) si.next();
+				table[t + index.indexForSymbol(s)] = Math.log(wmCol.getWeight(s)) / LOG_2;
+			}
+		}
+	}
+
+	private double maxScore(int offset, int length) {
+		double wmScore = 0.0;
+		for (int c = 0; c < length; ++c) {
+			double colScore = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < ambiguous; ++i) {
+				colScore = Math.max(colScore, table[offset + 2 * rows * c + i]);
+			}
+			wmScore += colScore;
+		}
+		return wmScore;
+	}
+
+	public int getMotifCount() {
+		return lengths.length;
+	}
+
+	public int length(int motif) {
+		return lengths[motif];
+	}
+
+	/* number of symbols in the alphabet, codes 0 .. size - 1 (the next code is for ambiguity symbols) */
+	public int getAlphabetSize() {
+		return ambiguous;
+	}
+
+	/* the score in bits of a symbol code in a column of the weight matrix or of its reverse complement */
+	public double columnScore(int motif, int column, int symbol, boolean reverse) {
+		return table[offsets[motif] + 2 * rows * column + (reverse ? rows : 0) + symbol];
+	}
+
+	/* number of windows of the motif without ambiguity symbols (on one strand) */
+	public int windowCount(int motif, byte[] seq) {
+		int len = lengths[motif];
+		int windows = 0, run = 0;
+		for (int i = 0; i < seq.length; i++) {
+			run = seq[i] == ambiguous ? 0 : run + 1;
+			if (run >= len) windows++;
+		}
+		return windows;
+	}
+
+	/* the best possible score of the motif in bits, which the scores are relative to */
+	public double getMaxScore(int motif) {
+		return maxScores[motif];
+	}
+
+	/* symbol codes of a sequence (position i at index i - 1), gaps and ambiguity symbols all get the same code */
+	public byte[] encode(SymbolList sl) throws Exception {
+		byte[] bsl = new byte[sl.length()];
+		for (int i = 1; i <= sl.length(); ++i) {
+			Symbol s = sl.symbolAt(i);
+			if (s instanceof AtomicSymbol) {
+				bsl[i - 1] = (byte) index.indexForSymbol(s);
+			} else {
+				bsl[i - 1] = ambiguous;
+			}
+		}
+		return bsl;
+	}
+
+	/* the best score of the motif on either strand, -infinity if there is no window without ambiguity */
+	public double maxScore(int motif, byte[] seq) {
+		final double[] table = this.table;
+		final int rows = this.rows, stride = 2 * rows;
+		final int len = lengths[motif], off = offsets[motif];
+		final int pairs = len & ~1;
+
+		double max = Double.NEGATIVE_INFINITY;
+		for (int p = 0, last = seq.length - len; p <= last; ++p) {
+			double f0 = 0.0, f1 = 0.0, r0 = 0.0, r1 = 0.0;
+			int t = off, c = 0;
+			for (; c < pairs; c += 2, t += 2 * stride) {
+				int b0 = seq[p + c], b1 = seq[p + c + 1];
+				f0 += table[t + b0];
+				r0 += table[t + rows + b0];
+				f1 += table[t + stride + b1];
+				r1 += table[t + stride + rows + b1];
+			}
+			if (c < len) {
+				int b = seq[p + c];
+				f0 += table[t + b];
+				r0 += table[t + rows + b];
+			}
+			double f = f0 + f1, r = r0 + r1;
+			if (f > max) max = f;
+			if (r > max) max = r;
+		}
+		return max - maxScores[motif];
+	}
+
+	/* maxScore() of all the motifs, each motif table in turn over the (cached) sequence */
+	public void maxScores(byte[] seq, double[] scores) {
+		for (int m = 0; m < lengths.length; m++) {
+			scores[m] = maxScore(m, seq);
+		}
+	}
+
+	/* true if the motif scores at least threshold somewhere on either strand (stops at the first such window) */
+	public boolean hasHit(int motif, byte[] seq, double threshold) {
+		final double[] table = this.table;
+		final int rows = this.rows, stride = 2 * rows;
+		final int len = lengths[motif], off = offsets[motif];
+		final int pairs = len & ~1;
+		final double target = threshold + maxScores[motif];
+
+		for (int p = 0, last = seq.length - len; p <= last; ++p) {
+			double f0 = 0.0, f1 = 0.0, r0 = 0.0, r1 = 0.0;
+			int t = off, c = 0;
+			for (; c < pairs; c += 2, t += 2 * stride) {
+				int b0 = seq[p + c], b1 = seq[p + c + 1];
+				f0 += table[t + b0];
+				r0 += table[t + rows + b0];
+				f1 += table[t + stride + b1];
+				r1 += table[t + stride + rows + b1];
+			}
+			if (c < len) {
+				int b = seq[p + c];
+				f0 += table[t + b];
+				r0 += table[t + rows + b];
+			}
+			if (f0 + f1 >= target || r0 + r1 >= target) return true;
+		}
+		return false;
+	}
+
+	/* every window of every motif scoring at least thresholds[motif], in order of motif and position */
+	public void hits(byte[] seq, double[] thresholds, HitHandler handler) {
+		final double[] table = this.table;
+		final int rows = this.rows, stride = 2 * rows;
+
+		for (int m = 0; m < lengths.length; m++) {
+			final int len = lengths[m], off = offsets[m];
+			final int pairs = len & ~1;
+			final double max = maxScores[m];
+			final double target = thresholds[m] + max;
+
+			for (int p = 0, last = seq.length - len; p <= last; ++p) {
+				double f0 = 0.0, f1 = 0.0, r0 = 0.0, r1 = 0.0;
+				int t = off, c = 0;
+				for (; c < pairs; c += 2, t += 2 * stride) {
+					int b0 = seq[p + c], b1 = seq[p + c + 1];
+					f0 += table[t + b0];
+					r0 += table[t + rows + b0];
+					f1 += table[t + stride + b1];
+					r1 += table[t + stride + rows + b1];
+				}
+				if (c < len) {
+					int b = seq[p + c];
+					f0 += table[t + b];
+					r0 += table[t + rows + b];
+				}
+				double f = f0 + f1, r = r0 + r1;
+				if (f >= target) handler.hit(m, p, false, f - max);
+				if (r >= target) handler.hit(m, p, true, r - max);
+			}
+		}
+	}
+}
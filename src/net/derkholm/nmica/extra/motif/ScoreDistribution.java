@@ -0,0 +1,199 @@
+package net.derkholm.nmica.extra.motif;
+
+import java.util.Arrays;
+
+/*
+ * The distribution of the score of a motif (one strand) in a window of random sequence, computed
+ * exactly by dynamic programming over the columns, with the column scores rounded to a resolution
+ * (in bits). The tail probabilities are thus within (motif length * resolution / 2) bits of the exact ones.
+ *
+ * The background is a first order Markov chain over the symbol codes of the scanner (initial
+ * distribution + transitions), so the DP keeps the distribution of the score so far for each last symbol.
+ * A zero order background is one with all the transition rows equal to the initial distribution.
+ * Symbols that have a weight of zero in a column score -infinity and only take probability mass out.
+ */
+public class ScoreDistribution {
+	public static final double DEFAULT_RESOLUTION = 0.01;
+
+	private final double resolution;
+	private final double maxScore;
+	private final long minBin;
+	/* tail[i] = P(score >= (minBin + i) * resolution) */
+	private final double[] tail;
+	/* the last bin with a non-zero tail */
+	private final int lastBin;
+
+	public ScoreDistribution(
+			MotifSetScanner scanner,
+			int motif,
+			boolean reverse,
+			double[] initial,
+			double[][] transition,
+			double resolution) {
+		this.resolution = resolution;
+		this.maxScore = scanner.getMaxScore(motif);
+
+		int length = scanner.length(motif);
+		int symbols = scanner.getAlphabetSize();
+		long[][] bins = new long[length][symbols];
+		boolean[][] allowed = new boolean[length][symbols];
+		long[] colMin = new long[length];
+		long min = 0, max = 0;
+		for (int c = 0; c < length; c++) {
+			long lo = Long.MAX_VALUE, hi = Long.MIN_VALUE;
+			for (int s = 0; s < symbols; s++) {
+				double score = scanner.columnScore(motif, c, s, reverse);
+				if (Double.isInfinite(score)) continue;
+				allowed[c][s] = true;
+				bins[c][s] = Math.round(score / resolution);
+				lo = Math.min(lo, bins[c][s]);
+				hi = Math.max(hi, bins[c][s]);
+			}
+			if (lo > hi) {
+				/* no symbol can score in this column */
+				lo = hi = 0;
+			}
+			colMin[c] = lo;
+			min += lo;
+			max += hi;
+		}
+		this.minBin = min;
+
+		/* dist[s][i]: P(score of the columns so far = colMin sum + i, last symbol = s) */
+		int width = (int) (max - min) + 1;
+		double[][] dist = new double[symbols][width], next = new double[symbols][width];
+		int span = 0;
+		for (int c = 0; c < length; c++) {
+			int newSpan = span;
+			for (int s = 0; s < symbols; s++) {
+				Arrays.fill(next[s], 0, width, 0.0);
+				if (!allowed[c][s]) continue;
+				int shift = (int) (bins[c][s] - colMin[c]);
+				double[] to = next[s];
+				if (c == 0) {
+					to[shift] = initial[s];
+				} else {
+					for (int prev = 0; prev < symbols; prev++) {
+						double p = transition[prev][s];
+						if (p <= 0.0) continue;
+						double[] from = dist[prev];
+						for (int i = 0; i <= span; i++) {
+							to[i + shift] += p * from[i];
+						}
+					}
+				}
+				newSpan = Math.max(newSpan, span + shift);
+			}
+			double[][] tmp = dist;
+			dist = next;
+			next = tmp;
+			span = newSpan;
+		}
+
+		this.tail = new double[width + 1];
+		for (int i = width - 1; i >= 0; i--) {
+			double p = 0.0;
+			for (int s = 0; s < symbols; s++) {
+				p += dist[s][i];
+			}
+			tail[i] = tail[i + 1] + p;
+		}
+		int last = 0;
+		for (int i = width - 1; i > 0; i--) {
+			if (tail[i] > 0.0) {
+				last = i;
+				break;
+			}
+		}
+		this.lastBin = last;
+	}
+
+	/*
+	 * P(window score >= score), score relative to the best possible score as those of the scanner.
+	 * The exact score of a window can be up to (motif length / 2) bins off the sum of the rounded
+	 * column scores the distribution is over, so scores past the last bin with any probability
+	 * get the tail of that bin, not 0.
+	 */
+	public double tail(double score) {
+		if (score == Double.NEGATIVE_INFINITY) return tail[0];
+		long bin = Math.round((score + maxScore) / resolution) - minBin;
+		if (bin <= 0) return tail[0];
+		if (bin >= lastBin) return tail[lastBin];
+		return tail[(int) bin];
+	}
+
+	/*
+	 * P(max score >= score) over the given number of windows on both strands,
+	 * taking the windows as independent: 1 - ((1 - forward tail) (1 - reverse tail))^windows
+	 */
+	public static double maxScoreTail(ScoreDistribution forward, ScoreDistribution reverse, double score, int windows) {
+		if (windows <= 0) return 1.0;
+		double pf = Math.min(1.0, forward.tail(score));
+		double pr = Math.min(1.0, reverse.tail(score));
+		if (pf >= 1.0 || pr >= 1.0) return 1.0;
+		return -Math.expm1(windows * (Math.log1p(-pf) + Math.log1p(-pr)));
+	}
+
+	/*
+	 * Initial distribution (row 0) and transitions (rows 1 ..) of a background of order 0 or 1
+	 * estimated from the symbol codes of sequences, ambiguity codes (>= symbols) break the chain.
+	 * Counts start from a pseudocount of 1.
+	 */
+	public static class BackgroundCounts {
+		private final int symbols;
+		private final int order;
+		private final long[] counts;
+		private final long[][] pairs;
+
+		public BackgroundCounts(int symbols, int order) {
+			if (order < 0 || order > 1) {
+				throw new IllegalArgumentException("Background order needs to be 0 or 1");
+			}
+			this.symbols = symbols;
+			this.order = order;
+			this.counts = new long[symbols];
+			this.pairs = new long[symbols][symbols];
+		}
+
+		public void add(byte[] seq) {
+			int prev = -1;
+			for (byte b : seq) {
+				if (b < 0 || b >= symbols) {
+					prev = -1;
+					continue;
+				}
+				counts[b]++;
+				if (prev >= 0) pairs[prev][b]++;
+				prev = b;
+			}
+		}
+
+		public double[] initial() {
+			double total = 0.0;
+			for (long c : counts) total += c + 1;
+			double[] p = new double[symbols];
+			for (int s = 0; s < symbols; s++) {
+				p[s] = (counts[s] + 1) / total;
+			}
+			return p;
+		}
+
+		public double[][] transition() {
+			double[][] t = new double[symbols][];
+			double[] initial = initial();
+			for (int a = 0; a < symbols; a++) {
+				if (order == 0) {
+					t[a] = initial;
+					continue;
+				}
+				double total = 0.0;
+				for (long c : pairs[a]) total += c + 1;
+				t[a] = new double[symbols];
+				for (int b = 0; b < symbols; b++) {
+					t[a][b] = (pairs[a][b] + 1) / total;
+				}
+			}
+			return t;
+		}
+	}
+}
@@ -4,10 +4,17 @@ public class Peak {
 	private String refSeqName;
 	private int min;
 	private int max;
+	private int summit;
+	private double depth;
+	private double controlDepth;
+	private double pvalue = 1.0;
+	private double fdr = Double.NaN;
 
 	public Peak(String refSeq, int i) {
 		this.refSeqName = refSeq;
 		this.min = i;
+		this.max = i;
+		this.summit = i;
 	}
 
 	public String getRefSeqName() {
@@ -33,4 +40,44 @@ public class Peak {
 	public void setMax(int max) {
 		this.max = max;
 	}
-}
\ No newline at end of file
+
+	public int getSummit() {
+		return summit;
+	}
+
+	public void setSummit(int summit) {
+		this.summit = summit;
+	}
+
+	public double getDepth() {
+		return depth;
+	}
+
+	public void setDepth(double depth) {
+		this.depth = depth;
+	}
+
+	public double getControlDepth() {
+		return controlDepth;
+	}
+
+	public void setControlDepth(double controlDepth) {
+		this.controlDepth = controlDepth;
+	}
+
+	public double getPvalue() {
+		return pvalue;
+	}
+
+	public void setPvalue(double pvalue) {
+		this.pvalue = pvalue;
+	}
+
+	public double getFdr() {
+		return fdr;
+	}
+
+	public void setFdr(double fdr) {
+		this.fdr = fdr;
+	}
+}
@@ -0,0 +1,101 @@
+package net.derkholm.nmica.extra.peak;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakFormat;
+
+/*
+ * The regions covered by a set of peaks, per reference sequence as sorted, merged
+ * [start, end) intervals in primitive arrays, for overlap queries by binary search.
+ */
+public class PeakIntervals {
+	private final Map<String, int[]> starts = new HashMap<String, int[]>();
+	private final Map<String, int[]> ends = new HashMap<String, int[]>();
+	private int peakCount = 0;
+
+	public PeakIntervals(BufferedReader peaks, PeakFormat format) throws IOException {
+		Map<String, long[]> intervals = new HashMap<String, long[]>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+
+		PeakReader reader = new PeakReader(peaks, format);
+		while (reader.next()) {
+			long[] ivs = intervals.get(reader.seqName);
+			int n = counts.containsKey(reader.seqName) ? counts.get(reader.seqName) : 0;
+			if (ivs == null) {
+				ivs = new long[1 << 10];
+			} else if (n == ivs.length) {
+				ivs = Arrays.copyOf(ivs, 2 * n);
+			}
+			/* start in the high bits so that sorting orders by start */
+			int start = Math.min(reader.start, reader.end);
+			int end = Math.max(reader.start, reader.end);
+			ivs[n] = ((long) start << 32) | (end & 0xffffffffL);
+			intervals.put(reader.seqName, ivs);
+			counts.put(reader.seqName, n + 1);
+			peakCount++;
+		}
+		reader.close();
+
+		for (Map.Entry<String, long[]> e : intervals.entrySet()) {
+			int n = counts.get(e.getKey());
+			long[] ivs = e.getValue();
+			Arrays.sort(ivs, 0, n);
+
+			int[] s = new int[n], t = new int[n];
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				int start = (int) (ivs[i] >> 32);
+				int end = (int) ivs[i];
+				if (m > 0 && start <= t[m - 1]) {
+					t[m - 1] = Math.max(t[m - 1], end);
+				} else {
+					s[m] = start;
+					t[m] = end;
+					m++;
+				}
+			}
+			starts.put(e.getKey(), Arrays.copyOf(s, m));
+			ends.put(e.getKey(), Arrays.copyOf(t, m));
+		}
+	}
+
+	public int getPeakCount() {
+		return peakCount;
+	}
+
+	/* total length of the peak regions */
+	public long coveredLength() {
+		long len = 0;
+		for (String seq : starts.keySet()) {
+			int[] s = starts.get(seq), t = ends.get(seq);
+			for (int i = 0; i < s.length; i++) {
+				len += t[i] - s[i];
+			}
+		}
+		return len;
+	}
+
+	/* true if [start, end) overlaps a peak */
+	public boolean overlaps(String seqName, int start, int end) {
+		int[] s = starts.get(seqName);
+		if (s == null) return false;
+		int[] t = ends.get(seqName);
+
+		/* the last interval starting before end */
+		int lo = 0, hi = s.length - 1, last = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (s[mid] < end) {
+				last = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return last >= 0 && t[last] > start;
+	}
+}
@@ -0,0 +1,278 @@
+package net.derkholm.nmica.extra.peak;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakEntry;
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakFormat;
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.RankOrder;
+
+/*
+ * Peaks stored column by column in primitive arrays (reference sequence names are shared).
+ *
+ * Peaks are added in the order they are read. With a rank order other than NONE they can be
+ * selected with a bounded heap: only the best maxCount peaks seen so far are kept, so selecting
+ * the top k of n peaks takes O(n log k) time and O(k) memory, and rankedIndices() gives them
+ * best first. The ranking is that of PeakEntryDescComparitor for the formats it handles
+ * (SWEMBL, FindPeaks, MACS) and by the score / signal of the other formats, ties keep the file order.
+ */
+public class PeakList implements Iterable<PeakEntry> {
+	private final PeakFormat format;
+	private final RankOrder rankOrder;
+	private final boolean groupBySeq;
+	private final int maxCount;
+	private final Map<String, String> seqNames = new HashMap<String, String>();
+
+	private int size = 0;
+	private String[] ids;
+	private String[] seqs;
+	private int[] starts;
+	private int[] ends;
+	private int[] peaks;
+	private double[] scores;
+	private double[] fdrs;
+	private double[] tagCounts;
+	private long[] order;
+	private long added = 0;
+
+	/* the heap of the kept peaks, worst at the top (with rank order NONE, the first maxCount peaks are kept) */
+	private int[] heap;
+	private boolean ranked = false;
+
+	/* maxCount <= 0 keeps all the peaks */
+	public PeakList(PeakFormat format, RankOrder rankOrder, boolean groupBySeq, int maxCount) {
+		this.format = format;
+		this.rankOrder = rankOrder;
+		this.groupBySeq = groupBySeq;
+		this.maxCount = maxCount;
+		allocate(maxCount > 0 ? Math.min(maxCount + 1, 1 << 16) : 1 << 10);
+	}
+
+	private void allocate(int capacity) {
+		ids = ids == null ? new String[capacity] : Arrays.copyOf(ids, capacity);
+		seqs = seqs == null ? new String[capacity] : Arrays.copyOf(seqs, capacity);
+		starts = starts == null ? new int[capacity] : Arrays.copyOf(starts, capacity);
+		ends = ends == null ? new int[capacity] : Arrays.copyOf(ends, capacity);
+		peaks = peaks == null ? new int[capacity] : Arrays.copyOf(peaks, capacity);
+		scores = scores == null ? new double[capacity] : Arrays.copyOf(scores, capacity);
+		fdrs = fdrs == null ? new double[capacity] : Arrays.copyOf(fdrs, capacity);
+		tagCounts = tagCounts == null ? new double[capacity] : Arrays.copyOf(tagCounts, capacity);
+		order = order == null ? new long[capacity] : Arrays.copyOf(order, capacity);
+		heap = heap == null ? new int[capacity] : Arrays.copyOf(heap, capacity);
+	}
+
+	/* true if all the peaks that will be kept have been added (no need to read further) */
+	public boolean isFull() {
+		return rankOrder == RankOrder.NONE && maxCount > 0 && size >= maxCount;
+	}
+
+	public void add(String id, String seqName, int start, int end, int peak, double score, double fdr, double tagCount) {
+		if (ranked) {
+			throw new IllegalStateException("Peaks can't be added once they have been ranked");
+		}
+		if (isFull()) return;
+
+		int slot = size;
+		if (slot == ids.length) {
+			allocate(maxCount > 0 ? Math.min(maxCount + 1, 2 * ids.length) : 2 * ids.length);
+		}
+		set(slot, id, seqName, start, end, peak, score, fdr, tagCount);
+
+		if (rankOrder == RankOrder.NONE) {
+			heap[size++] = slot;
+		} else if (maxCount <= 0 || size < maxCount) {
+			heap[size] = slot;
+			siftUp(size++);
+		} else if (compare(slot, heap[0]) < 0) {
+			/* better than the worst peak kept, which it replaces */
+			move(slot, heap[0]);
+			siftDown(0);
+		}
+	}
+
+	public void add(PeakReader r) {
+		add(r.id, r.seqName, r.start, r.end, r.peak, r.score, r.fdr, r.tagCount);
+	}
+
+	private void set(int slot, String id, String seqName, int start, int end, int peak, double score, double fdr, double tagCount) {
+		String seq = seqNames.get(seqName);
+		if (seq == null) {
+			seqNames.put(seqName, seqName);
+			seq = seqName;
+		}
+		ids[slot] = id;
+		seqs[slot] = seq;
+		starts[slot] = start;
+		ends[slot] = end;
+		peaks[slot] = peak;
+		scores[slot] = score;
+		fdrs[slot] = fdr;
+		tagCounts[slot] = tagCount;
+		order[slot] = added++;
+	}
+
+	/* copies the peak in slot from to slot to */
+	private void move(int from, int to) {
+		ids[to] = ids[from];
+		seqs[to] = seqs[from];
+		starts[to] = starts[from];
+		ends[to] = ends[from];
+		peaks[to] = peaks[from];
+		scores[to] = scores[from];
+		fdrs[to] = fdrs[from];
+		tagCounts[to] = tagCounts[from];
+		order[to] = order[from];
+	}
+
+	/* negative if the peak in slot a ranks before the one in slot b */
+	private int compare(int a, int b) {
+		int c = 0;
+		if (groupBySeq) {
+			c = seqs[a].compareTo(seqs[b]);
+		}
+		if (c == 0) {
+			c = compareRank(a, b);
+		}
+		if (rankOrder == RankOrder.ASC) {
+			c = -c;
+		}
+		if (c == 0) {
+			c = order[a] < order[b] ? -1 : (order[a] > order[b] ? 1 : 0);
+		}
+		return c;
+	}
+
+	private int compareRank(int a, int b) {
+		int c;
+		switch (format) {
+		case SWEMBL:
+			if ((c = -Double.compare(scores[a], scores[b])) != 0) return c;
+			if ((c = Double.compare(fdrs[a], fdrs[b])) != 0) return c;
+			return Double.compare(tagCounts[a], tagCounts[b]);
+		case FINDPEAKS:
+			if ((c = Double.compare(scores[a], scores[b])) != 0) return c;
+			if ((c = Double.compare(fdrs[a], fdrs[b])) != 0) return c;
+			return Double.compare(tagCounts[a], tagCounts[b]);
+		case MACS:
+			if ((c = Double.compare(fdrs[a], fdrs[b])) != 0) return c;
+			if ((c = -Double.compare(scores[a], scores[b])) != 0) return c;
+			return Double.compare(tagCounts[a], tagCounts[b]);
+		case NARROWPEAK:
+			if ((c = Double.compare(scores[a], scores[b])) != 0) return c;
+			return -Double.compare(tagCounts[a], tagCounts[b]);
+		case PEAKS:
+			return -Double.compare(tagCounts[a], tagCounts[b]);
+		default:
+			return -Double.compare(scores[a], scores[b]);
+		}
+	}
+
+	private void siftUp(int i) {
+		int slot = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (compare(heap[parent], slot) >= 0) break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = slot;
+	}
+
+	private void siftDown(int i) {
+		siftDown(i, size);
+	}
+
+	private void siftDown(int i, int n) {
+		int slot = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) break;
+			if (child + 1 < n && compare(heap[child + 1], heap[child]) > 0) child++;
+			if (compare(heap[child], slot) <= 0) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = slot;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * The slots of the peaks in rank order (file order for rank order NONE).
+	 * Sorts the heap in place, so no more peaks can be added after this.
+	 */
+	public int[] rankedIndices() {
+		if (!ranked && rankOrder != RankOrder.NONE) {
+			for (int n = size - 1; n > 0; n--) {
+				int worst = heap[0];
+				heap[0] = heap[n];
+				heap[n] = worst;
+				siftDown(0, n);
+			}
+		}
+		ranked = true;
+		return Arrays.copyOf(heap, size);
+	}
+
+	public String id(int i) {
+		return ids[i];
+	}
+
+	public String seqName(int i) {
+		return seqs[i];
+	}
+
+	public int start(int i) {
+		return starts[i];
+	}
+
+	public int end(int i) {
+		return ends[i];
+	}
+
+	public int peak(int i) {
+		return peaks[i];
+	}
+
+	public double score(int i) {
+		return scores[i];
+	}
+
+	public double fdr(int i) {
+		return fdrs[i];
+	}
+
+	public double tagCount(int i) {
+		return tagCounts[i];
+	}
+
+	public PeakEntry entry(int i) {
+		return new PeakEntry(ids[i], seqs[i], starts[i], ends[i], peaks[i], scores[i], fdrs[i], tagCounts[i]);
+	}
+
+	/* the peaks in rank order, as PeakEntry objects made on demand */
+	public Iterator<PeakEntry> iterator() {
+		final int[] ranked = rankedIndices();
+		return new Iterator<PeakEntry>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+				return i < ranked.length;
+			}
+
+			public PeakEntry next() {
+				if (i >= ranked.length) throw new NoSuchElementException();
+				return entry(ranked[i++]);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
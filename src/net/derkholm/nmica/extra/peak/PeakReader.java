@@ -0,0 +1,201 @@
+package net.derkholm.nmica.extra.peak;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import net.derkholm.nmica.extra.app.seq.nextgen.RetrievePeakSequencesFromEnsembl.PeakFormat;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Streaming reader of peak files: next() parses the next peak into the fields of the reader
+ * (nothing is allocated per peak other than the strings of the line), so peaks can be
+ * filtered and selected as they are read.
+ *
+ * Coordinates are taken as they are in the file except for MACS (1-based, converted to 0-based).
+ * score holds the significance of the peak in the units of the format
+ * (a p-value for MACS and narrowPeak, the score column for BED, FindPeaks, SWEMBL and GFF)
+ * and the fields a format doesn't have are NaN (peak is -1 if there is no summit).
+ */
+public class PeakReader {
+	private static final Pattern MACS_HEADER = Pattern.compile("chr\\s+start\\s+end");
+	private static final Pattern SWEMBL_HEADER = Pattern.compile("Region\\s+Start");
+
+	private final BufferedReader reader;
+	private final PeakFormat format;
+	private int lineNumber = 0;
+	private int peakNumber = 0;
+
+	public String id;
+	public String seqName;
+	public int start;
+	public int end;
+	public int peak;
+	public double score;
+	public double fdr;
+	public double tagCount;
+
+	public PeakReader(BufferedReader reader, PeakFormat format) {
+		this.reader = reader;
+		this.format = format;
+	}
+
+	public PeakFormat getFormat() {
+		return format;
+	}
+
+	/* false at the end of the file */
+	public boolean next() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.length() == 0 || isHeader(line)) continue;
+			try {
+				parse(line);
+			} catch (RuntimeException e) {
+				throw new BioError(String.format("Could not parse line %d of the %s peaks: %s", lineNumber, format, line), e);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private boolean isHeader(String line) {
+		//ignore comment lines regardless of exact format
+		if (line.charAt(0) == '#') return true;
+		switch (format) {
+		case MACS:
+			return MACS_HEADER.matcher(line).find();
+		case SWEMBL:
+			return SWEMBL_HEADER.matcher(line).find();
+		case BED:
+		case NARROWPEAK:
+			return line.startsWith("track") || line.startsWith("browser");
+		default:
+			return false;
+		}
+	}
+
+	private void parse(String line) {
+		Fields tok = new Fields(line);
+		String fileId = null;
+		peak = -1;
+		score = Double.NaN;
+		fdr = Double.NaN;
+		tagCount = Double.NaN;
+		peakNumber++;
+
+		switch (format) {
+		case BED:
+			seqName = tok.next();
+			start = tok.nextInt();
+			end = tok.nextInt();
+			fileId = tok.next();
+			score = tok.nextDouble();
+			break;
+		case NARROWPEAK:
+			seqName = tok.next();
+			start = tok.nextInt();
+			end = tok.nextInt();
+			fileId = tok.next();
+			tok.next();//score
+			tok.next();//strand
+			tagCount = tok.nextDouble();//signal value
+			score = fromMinusLog10(tok.nextDouble());//-log10 p-value, -1 if not given
+			fdr = fromMinusLog10(tok.nextDouble());//-log10 q-value, -1 if not given
+			int summit = tok.nextInt();
+			peak = summit >= 0 ? start + summit : (start + end) / 2;
+			break;
+		case MACS:
+			seqName = tok.next();
+			start = tok.nextInt() - 1; //1-based coords
+			end = tok.nextInt() - 1; //1-based coords
+			tok.next();//length
+			peak = start + tok.nextInt();//summit reported relative to start coord
+			tagCount = tok.nextDouble();
+			score = Math.pow(10.0, -tok.nextDouble() / 10.0); //p-value
+			fdr = tok.nextDouble();
+			break;
+		case SWEMBL:
+			seqName = tok.next();
+			start = tok.nextInt();
+			end = tok.nextInt();
+			tagCount = tok.nextDouble();//count
+			tok.next();//length
+			tok.next();//uniquePos
+			score = tok.nextDouble();//score
+			tok.next();//Ref. count
+			tok.next();//Max. coverage
+			peak = (int) Math.round(tok.nextDouble());
+			break;
+		case FINDPEAKS:
+			fileId = tok.next();
+			seqName = tok.next();
+			start = tok.nextInt();
+			end = tok.nextInt();
+			peak = (int) Math.round(tok.nextDouble());
+			score = tok.nextDouble();
+			break;
+		case PEAKS:
+			/* <chromosome> <genomic start> <genomic end>
+			 * <position of peak maximum relative to genomic start>
+			 * <peak height> <number of reads in the peak> */
+			seqName = tok.next();
+			start = tok.nextInt();
+			end = tok.nextInt();
+			peak = start + tok.nextInt();
+			tagCount = tok.nextDouble();
+			break;
+		case GFF:
+			seqName = tok.next();
+			tok.next();//source
+			tok.next();//feature
+			start = tok.nextInt();
+			end = tok.nextInt();
+			String s = tok.next();
+			score = s.equals(".") ? Double.NaN : Double.parseDouble(s);
+			break;
+		default:
+			throw new BioError(String.format("Unexpected input format %s", format));
+		}
+		id = fileId != null ? fileId : Integer.toString(peakNumber);
+	}
+
+	private static double fromMinusLog10(double x) {
+		return x < 0 ? Double.NaN : Math.pow(10.0, -x);
+	}
+
+	/* the tab separated fields of a line, without a StringTokenizer */
+	private static class Fields {
+		private final String line;
+		private int pos = 0;
+
+		Fields(String line) {
+			this.line = line;
+		}
+
+		String next() {
+			if (pos > line.length()) {
+				throw new IllegalArgumentException("Too few fields");
+			}
+			int tab = line.indexOf('\t', pos);
+			if (tab < 0) tab = line.length();
+			String field = line.substring(pos, tab);
+			pos = tab + 1;
+			return field;
+		}
+
+		int nextInt() {
+			return Integer.parseInt(next().trim());
+		}
+
+		double nextDouble() {
+			return Double.parseDouble(next().trim());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package net.derkholm.nmica.extra.peak;
+
+import java.io.PrintStream;
+
+/*
+ * Writes peaks as GFF or BED lines straight from a PeakList, without building GFF records
+ * or attribute maps. Fields that are NaN are left out of the GFF attributes
+ * (and written as '.' / 0 in the score columns).
+ */
+public class PeakWriter {
+	public static enum Format {
+		GFF,
+		BED
+	}
+
+	private final PrintStream out;
+	private final Format format;
+	private final String source;
+
+	public PeakWriter(PrintStream out, Format format, String source) {
+		this.out = out;
+		this.format = format;
+		this.source = source;
+	}
+
+	public void write(PeakList peaks, int i) {
+		if (format == Format.GFF) {
+			writeGFF(peaks, i);
+		} else {
+			writeBED(peaks, i);
+		}
+	}
+
+	private void writeGFF(PeakList peaks, int i) {
+		StringBuilder line = new StringBuilder(128);
+		line.append(peaks.seqName(i)).append('\t')
+			.append(source).append('\t')
+			.append("peak").append('\t')
+			.append(peaks.start(i)).append('\t')
+			.append(peaks.end(i)).append('\t');
+		appendScore(line, peaks.fdr(i));
+		line.append("\t.\t0\t");
+
+		int attribs = appendAttribute(line, 0, "fdr", peaks.fdr(i));
+		attribs = appendAttribute(line, attribs, "score", peaks.score(i));
+		appendAttribute(line, attribs, "tag_count", peaks.tagCount(i));
+		out.println(line);
+	}
+
+	private void writeBED(PeakList peaks, int i) {
+		StringBuilder line = new StringBuilder(96);
+		line.append(peaks.seqName(i)).append('\t')
+			.append(peaks.start(i)).append('\t')
+			.append(peaks.end(i)).append('\t')
+			.append(peaks.id(i)).append('\t');
+		double score = peaks.score(i);
+		line.append(Double.isNaN(score) ? 0.0 : score);
+		out.println(line);
+	}
+
+	private static void appendScore(StringBuilder line, double score) {
+		if (Double.isNaN(score)) {
+			line.append('.');
+		} else {
+			line.append(score);
+		}
+	}
+
+	private static int appendAttribute(StringBuilder line, int attribs, String key, double value) {
+		if (Double.isNaN(value)) return attribs;
+		if (attribs > 0) line.append("; ");
+		line.append(key).append(' ').append(value);
+		return attribs + 1;
+	}
+
+	public void flush() {
+		out.flush();
+	}
+}
@@ -0,0 +1,102 @@
+package net.derkholm.nmica.extra.seq;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.biojava.bio.BioException;
+
+/*
+ * Reads (multi-)FASTA formatted sequences into byte arrays, one byte per residue,
+ * without creating biojava Sequence objects. The residue array is reused between
+ * sequences, so it is only valid until the next call to next().
+ */
+public class FastaByteReader {
+	private final InputStream in;
+	private final byte[] buf = new byte[1 << 16];
+	private int bufLen = 0, bufPos = 0;
+
+	private String name;
+	private String nextName;
+	private byte[] residues = new byte[1 << 16];
+	private int length;
+	private boolean started = false;
+
+	public FastaByteReader(InputStream in) {
+		this.in = in;
+	}
+
+	/* moves to the next sequence, returns false at the end of the input */
+	public boolean next() throws IOException, BioException {
+		if (!started) {
+			started = true;
+			int c = read();
+			while (c == '\n' || c == '\r') c = read();
+			if (c < 0) return false;
+			if (c != '>') throw new BioException("FASTA input needs to start with '>'");
+			nextName = readHeader();
+		}
+		if (nextName == null) return false;
+
+		name = nextName;
+		nextName = null;
+		length = 0;
+
+		boolean lineStart = true;
+		int c;
+		while ((c = read()) >= 0) {
+			if (lineStart && c == '>') {
+				nextName = readHeader();
+				break;
+			}
+			if (c == '\n' || c == '\r') {
+				lineStart = true;
+				continue;
+			}
+			lineStart = false;
+			if (c == ' ' || c == '\t') continue;
+			if (length == residues.length) {
+				byte[] bigger = new byte[(int) Math.min(Integer.MAX_VALUE - 8, residues.length * 2L)];
+				System.arraycopy(residues, 0, bigger, 0, length);
+				residues = bigger;
+			}
+			residues[length++] = (byte) c;
+		}
+		return true;
+	}
+
+	/* the first word of the header line */
+	private String readHeader() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		boolean inName = true;
+		while ((c = read()) >= 0 && c != '\n') {
+			if (c == ' ' || c == '\t' || c == '\r') inName = false;
+			if (inName) sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private int read() throws IOException {
+		if (bufPos == bufLen) {
+			bufLen = in.read(buf, 0, buf.length);
+			bufPos = 0;
+			if (bufLen <= 0) {
+				bufLen = 0;
+				return -1;
+			}
+		}
+		return buf[bufPos++] & 0xff;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public byte[] getResidues() {
+		return residues;
+	}
+
+	public int length() {
+		return length;
+	}
+}
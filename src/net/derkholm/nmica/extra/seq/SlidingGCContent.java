@@ -0,0 +1,62 @@
+package net.derkholm.nmica.extra.seq;
+
+/*
+ * GC content of windows slid along a sequence given as bytes (e.g. from FastaByteReader).
+ * The G/C and A/T counts of the window are updated as bases enter and leave it,
+ * so each window costs O(step) rather than O(window size).
+ *
+ * G, C and S count as GC, A, T and W as AT (case insensitive),
+ * all other symbols (N and the other ambiguity codes) are left out of both counts.
+ */
+public class SlidingGCContent {
+	public static final byte AT = 0;
+	public static final byte GC = 1;
+	public static final byte AMBIGUOUS = 2;
+
+	private static final byte[] CLASSES = new byte[256];
+	static {
+		for (int i = 0; i < CLASSES.length; i++) {
+			CLASSES[i] = AMBIGUOUS;
+		}
+		for (char c : "GCSgcs".toCharArray()) CLASSES[c] = GC;
+		for (char c : "ATWUatwu".toCharArray()) CLASSES[c] = AT;
+	}
+
+	public static interface Handler {
+		/* window [begin, end) (0-based) with its G/C and A/T counts */
+		public void window(int begin, int end, int gc, int at) throws Exception;
+	}
+
+	public static byte classOf(byte base) {
+		return CLASSES[base & 0xff];
+	}
+
+	/* windows [i, i + windowSize) for i = 0, step, 2 * step, ... that fit in the sequence */
+	public static void slide(byte[] seq, int length, int windowSize, int step, Handler handler) throws Exception {
+		if (windowSize <= 0 || step <= 0) {
+			throw new IllegalArgumentException("Window size and step need to be positive");
+		}
+		int gc = 0, at = 0;
+		int begin = 0, end = 0;
+
+		while (begin + windowSize <= length) {
+			/* drop the bases that left the window, add the ones that entered it */
+			int newEnd = begin + windowSize;
+			int from = Math.max(end, begin);
+			for (int i = from; i < newEnd; i++) {
+				byte c = CLASSES[seq[i] & 0xff];
+				if (c == GC) gc++; else if (c == AT) at++;
+			}
+			end = newEnd;
+
+			handler.window(begin, end, gc, at);
+
+			int newBegin = begin + step;
+			for (int i = begin; i < Math.min(newBegin, end); i++) {
+				byte c = CLASSES[seq[i] & 0xff];
+				if (c == GC) gc--; else if (c == AT) at--;
+			}
+			begin = newBegin;
+		}
+	}
+}
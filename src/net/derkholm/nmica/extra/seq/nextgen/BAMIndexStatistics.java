@@ -0,0 +1,102 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Per reference sequence read counts and offsets from a BAM index (.bai).
+ *
+ * samtools index stores the number of mapped and unmapped reads of each reference
+ * in a pseudo-bin (37450) next to the real bins. Indexes written without it
+ * (older samtools / picard) have no counts for references with reads, which is
+ * reported by hasMetaData().
+ */
+public class BAMIndexStatistics {
+	public static final int METADATA_BIN = 37450;
+	private static final byte[] MAGIC = {'B', 'A', 'I', 1};
+
+	private final long[] mapped;
+	private final long[] unmapped;
+	private final long[] firstOffsets;
+	private final boolean[] hasMetaData;
+
+	private BAMIndexStatistics(int refCount) {
+		this.mapped = new long[refCount];
+		this.unmapped = new long[refCount];
+		this.firstOffsets = new long[refCount];
+		this.hasMetaData = new boolean[refCount];
+	}
+
+	public static BAMIndexStatistics read(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			for (byte b : MAGIC) {
+				if (buf.get() != b) {
+					throw new IOException(f.getPath() + " is not a BAM index");
+				}
+			}
+
+			int refCount = buf.getInt();
+			BAMIndexStatistics stats = new BAMIndexStatistics(refCount);
+			for (int r = 0; r < refCount; r++) {
+				long first = Long.MAX_VALUE;
+				int binCount = buf.getInt();
+
+				/* a reference without bins has no reads */
+				stats.hasMetaData[r] = binCount == 0;
+				for (int b = 0; b < binCount; b++) {
+					int bin = buf.getInt();
+					int chunkCount = buf.getInt();
+					if (bin == METADATA_BIN && chunkCount == 2) {
+						buf.getLong(); // virtual offsets of the first and last read
+						buf.getLong();
+						stats.mapped[r] = buf.getLong();
+						stats.unmapped[r] = buf.getLong();
+						stats.hasMetaData[r] = true;
+						continue;
+					}
+					for (int c = 0; c < chunkCount; c++) {
+						first = Math.min(first, buf.getLong());
+						buf.getLong();
+					}
+				}
+				stats.firstOffsets[r] = first == Long.MAX_VALUE ? -1 : first;
+
+				int intervalCount = buf.getInt();
+				buf.position(buf.position() + 8 * intervalCount);
+			}
+			return stats;
+		} finally {
+			file.close();
+		}
+	}
+
+	public int getRefCount() {
+		return mapped.length;
+	}
+
+	public boolean hasMetaData(int ref) {
+		return hasMetaData[ref];
+	}
+
+	public long getMappedCount(int ref) {
+		return mapped[ref];
+	}
+
+	public long getUnmappedCount(int ref) {
+		return unmapped[ref];
+	}
+
+	/* virtual file offset of the first read of the reference, -1 if there are none */
+	public long getFirstOffset(int ref) {
+		return firstOffsets[ref];
+	}
+}
@@ -0,0 +1,26 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Reads the remaining bytes of a (memory mapped) buffer, used for the indices of DepthTrack and DepthMatrix.
+ */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buf;
+
+	ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	public int read() {
+		return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (!buf.hasRemaining()) return -1;
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+}
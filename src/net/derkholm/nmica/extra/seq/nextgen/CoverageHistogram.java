@@ -0,0 +1,74 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.util.Arrays;
+
+/*
+ * Histogram of the per-position depths of coordinate sorted reads, made in a single pass without a
+ * pileup of the whole reference: fragment ends are recorded as +1 / -1 in a ring buffer, and positions
+ * before (alignment start - extendedLength) of the current read can't change any more, so they are
+ * swept into the histogram as the reads go by. Fragments longer than the ring buffer are cut to it.
+ */
+public class CoverageHistogram {
+	private static final int WINDOW = 1 << 20;
+	private static final int MASK = WINDOW - 1;
+
+	private final int maxDepth;
+	private final int extendedLength;
+	private final long[] histogram;
+	private final int[] diffs = new int[WINDOW];
+
+	private int refLength = 0;
+	private int swept = 0;
+	private int depth = 0;
+
+	/* depths of maxDepth and over are counted together in the last bin */
+	public CoverageHistogram(int maxDepth, int extendedLength) {
+		this.maxDepth = maxDepth;
+		this.extendedLength = Math.max(0, extendedLength);
+		this.histogram = new long[maxDepth + 1];
+	}
+
+	/* ends the previous reference sequence (if any) and starts one of the given length */
+	public void beginReference(int length) {
+		endReference();
+		this.refLength = length;
+	}
+
+	/* sweeps the rest of the current reference sequence into the histogram */
+	public void endReference() {
+		sweepTo(refLength);
+		Arrays.fill(diffs, 0);
+		refLength = 0;
+		swept = 0;
+		depth = 0;
+	}
+
+	/* a reference sequence without any reads, counted at depth 0 without sweeping it */
+	public void addUncovered(int length) {
+		histogram[0] += length;
+	}
+
+	/* a read covering [start, end) once extended, reads are added in order of alignment start */
+	public void add(int alignmentStart, int start, int end) {
+		sweepTo(Math.max(0, alignmentStart - extendedLength));
+		start = Math.max(start, swept);
+		end = Math.min(Math.min(end, refLength), swept + WINDOW - 1);
+		if (start >= end) return;
+		diffs[start & MASK]++;
+		diffs[end & MASK]--;
+	}
+
+	private void sweepTo(int pos) {
+		pos = Math.min(pos, refLength);
+		for (; swept < pos; swept++) {
+			depth += diffs[swept & MASK];
+			diffs[swept & MASK] = 0;
+			histogram[Math.min(depth, maxDepth)]++;
+		}
+	}
+
+	/* positions with each depth so far (the last bin counts depths >= maxDepth) */
+	public long[] getHistogram() {
+		return histogram;
+	}
+}
@@ -0,0 +1,23 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Daemon threads for the pools of the BGZF streams, so that a pass aborted
+ * by an exception before the stream is closed doesn't keep the VM from exiting.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + " " + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,203 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Binary, memory mapped matrix of the binned depths of several samples (written with DepthMatrixWriter),
+ * with the bins of a reference sequence as rows and the samples as columns.
+ *
+ * Layout:
+ *   int magic, int version, long index offset,
+ *   for each reference sequence a column of float mean depths (one per bin) for each of the samples in turn,
+ *   the index: bin size, int sample count and for each sample name, library size and normalisation factor,
+ *   int ref count and for each reference name, length, bin count and the offset of its first column.
+ *
+ * The stored depths are raw, valueAt() multiplies them by the normalisation factor of the sample.
+ */
+public class DepthMatrix {
+	public static final int MAGIC = 0x4e47444d; // "NGDM"
+	public static final int VERSION = 1;
+	static final int PREAMBLE_LENGTH = 16;
+
+	/* bins per mapped buffer (a single mapping can't exceed 2GB) */
+	private static final int CHUNK_SHIFT = 28;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int binSize;
+	private final String[] sampleNames;
+	private final long[] librarySizes;
+	private final double[] scales;
+	private final List<String> refNames = new ArrayList<String>();
+	private final Map<String, Reference> refs = new HashMap<String, Reference>();
+
+	private DepthMatrix(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = file.getChannel();
+
+		if (file.readInt() != MAGIC) {
+			throw new IOException(f.getPath() + " is not a binary depth matrix");
+		}
+		int version = file.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported depth matrix version " + version);
+		}
+		long indexOffset = file.readLong();
+
+		MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(index));
+		this.binSize = in.readInt();
+		int sampleCount = in.readInt();
+		this.sampleNames = new String[sampleCount];
+		this.librarySizes = new long[sampleCount];
+		this.scales = new double[sampleCount];
+		for (int s = 0; s < sampleCount; s++) {
+			sampleNames[s] = in.readUTF();
+			librarySizes[s] = in.readLong();
+			scales[s] = in.readDouble();
+		}
+		int refCount = in.readInt();
+		for (int i = 0; i < refCount; i++) {
+			Reference ref = new Reference(in.readUTF(), in.readInt(), in.readInt(), in.readLong());
+			refNames.add(ref.name);
+			refs.put(ref.name, ref);
+		}
+	}
+
+	public static DepthMatrix open(File f) throws IOException {
+		return new DepthMatrix(f);
+	}
+
+	public int getBinSize() {
+		return binSize;
+	}
+
+	public int getSampleCount() {
+		return sampleNames.length;
+	}
+
+	public String getSampleName(int sample) {
+		return sampleNames[sample];
+	}
+
+	/* reads counted for the sample */
+	public long getLibrarySize(int sample) {
+		return librarySizes[sample];
+	}
+
+	/* the factor the raw depths of the sample are multiplied by */
+	public double getScale(int sample) {
+		return scales[sample];
+	}
+
+	public List<String> getRefNames() {
+		return Collections.unmodifiableList(refNames);
+	}
+
+	public boolean hasReference(String name) {
+		return refs.containsKey(name);
+	}
+
+	public Reference reference(String name) {
+		Reference ref = refs.get(name);
+		if (ref == null) {
+			throw new BioError("No depths for reference sequence " + name);
+		}
+		return ref;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	public class Reference {
+		private final String name;
+		private final int length;
+		private final int binCount;
+		private final long offset;
+		private FloatBuffer[][] columns;
+
+		private Reference(String name, int length, int binCount, long offset) {
+			this.name = name;
+			this.length = length;
+			this.binCount = binCount;
+			this.offset = offset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public int binCount() {
+			return binCount;
+		}
+
+		/* the bin of a 0-based position */
+		public int binOf(int pos) {
+			return pos / binSize;
+		}
+
+		public double rawValueAt(int bin, int sample) {
+			return columns()[sample][bin >>> CHUNK_SHIFT].get(bin & CHUNK_MASK);
+		}
+
+		/* the library size normalised depth */
+		public double valueAt(int bin, int sample) {
+			return rawValueAt(bin, sample) * scales[sample];
+		}
+
+		/* the normalised depths of all samples in a bin */
+		public double[] row(int bin, double[] values) {
+			if (values == null) {
+				values = new double[sampleNames.length];
+			}
+			for (int s = 0; s < sampleNames.length; s++) {
+				values[s] = valueAt(bin, s);
+			}
+			return values;
+		}
+
+		private synchronized FloatBuffer[][] columns() {
+			if (columns == null) {
+				int chunks = (binCount >>> CHUNK_SHIFT) + 1;
+				columns = new FloatBuffer[sampleNames.length][chunks];
+				for (int s = 0; s < sampleNames.length; s++) {
+					for (int c = 0; c < chunks; c++) {
+						columns[s][c] = map(offset + 4L * s * binCount, c).asFloatBuffer();
+					}
+				}
+			}
+			return columns;
+		}
+
+		private ByteBuffer map(long columnOffset, int chunk) {
+			long first = (long) chunk << CHUNK_SHIFT;
+			long entries = Math.min(binCount - first, 1L << CHUNK_SHIFT);
+			try {
+				return channel.map(FileChannel.MapMode.READ_ONLY, columnOffset + first * 4, entries * 4);
+			} catch (IOException e) {
+				throw new BioError(e);
+			}
+		}
+	}
+}
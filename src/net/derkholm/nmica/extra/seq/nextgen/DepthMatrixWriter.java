@@ -0,0 +1,145 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Writes the binary depth matrix format read by DepthMatrix.
+ * The columns of a reference are reserved when it is begun and can then be
+ * written a stretch of bins at a time for each sample; the index is written on close().
+ */
+public class DepthMatrixWriter {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final String[] sampleNames;
+	private final int binSize;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	private final DataOutputStream index = new DataOutputStream(indexBytes);
+	private int refCount = 0;
+
+	public DepthMatrixWriter(File f, String[] sampleNames, int binSize) throws IOException {
+		if (binSize < 1) {
+			throw new IllegalArgumentException("binSize needs to be >= 1");
+		}
+		this.file = new RandomAccessFile(f, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+		this.sampleNames = sampleNames;
+		this.binSize = binSize;
+
+		buf.putInt(DepthMatrix.MAGIC);
+		buf.putInt(DepthMatrix.VERSION);
+		buf.putLong(0L);
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	public int getBinSize() {
+		return binSize;
+	}
+
+	/* bins of a reference sequence of the given length (the last one can be shorter) */
+	public int binCount(int length) {
+		return (int) (((long) length + binSize - 1) / binSize);
+	}
+
+	/* reserves the columns of a reference sequence, bins are 0 until written */
+	public Reference beginReference(String name, int length) throws IOException {
+		int binCount = binCount(length);
+		long offset = channel.position();
+		long end = offset + 4L * binCount * sampleNames.length;
+		file.setLength(end);
+		channel.position(end);
+
+		index.writeUTF(name);
+		index.writeInt(length);
+		index.writeInt(binCount);
+		index.writeLong(offset);
+		refCount++;
+
+		return new Reference(name, binCount, offset);
+	}
+
+	public class Reference {
+		private final String name;
+		private final int binCount;
+		private final long offset;
+
+		private Reference(String name, int binCount, long offset) {
+			this.name = name;
+			this.binCount = binCount;
+			this.offset = offset;
+		}
+
+		public int binCount() {
+			return binCount;
+		}
+
+		/* count values of a sample from values[0] on, for the bins starting at firstBin */
+		public void write(int sample, int firstBin, float[] values, int count) throws IOException {
+			if (firstBin + count > binCount) {
+				throw new BioError(String.format("Bins %d-%d are past the end of %s", firstBin, firstBin + count, name));
+			}
+			long pos = offset + 4L * ((long) sample * binCount + firstBin);
+			int done = 0;
+			while (done < count) {
+				int n = Math.min(count - done, BUFFER_SIZE / 4);
+				buf.clear();
+				FloatBuffer floats = buf.asFloatBuffer();
+				floats.put(values, done, n);
+				buf.limit(4 * n);
+				while (buf.hasRemaining()) {
+					pos += channel.write(buf, pos);
+				}
+				done += n;
+			}
+			buf.clear();
+		}
+	}
+
+	/*
+	 * Writes the index, with the number of reads counted for each sample
+	 * and the factors the raw depths are to be multiplied by.
+	 */
+	public void close(long[] librarySizes, double[] scales) throws IOException {
+		long indexOffset = channel.position();
+
+		ByteArrayOutputStream samplesBytes = new ByteArrayOutputStream();
+		DataOutputStream samples = new DataOutputStream(samplesBytes);
+		samples.writeInt(binSize);
+		samples.writeInt(sampleNames.length);
+		for (int s = 0; s < sampleNames.length; s++) {
+			samples.writeUTF(sampleNames[s]);
+			samples.writeLong(librarySizes[s]);
+			samples.writeDouble(scales[s]);
+		}
+		samples.writeInt(refCount);
+		samples.flush();
+		index.flush();
+
+		channel.write(ByteBuffer.wrap(samplesBytes.toByteArray()));
+		channel.write(ByteBuffer.wrap(indexBytes.toByteArray()));
+
+		ByteBuffer offset = ByteBuffer.allocate(8);
+		offset.putLong(indexOffset);
+		offset.flip();
+		channel.write(offset, 8);
+
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,331 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Binary, memory mapped per-base sequencing depths (written with DepthTrackWriter).
+ *
+ * Layout:
+ *   int magic, int version, long index offset,
+ *   depth (and optionally p-value) blocks for each of the reference sequences,
+ *   the index: int ref count and for each reference
+ *   name, length, read count, lambda, encoding, has p-values, run count, depth block offset, p-value block offset.
+ *
+ * FIXED blocks hold an int depth (and a float p-value) for every position.
+ * RLE blocks hold the int start positions of the runs followed by their int depths (and float p-values).
+ * FLOAT blocks hold a float score (NaN where there is none) for every position, e.g. conservation scores.
+ */
+public class DepthTrack {
+	public static final int MAGIC = 0x4e474454; // "NGDT"
+	public static final int VERSION = 1;
+	static final int PREAMBLE_LENGTH = 16;
+
+	/* entries per mapped buffer for FIXED blocks (a single mapping can't exceed 2GB) */
+	private static final int CHUNK_SHIFT = 28;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	public static enum Encoding {
+		FIXED,
+		RLE,
+		FLOAT
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final List<String> refNames = new ArrayList<String>();
+	private final Map<String, Reference> refs = new HashMap<String, Reference>();
+
+	private DepthTrack(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = file.getChannel();
+
+		if (file.readInt() != MAGIC) {
+			throw new IOException(f.getPath() + " is not a binary depth track");
+		}
+		int version = file.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported depth track version " + version);
+		}
+		long indexOffset = file.readLong();
+
+		MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(index));
+		int refCount = in.readInt();
+		for (int i = 0; i < refCount; i++) {
+			Reference ref = new Reference(
+					in.readUTF(),
+					in.readInt(),
+					in.readInt(),
+					in.readDouble(),
+					Encoding.values()[in.readByte()],
+					in.readBoolean(),
+					in.readInt(),
+					in.readLong(),
+					in.readLong());
+			refNames.add(ref.name);
+			refs.put(ref.name, ref);
+		}
+	}
+
+	public static DepthTrack open(File f) throws IOException {
+		return new DepthTrack(f);
+	}
+
+	public static boolean isDepthTrack(File f) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				return raf.length() >= PREAMBLE_LENGTH && raf.readInt() == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public List<String> getRefNames() {
+		return Collections.unmodifiableList(refNames);
+	}
+
+	public boolean hasReference(String name) {
+		return refs.containsKey(name);
+	}
+
+	public Reference reference(String name) {
+		Reference ref = refs.get(name);
+		if (ref == null) {
+			throw new BioError("No depths for reference sequence " + name);
+		}
+		return ref;
+	}
+
+	public int depthAt(String refName, int pos) {
+		return reference(refName).depthAt(pos);
+	}
+
+	public double pvalueAt(String refName, int pos) {
+		return reference(refName).pvalueAt(pos);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	public class Reference {
+		private final String name;
+		private final int length;
+		private final int readCount;
+		private final double lambda;
+		private final Encoding encoding;
+		private final boolean hasPValues;
+		private final int runCount;
+		private final long depthOffset;
+		private final long pvalueOffset;
+
+		private IntBuffer[] depths;
+		private FloatBuffer[] pvalues;
+		private FloatBuffer[] values;
+		private IntBuffer runStarts;
+		private IntBuffer runDepths;
+		private FloatBuffer runPValues;
+
+		private Reference(
+				String name,
+				int length,
+				int readCount,
+				double lambda,
+				Encoding encoding,
+				boolean hasPValues,
+				int runCount,
+				long depthOffset,
+				long pvalueOffset) {
+			this.name = name;
+			this.length = length;
+			this.readCount = readCount;
+			this.lambda = lambda;
+			this.encoding = encoding;
+			this.hasPValues = hasPValues;
+			this.runCount = runCount;
+			this.depthOffset = depthOffset;
+			this.pvalueOffset = pvalueOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public int getReadCount() {
+			return readCount;
+		}
+
+		public double getLambda() {
+			return lambda;
+		}
+
+		public Encoding getEncoding() {
+			return encoding;
+		}
+
+		public boolean hasPValues() {
+			return hasPValues;
+		}
+
+		public int depthAt(int pos) {
+			if (encoding == Encoding.FLOAT) {
+				double value = valueAt(pos);
+				return Double.isNaN(value) ? 0 : (int) value;
+			} else if (encoding == Encoding.FIXED) {
+				return depths()[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+			} else {
+				return runDepths().get(runAt(pos));
+			}
+		}
+
+		/* the stored value as a double (FLOAT blocks keep fractional scores, NaN where there is no score) */
+		public double valueAt(int pos) {
+			if (encoding == Encoding.FLOAT) {
+				return values()[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+			}
+			return depthAt(pos);
+		}
+
+		public double pvalueAt(int pos) {
+			if (!hasPValues) {
+				throw new BioError("No p-values stored for " + name);
+			}
+			if (encoding == Encoding.FIXED) {
+				return pvalues()[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+			} else {
+				runDepths();
+				return runPValues.get(runAt(pos));
+			}
+		}
+
+		/* end (exclusive) of the stretch of equal depth that starts at pos */
+		public int segmentEnd(int pos) {
+			if (encoding == Encoding.FLOAT) {
+				FloatBuffer[] v = values();
+				int bits = Float.floatToIntBits(v[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK));
+				int end = pos + 1;
+				while (end < length && Float.floatToIntBits(v[end >>> CHUNK_SHIFT].get(end & CHUNK_MASK)) == bits) {
+					end++;
+				}
+				return end;
+			} else if (encoding == Encoding.FIXED) {
+				IntBuffer[] d = depths();
+				int depth = d[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+				int end = pos + 1;
+				while (end < length && d[end >>> CHUNK_SHIFT].get(end & CHUNK_MASK) == depth) {
+					end++;
+				}
+				return end;
+			} else {
+				int run = runAt(pos);
+				return (run + 1) < runCount ? runStarts().get(run + 1) : length;
+			}
+		}
+
+		/* number of runs of equal depth (RLE only) */
+		public int getRunCount() {
+			return runCount;
+		}
+
+		private int runAt(int pos) {
+			IntBuffer starts = runStarts();
+			int lo = 0, hi = runCount - 1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (starts.get(mid) <= pos) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return lo;
+		}
+
+		private synchronized IntBuffer[] depths() {
+			if (depths == null) {
+				int chunks = (length >>> CHUNK_SHIFT) + 1;
+				depths = new IntBuffer[chunks];
+				for (int c = 0; c < chunks; c++) {
+					depths[c] = map(depthOffset, c, 4).asIntBuffer();
+				}
+			}
+			return depths;
+		}
+
+		private synchronized FloatBuffer[] pvalues() {
+			if (pvalues == null) {
+				int chunks = (length >>> CHUNK_SHIFT) + 1;
+				pvalues = new FloatBuffer[chunks];
+				for (int c = 0; c < chunks; c++) {
+					pvalues[c] = map(pvalueOffset, c, 4).asFloatBuffer();
+				}
+			}
+			return pvalues;
+		}
+
+		private synchronized FloatBuffer[] values() {
+			if (values == null) {
+				int chunks = (length >>> CHUNK_SHIFT) + 1;
+				values = new FloatBuffer[chunks];
+				for (int c = 0; c < chunks; c++) {
+					values[c] = map(depthOffset, c, 4).asFloatBuffer();
+				}
+			}
+			return values;
+		}
+
+		private IntBuffer runStarts() {
+			runDepths();
+			return runStarts;
+		}
+
+		private synchronized IntBuffer runDepths() {
+			if (runDepths == null) {
+				try {
+					runStarts = channel.map(FileChannel.MapMode.READ_ONLY, depthOffset, 4L * runCount).asIntBuffer();
+					runDepths = channel.map(FileChannel.MapMode.READ_ONLY, depthOffset + 4L * runCount, 4L * runCount).asIntBuffer();
+					if (hasPValues) {
+						runPValues = channel.map(FileChannel.MapMode.READ_ONLY, pvalueOffset, 4L * runCount).asFloatBuffer();
+					}
+				} catch (IOException e) {
+					throw new BioError(e);
+				}
+			}
+			return runDepths;
+		}
+
+		private ByteBuffer map(long offset, int chunk, int width) {
+			long first = (long) chunk << CHUNK_SHIFT;
+			long entries = Math.min(length - first, 1L << CHUNK_SHIFT);
+			try {
+				return channel.map(FileChannel.MapMode.READ_ONLY, offset + first * width, entries * width);
+			} catch (IOException e) {
+				throw new BioError(e);
+			}
+		}
+	}
+}
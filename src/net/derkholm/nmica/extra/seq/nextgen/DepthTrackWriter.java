@@ -0,0 +1,290 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.derkholm.nmica.extra.seq.nextgen.DepthTrack.Encoding;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Writes the binary depth track format read by DepthTrack.
+ * Blocks are appended one reference at a time, the index is written on close().
+ */
+public class DepthTrackWriter {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Encoding encoding;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	private final DataOutputStream index = new DataOutputStream(indexBytes);
+	private final List<String> written = new ArrayList<String>();
+
+	public DepthTrackWriter(File f, Encoding encoding) throws IOException {
+		this.file = new RandomAccessFile(f, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+		this.encoding = encoding;
+
+		buf.putInt(DepthTrack.MAGIC);
+		buf.putInt(DepthTrack.VERSION);
+		buf.putLong(0L);
+		flush();
+	}
+
+	/* the depths of a whole pileup (nullDist gives the p-values, or null if they shouldn't be stored) */
+	public void write(
+			String name,
+			int readCount,
+			double lambda,
+			SAMPileup pileup,
+			PoissonTail nullDist) throws IOException {
+		Reference ref = beginReference(name, readCount, lambda, pileup.length(), nullDist);
+		ref.add(pileup.depths(), 0, pileup.length());
+		ref.end();
+	}
+
+	/*
+	 * Starts the block of a reference sequence, the depths are then added in order
+	 * a piece at a time (e.g. tile by tile) and the block is finished with end().
+	 * Only one reference can be open at a time. The parts of the block that come
+	 * after the first array (run depths, p-values) are spooled to temporary files
+	 * until end(), so memory use doesn't depend on the reference length.
+	 */
+	public Reference beginReference(
+			String name,
+			int readCount,
+			double lambda,
+			int length,
+			PoissonTail nullDist) throws IOException {
+		return new Reference(name, readCount, lambda, length, nullDist);
+	}
+
+	public class Reference {
+		private final String name;
+		private final int readCount;
+		private final double lambda;
+		private final int length;
+		private final PoissonTail nullDist;
+		private final long depthOffset;
+
+		private final Spool runDepths;
+		private final Spool pvalues;
+		private int position = 0;
+		private int runCount = 0;
+		private int lastDepth = -1;
+
+		private Reference(String name, int readCount, double lambda, int length, PoissonTail nullDist) throws IOException {
+			this.name = name;
+			this.readCount = readCount;
+			this.lambda = lambda;
+			this.length = length;
+			this.nullDist = nullDist;
+			this.depthOffset = channel.position();
+			this.runDepths = encoding == Encoding.RLE ? new Spool() : null;
+			this.pvalues = nullDist != null ? new Spool() : null;
+		}
+
+		/* the depths of the next count positions, from depths[from] on */
+		public void add(int[] depths, int from, int count) throws IOException {
+			if (position + count > length) {
+				throw new BioError("More depths than positions in " + name);
+			}
+			for (int i = from; i < from + count; i++) {
+				int depth = depths[i];
+				if (encoding == Encoding.FIXED) {
+					ensureRoom(4);
+					buf.putInt(depth);
+					if (pvalues != null) pvalues.out.writeFloat((float) nullDist.pvalue(depth));
+				} else if (position == 0 || depth != lastDepth) {
+					ensureRoom(4);
+					buf.putInt(position);
+					runDepths.out.writeInt(depth);
+					if (pvalues != null) pvalues.out.writeFloat((float) nullDist.pvalue(depth));
+					runCount++;
+				}
+				lastDepth = depth;
+				position++;
+			}
+		}
+
+		public void end() throws IOException {
+			if (position != length) {
+				throw new BioError(String.format("%d depths given for %s of length %d", position, name, length));
+			}
+			flush();
+			if (runDepths != null) {
+				runDepths.appendTo(channel);
+			}
+			long pvalueOffset = 0;
+			if (pvalues != null) {
+				pvalueOffset = channel.position();
+				pvalues.appendTo(channel);
+			}
+
+			index.writeUTF(name);
+			index.writeInt(length);
+			index.writeInt(readCount);
+			index.writeDouble(lambda);
+			index.writeByte(encoding.ordinal());
+			index.writeBoolean(pvalues != null);
+			index.writeInt(encoding == Encoding.FIXED ? 0 : runCount);
+			index.writeLong(depthOffset);
+			index.writeLong(pvalueOffset);
+			written.add(name);
+		}
+	}
+
+	/* a temporary file that is copied to the end of the track and deleted */
+	private static class Spool {
+		private final File file;
+		private final DataOutputStream out;
+
+		Spool() throws IOException {
+			this.file = File.createTempFile("depthtrack", ".tmp");
+			this.file.deleteOnExit();
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		}
+
+		void appendTo(FileChannel channel) throws IOException {
+			out.close();
+			FileChannel in = new FileInputStream(file).getChannel();
+			try {
+				long size = in.size();
+				long done = 0;
+				while (done < size) {
+					done += in.transferTo(done, size - done, channel);
+				}
+			} finally {
+				in.close();
+				file.delete();
+			}
+		}
+	}
+
+	/*
+	 * Reserves a FLOAT block of the given length for a reference sequence.
+	 * The block is filled in through the returned ValueBlock (which can be done from another thread,
+	 * one thread per block) and needs to be complete by the time the writer is closed.
+	 */
+	public ValueBlock reserveValues(String name, int length) throws IOException {
+		long offset = channel.position();
+		long end = offset + 4L * length;
+		file.setLength(end);
+		channel.position(end);
+
+		index.writeUTF(name);
+		index.writeInt(length);
+		index.writeInt(0);
+		index.writeDouble(Double.NaN);
+		index.writeByte(Encoding.FLOAT.ordinal());
+		index.writeBoolean(false);
+		index.writeInt(0);
+		index.writeLong(offset);
+		index.writeLong(0L);
+		written.add(name);
+
+		return new ValueBlock(offset, length);
+	}
+
+	public void close() throws IOException {
+		long indexOffset = channel.position();
+		index.flush();
+
+		ByteBuffer refCount = ByteBuffer.allocate(4);
+		refCount.putInt(written.size());
+		refCount.flip();
+		channel.write(refCount);
+		channel.write(ByteBuffer.wrap(indexBytes.toByteArray()));
+
+		ByteBuffer offset = ByteBuffer.allocate(8);
+		offset.putLong(indexOffset);
+		offset.flip();
+		channel.write(offset, 8);
+
+		channel.close();
+		file.close();
+	}
+
+	/* scores of one reference, mapped in chunks of the same size as DepthTrack reads them */
+	public class ValueBlock {
+		private static final int CHUNK_SHIFT = 28;
+		private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+		private final long offset;
+		private final int length;
+		private final FloatBuffer[] chunks;
+
+		private ValueBlock(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+			this.chunks = new FloatBuffer[(length >>> CHUNK_SHIFT) + 1];
+		}
+
+		public int length() {
+			return length;
+		}
+
+		/* 0-based position */
+		public void set(int pos, float value) {
+			chunk(pos >>> CHUNK_SHIFT).put(pos & CHUNK_MASK, value);
+		}
+
+		/* the same score at [from, to) */
+		public void set(int from, int to, float value) {
+			to = Math.min(to, length);
+			for (int pos = Math.max(0, from); pos < to; pos++) {
+				set(pos, value);
+			}
+		}
+
+		/* maps (and so fills with NaN) the chunks nothing was written to */
+		public void finish() {
+			for (int c = 0; c < chunks.length; c++) {
+				chunk(c);
+			}
+		}
+
+		/* positions are NaN (no score) until set */
+		private FloatBuffer chunk(int c) {
+			if (chunks[c] == null) {
+				long first = (long) c << CHUNK_SHIFT;
+				int entries = (int) Math.min(length - first, 1L << CHUNK_SHIFT);
+				try {
+					chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, offset + 4L * first, 4L * entries).asFloatBuffer();
+				} catch (IOException e) {
+					throw new BioError(e);
+				}
+				for (int i = 0; i < entries; i++) {
+					chunks[c].put(i, Float.NaN);
+				}
+			}
+			return chunks[c];
+		}
+	}
+
+	private void ensureRoom(int bytes) throws IOException {
+		if (buf.remaining() < bytes) flush();
+	}
+
+	private void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+}
@@ -0,0 +1,125 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Streaming filter for PCR duplicates in coordinate sorted reads: at most maxDuplicates reads
+ * are accepted with the same reference sequence, strand and 5' position
+ * (the alignment start on the positive strand, the alignment end on the negative strand).
+ *
+ * The 5' end of a read is never before its alignment start, so only positions from the
+ * start of the current read onwards can still get more reads. Their counts are kept in
+ * a fixed size ring buffer per strand, which makes the memory use independent of the
+ * number of reads. Reads spanning more than the ring buffer are always accepted.
+ */
+public class DuplicateFilter {
+	private static final int WINDOW = 1 << 16;
+	private static final int MASK = WINDOW - 1;
+
+	private final int maxDuplicates;
+	private final int[] plusCounts = new int[WINDOW];
+	private final int[] minusCounts = new int[WINDOW];
+	private int refIndex = -1;
+	private int windowStart = 0;
+	private long duplicates = 0;
+
+	public DuplicateFilter(int maxDuplicates) {
+		if (maxDuplicates < 1) {
+			throw new IllegalArgumentException("maxDuplicates needs to be >= 1");
+		}
+		this.maxDuplicates = maxDuplicates;
+	}
+
+	public boolean accept(SAMRecord rec) {
+		boolean negative = rec.getReadNegativeStrandFlag();
+		Integer ref = rec.getReferenceIndex();
+		return accept(
+				ref != null ? ref : -1,
+				rec.getAlignmentStart(),
+				negative ? rec.getAlignmentEnd() : rec.getAlignmentStart(),
+				negative);
+	}
+
+	/* for callers that decode the alignment fields themselves */
+	public boolean accept(int refIndex, int alignmentStart, int fivePrime, boolean negative) {
+		if (refIndex != this.refIndex) {
+			Arrays.fill(plusCounts, 0);
+			Arrays.fill(minusCounts, 0);
+			this.refIndex = refIndex;
+			this.windowStart = alignmentStart;
+		} else if (alignmentStart < windowStart) {
+			throw new BioError("Reads need to be sorted by coordinate for filtering duplicates");
+		} else {
+			advanceTo(alignmentStart);
+		}
+
+		if (fivePrime - windowStart >= WINDOW) return true;
+
+		int[] counts = negative ? minusCounts : plusCounts;
+		int slot = fivePrime & MASK;
+		if (counts[slot] >= maxDuplicates) {
+			duplicates++;
+			return false;
+		}
+		counts[slot]++;
+		return true;
+	}
+
+	/* positions before the new start can't get any more reads */
+	private void advanceTo(int start) {
+		if (start - windowStart >= WINDOW) {
+			Arrays.fill(plusCounts, 0);
+			Arrays.fill(minusCounts, 0);
+		} else {
+			for (int pos = windowStart; pos < start; pos++) {
+				plusCounts[pos & MASK] = 0;
+				minusCounts[pos & MASK] = 0;
+			}
+		}
+		windowStart = start;
+	}
+
+	public long getDuplicateCount() {
+		return duplicates;
+	}
+
+	/* the records of an iterator that pass the filter */
+	public CloseableIterator<SAMRecord> filter(final CloseableIterator<SAMRecord> recs) {
+		return new CloseableIterator<SAMRecord>() {
+			private SAMRecord next = advance();
+
+			private SAMRecord advance() {
+				while (recs.hasNext()) {
+					SAMRecord rec = recs.next();
+					if (rec.getReadUnmappedFlag() || accept(rec)) return rec;
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public SAMRecord next() {
+				if (next == null) throw new NoSuchElementException();
+				SAMRecord rec = next;
+				next = advance();
+				return rec;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				recs.close();
+			}
+		};
+	}
+}
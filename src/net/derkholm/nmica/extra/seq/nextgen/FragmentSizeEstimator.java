@@ -0,0 +1,228 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+
+import org.biojava.bio.BioException;
+
+/*
+ * Estimates the fragment length of single end reads from the strand cross-correlation:
+ * the 5' ends of reads on the negative strand are shifted by about the fragment length
+ * (minus one) relative to the ones on the positive strand.
+ *
+ * The 5' ends are collected per reference sequence and strand into int arrays in one pass
+ * over the reads. For each lag the Pearson correlation of the per-base 5' end counts
+ * of the two strands is computed from the sorted ends (only pairs of ends within the lag
+ * range are visited), the reference sequences in parallel. The per reference correlations
+ * are averaged weighted by read count and the fragment length is the lag of the maximum, plus one.
+ */
+public class FragmentSizeEstimator {
+	public static final int DEFAULT_MIN_LENGTH = 50;
+	public static final int DEFAULT_MAX_LENGTH = 500;
+
+	private final int minLength;
+	private final int maxLength;
+	private final List<Ends> refEnds = new ArrayList<Ends>();
+	private double[] correlation;
+
+	public FragmentSizeEstimator(int minLength, int maxLength) {
+		if (minLength < 1 || maxLength < minLength) {
+			throw new IllegalArgumentException("Invalid fragment length range " + minLength + "-" + maxLength);
+		}
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+	}
+
+	/* 5' ends of the reads mapped to a reference sequence */
+	private static class Ends {
+		final String name;
+		final int length;
+		int[] plus = new int[1024], minus = new int[1024];
+		int plusCount = 0, minusCount = 0;
+
+		Ends(String name, int length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		void add(boolean negative, int pos) {
+			if (negative) {
+				if (minusCount == minus.length) minus = Arrays.copyOf(minus, minus.length * 2);
+				minus[minusCount++] = pos;
+			} else {
+				if (plusCount == plus.length) plus = Arrays.copyOf(plus, plus.length * 2);
+				plus[plusCount++] = pos;
+			}
+		}
+	}
+
+	public void addReference(String name, int length) {
+		refEnds.add(new Ends(name, length));
+		correlation = null;
+	}
+
+	/* a read on the refIndex'th reference (in the order they were added) */
+	public void add(int refIndex, SAMRecord rec) {
+		if (rec.getReadNegativeStrandFlag()) {
+			refEnds.get(refIndex).add(true, rec.getAlignmentEnd());
+		} else {
+			refEnds.get(refIndex).add(false, rec.getAlignmentStart());
+		}
+		correlation = null;
+	}
+
+	/*
+	 * Reads the whole file once (no index needed), skipping unmapped reads
+	 * and those below the mapping quality cutoff.
+	 */
+	public static FragmentSizeEstimator fromReads(
+			File reads,
+			int minLength,
+			int maxLength,
+			int qualityCutoff) {
+		FragmentSizeEstimator estimator = new FragmentSizeEstimator(minLength, maxLength);
+		SAMFileReader reader = new SAMFileReader(reads);
+		reader.setValidationStringency(ValidationStringency.SILENT);
+		for (SAMSequenceRecord seq : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+			estimator.addReference(seq.getSequenceName(), seq.getSequenceLength());
+		}
+
+		long count = 0;
+		for (SAMRecord rec : reader) {
+			if (rec.getReadUnmappedFlag() || rec.getMappingQuality() < qualityCutoff) continue;
+			Integer refIndex = rec.getReferenceIndex();
+			if (refIndex == null || refIndex < 0) continue;
+			estimator.add(refIndex, rec);
+			if (++count % 1000000 == 0) {
+				System.err.printf("Collected 5' ends of %d reads%n", count);
+			}
+		}
+		reader.close();
+		return estimator;
+	}
+
+	public int getMinLength() {
+		return minLength;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/* strand cross-correlation for fragment lengths minLength..maxLength (index 0 is minLength) */
+	public double[] crossCorrelation(int threads) throws BioException {
+		if (correlation != null) return correlation;
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		for (final Ends ends : refEnds) {
+			if (ends.plusCount == 0 || ends.minusCount == 0) continue;
+			futures.add(threadPool.submit(new Callable<double[]>() {
+				public double[] call() throws Exception {
+					return correlate(ends);
+				}
+			}));
+		}
+
+		double[] sum = new double[maxLength - minLength + 1];
+		double totalWeight = 0;
+		try {
+			for (Future<double[]> f : futures) {
+				double[] corr = f.get();
+				if (corr == null) continue;
+				double weight = corr[corr.length - 1];
+				for (int i = 0; i < sum.length; i++) {
+					sum[i] += weight * corr[i];
+				}
+				totalWeight += weight;
+			}
+		} catch (InterruptedException e) {
+			throw new BioException(e);
+		} catch (ExecutionException e) {
+			throw new BioException(e.getCause());
+		} finally {
+			threadPool.shutdown();
+		}
+
+		if (totalWeight == 0) {
+			throw new BioException("No reads on both strands of any reference sequence, can't estimate the fragment length");
+		}
+		for (int i = 0; i < sum.length; i++) {
+			sum[i] /= totalWeight;
+		}
+		this.correlation = sum;
+		return sum;
+	}
+
+	/* the fragment length with the highest strand cross-correlation */
+	public int estimate(int threads) throws BioException {
+		double[] corr = crossCorrelation(threads);
+		int best = 0;
+		for (int i = 1; i < corr.length; i++) {
+			if (corr[i] > corr[best]) best = i;
+		}
+		return minLength + best;
+	}
+
+	/*
+	 * Correlations for the lags minLength-1..maxLength-1, followed by the weight
+	 * of the reference sequence (its read count), or null if either strand has no variance.
+	 */
+	private double[] correlate(Ends ends) {
+		int[] plus = Arrays.copyOf(ends.plus, ends.plusCount);
+		int[] minus = Arrays.copyOf(ends.minus, ends.minusCount);
+		Arrays.sort(plus);
+		Arrays.sort(minus);
+
+		double n = ends.length;
+		double meanPlus = plus.length / n;
+		double meanMinus = minus.length / n;
+		double varPlus = sumOfSquaredCounts(plus) / n - meanPlus * meanPlus;
+		double varMinus = sumOfSquaredCounts(minus) / n - meanMinus * meanMinus;
+		if (varPlus <= 0 || varMinus <= 0) return null;
+
+		int minLag = minLength - 1;
+		int maxLag = maxLength - 1;
+		long[] products = new long[maxLag - minLag + 1];
+		int lo = 0;
+		for (int p : plus) {
+			while (lo < minus.length && minus[lo] < p + minLag) lo++;
+			for (int j = lo; j < minus.length && minus[j] <= p + maxLag; j++) {
+				products[minus[j] - p - minLag]++;
+			}
+		}
+
+		double sd = Math.sqrt(varPlus * varMinus);
+		double[] corr = new double[products.length + 1];
+		for (int i = 0; i < products.length; i++) {
+			corr[i] = (products[i] / n - meanPlus * meanMinus) / sd;
+		}
+		corr[products.length] = plus.length + minus.length;
+		return corr;
+	}
+
+	/* sum over positions of the squared number of ends at the position (the ends are sorted) */
+	private static double sumOfSquaredCounts(int[] sorted) {
+		double sum = 0;
+		int i = 0;
+		while (i < sorted.length) {
+			int j = i + 1;
+			while (j < sorted.length && sorted[j] == sorted[i]) j++;
+			sum += (double) (j - i) * (j - i);
+			i = j;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,106 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Local Poisson background of a treatment pileup estimated from a control pileup:
+ * lambda at a position is the largest of the mean control depths in windows of the given
+ * sizes centred on it (scaled by the treatment / control library size ratio) and a
+ * floor lambda (typically the reference-wide expected depth).
+ *
+ * The window sums are kept as running differences of the control prefix sum while the
+ * positions are walked in order, so a reference takes one pass whatever the window sizes.
+ * Poisson tails are memoised per lambda rounded to LAMBDA_RESOLUTION.
+ */
+public class LocalBackground {
+	public static final int[] DEFAULT_WINDOW_SIZES = {1000, 5000, 10000};
+	private static final double LAMBDA_RESOLUTION = 0.01;
+	private static final int MAX_CACHED_TAILS = 4096;
+
+	public static interface Handler {
+		/* 0-based position, treatment depth, local lambda, fold enrichment and -log10 P(X >= depth) */
+		public void position(int pos, int depth, double lambda, double fold, double minusLog10P) throws Exception;
+	}
+
+	private final int[] windowSizes;
+	private final double scale;
+	private final Map<Long, PoissonTail> tails = new HashMap<Long, PoissonTail>();
+
+	public LocalBackground(int[] windowSizes, double scale) {
+		this.windowSizes = windowSizes;
+		this.scale = scale;
+	}
+
+	public void walk(int[] treatment, int[] control, int length, double minLambda, Handler handler) throws Exception {
+		walk(treatment, control, 0, 0, length, length, minLambda, handler);
+	}
+
+	/*
+	 * Positions [from, to) of a reference, for pileups computed in tiles:
+	 * the depth of position i is treatment[i - from] and its control depth control[i - controlOffset].
+	 * The control depths need to cover the windows of the positions (clipped to the reference).
+	 */
+	public void walk(
+			int[] treatment,
+			int[] control,
+			int controlOffset,
+			int from,
+			int to,
+			int refLength,
+			double minLambda,
+			Handler handler) throws Exception {
+		int windows = windowSizes.length;
+		long[] sums = new long[windows];
+		int[] lo = new int[windows];
+		int[] hi = new int[windows];
+		for (int w = 0; w < windows; w++) {
+			lo[w] = hi[w] = Math.max(0, from - windowSizes[w] / 2);
+		}
+
+		int lastDepth = -1;
+		long lastKey = -1;
+		double lastLogP = 0.0;
+
+		for (int pos = from; pos < to; pos++) {
+			double maxMean = 0.0;
+			for (int w = 0; w < windows; w++) {
+				int winFrom = Math.max(0, pos - windowSizes[w] / 2);
+				int winTo = Math.min(refLength, winFrom + windowSizes[w]);
+				while (hi[w] < winTo) sums[w] += control[hi[w]++ - controlOffset];
+				while (lo[w] < winFrom) sums[w] -= control[lo[w]++ - controlOffset];
+				maxMean = Math.max(maxMean, (double) sums[w] / (hi[w] - lo[w]));
+			}
+
+			long key = Math.max(1L, Math.round(Math.max(minLambda, scale * maxMean) / LAMBDA_RESOLUTION));
+			double lambda = key * LAMBDA_RESOLUTION;
+			int depth = treatment[pos - from];
+
+			if (depth != lastDepth || key != lastKey) {
+				lastLogP = tail(key).logPValue(depth - 1);
+				lastDepth = depth;
+				lastKey = key;
+			}
+			handler.position(pos, depth, lambda, depth / lambda, Math.max(0.0, -lastLogP / Math.log(10.0)));
+		}
+	}
+
+	/* how far the control depths need to reach beyond the positions walked */
+	public int halo() {
+		int halo = 0;
+		for (int size : windowSizes) {
+			halo = Math.max(halo, size);
+		}
+		return halo;
+	}
+
+	private PoissonTail tail(long key) {
+		PoissonTail tail = tails.get(key);
+		if (tail == null) {
+			if (tails.size() >= MAX_CACHED_TAILS) tails.clear();
+			tail = new PoissonTail(key * LAMBDA_RESOLUTION);
+			tails.put(key, tail);
+		}
+		return tail;
+	}
+}
@@ -0,0 +1,170 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+/*
+ * Mean depths of several samples in fixed size bins, from one pass over the indexed reads of each
+ * reference sequence: the coordinate sorted record streams of the samples are merged by alignment start,
+ * and the covered bases of the extended reads are summed per bin and sample in primitive arrays.
+ *
+ * Reads are extended to at most extendedLength before their alignment start (negative strand),
+ * so bins ending before (alignment start - extendedLength) of the current read are complete.
+ * Only the bins from there on are kept; complete bins are written out a stretch at a time,
+ * which keeps memory independent of the reference length.
+ */
+public class MultiSampleBinner {
+	/* complete bins are written out once there are at least this many */
+	private static final int FLUSH_BINS = 1 << 12;
+
+	private final int samples;
+	private final int binSize;
+	private final int extendedLength;
+	private final int qualityCutoff;
+	private final DuplicateFilter[] duplicates;
+	private final long[] readCounts;
+
+	private long[][] bases;
+	private float[] values;
+	private int firstBin;
+	private int usedBins;
+
+	/* duplicates is a filter per sample, or null */
+	public MultiSampleBinner(int samples, int binSize, int extendedLength, int qualityCutoff, DuplicateFilter[] duplicates) {
+		this.samples = samples;
+		this.binSize = binSize;
+		this.extendedLength = Math.max(0, extendedLength);
+		this.qualityCutoff = qualityCutoff;
+		this.duplicates = duplicates;
+		this.readCounts = new long[samples];
+		this.bases = new long[samples][2 * FLUSH_BINS];
+		this.values = new float[2 * FLUSH_BINS];
+	}
+
+	/* reads counted per sample so far */
+	public long[] getReadCounts() {
+		return readCounts;
+	}
+
+	/* the next record of a sample's stream */
+	private static class Head implements Comparable<Head> {
+		final int sample;
+		final CloseableIterator<SAMRecord> recs;
+		SAMRecord rec;
+
+		Head(int sample, CloseableIterator<SAMRecord> recs) {
+			this.sample = sample;
+			this.recs = recs;
+		}
+
+		boolean advance() {
+			if (recs.hasNext()) {
+				rec = recs.next();
+				return true;
+			}
+			recs.close();
+			return false;
+		}
+
+		public int compareTo(Head h) {
+			int a = rec.getAlignmentStart(), b = h.rec.getAlignmentStart();
+			if (a != b) return a < b ? -1 : 1;
+			return sample - h.sample;
+		}
+	}
+
+	/*
+	 * Bins the reads of a reference sequence. readers has one reader per sample,
+	 * null for samples that don't have the reference sequence.
+	 */
+	public void bin(SAMFileReader[] readers, String name, int length, DepthMatrixWriter.Reference out) throws IOException {
+		ReadFragment fragment = ReadFragment.extendedTo(extendedLength, length);
+		int binCount = out.binCount();
+		firstBin = 0;
+		usedBins = 0;
+		for (long[] b : bases) {
+			Arrays.fill(b, 0L);
+		}
+
+		PriorityQueue<Head> heads = new PriorityQueue<Head>();
+		for (int s = 0; s < samples; s++) {
+			if (readers[s] == null) continue;
+			Head head = new Head(s, readers[s].queryOverlapping(name, 0, length));
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+
+		while (!heads.isEmpty()) {
+			Head head = heads.poll();
+			SAMRecord rec = head.rec;
+			int s = head.sample;
+			if (head.advance()) {
+				heads.add(head);
+			}
+
+			if (rec.getReadUnmappedFlag() || rec.getMappingQuality() < qualityCutoff) continue;
+			if (duplicates != null && !duplicates[s].accept(rec)) continue;
+			readCounts[s]++;
+
+			int complete = Math.max(0, rec.getAlignmentStart() - extendedLength) / binSize;
+			if (complete - firstBin >= FLUSH_BINS) {
+				flush(out, Math.min(complete, binCount), length);
+			}
+
+			int start = fragment.start(rec);
+			int end = fragment.end(rec);
+			if (start >= end) continue;
+			add(s, start, end);
+		}
+		flush(out, binCount, length);
+	}
+
+	/* adds the bases of [start, end) to the bins they fall in */
+	private void add(int sample, int start, int end) {
+		int startBin = start / binSize;
+		int endBin = (end - 1) / binSize;
+		ensureCapacity(endBin - firstBin + 1);
+		long[] b = bases[sample];
+		for (int bin = startBin; bin <= endBin; bin++) {
+			int binStart = bin * binSize;
+			b[bin - firstBin] += Math.min(end, binStart + binSize) - Math.max(start, binStart);
+		}
+		usedBins = Math.max(usedBins, endBin - firstBin + 1);
+	}
+
+	private void ensureCapacity(int bins) {
+		if (bins <= bases[0].length) return;
+		int capacity = Math.max(bins, 2 * bases[0].length);
+		for (int s = 0; s < samples; s++) {
+			bases[s] = Arrays.copyOf(bases[s], capacity);
+		}
+		values = new float[capacity];
+	}
+
+	/* writes out the bins before toBin and moves the rest to the start of the arrays */
+	private void flush(DepthMatrixWriter.Reference out, int toBin, int length) throws IOException {
+		while (firstBin < toBin) {
+			int count = Math.min(toBin - firstBin, values.length);
+			for (int s = 0; s < samples; s++) {
+				long[] b = bases[s];
+				for (int i = 0; i < count; i++) {
+					int binStart = (firstBin + i) * binSize;
+					values[i] = (float) b[i] / Math.min(binSize, length - binStart);
+				}
+				out.write(s, firstBin, values, count);
+
+				int kept = Math.max(0, usedBins - count);
+				System.arraycopy(b, count, b, 0, kept);
+				Arrays.fill(b, kept, Math.max(kept, Math.min(usedBins, b.length)), 0L);
+			}
+			usedBins = Math.max(0, usedBins - count);
+			firstBin += count;
+		}
+	}
+}
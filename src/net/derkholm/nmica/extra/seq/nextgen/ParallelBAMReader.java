@@ -0,0 +1,139 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+import net.sf.samtools.util.StringLineReader;
+
+/*
+ * Reads the records of a BAM file (or stream) in file order,
+ * with the BGZF blocks decompressed by a ParallelBGZFInputStream.
+ * Only sequential reading is supported, use SAMFileReader for indexed queries.
+ */
+public class ParallelBAMReader implements Iterable<SAMRecord> {
+	private final ParallelBGZFInputStream in;
+	private final SAMFileHeader header;
+	private final BAMRecordCodec codec;
+
+	public ParallelBAMReader(InputStream compressed, int threads) throws IOException {
+		this.in = new ParallelBGZFInputStream(new BufferedInputStream(compressed, 1 << 16), threads);
+		this.header = readHeader();
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setInputStream(in);
+	}
+
+	/* true if the stream starts with the gzip magic bytes (the stream needs to support mark / reset) */
+	public static boolean isCompressed(InputStream in) throws IOException {
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		return b1 == 31 && b2 == 139;
+	}
+
+	private SAMFileHeader readHeader() throws IOException {
+		byte[] magic = readBytes(4);
+		if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+			throw new IOException("Input is not a BAM file");
+		}
+
+		String text = new String(readBytes(readInt()), "US-ASCII");
+		int nul = text.indexOf('\0');
+		if (nul >= 0) text = text.substring(0, nul);
+		SAMFileHeader header = new SAMTextHeaderCodec().decode(new StringLineReader(text), null);
+
+		/* 
+		 * the records refer to the binary reference list by index: it is used if the text has no @SQ lines,
+		 * otherwise the two need to agree, as in SAMFileReader
+		 */
+		int refCount = readInt();
+		List<SAMSequenceRecord> refs = new ArrayList<SAMSequenceRecord>(refCount);
+		for (int r = 0; r < refCount; r++) {
+			byte[] name = readBytes(readInt());
+			int length = readInt();
+			refs.add(new SAMSequenceRecord(new String(name, 0, name.length - 1, "US-ASCII"), length));
+		}
+		List<SAMSequenceRecord> textRefs = header.getSequenceDictionary().getSequences();
+		if (textRefs.isEmpty()) {
+			header.setSequenceDictionary(new SAMSequenceDictionary(refs));
+		} else if (textRefs.size() != refs.size()) {
+			throw new IOException("The @SQ lines of the BAM header don't match its reference list");
+		} else {
+			for (int r = 0; r < refCount; r++) {
+				SAMSequenceRecord textRef = textRefs.get(r), binary = refs.get(r);
+				if (!textRef.getSequenceName().equals(binary.getSequenceName()) || 
+						textRef.getSequenceLength() != binary.getSequenceLength()) {
+					throw new IOException("The @SQ lines of the BAM header don't match its reference list " +
+							"(" + textRef.getSequenceName() + " vs " + binary.getSequenceName() + ")");
+				}
+			}
+		}
+		return header;
+	}
+
+	private byte[] readBytes(int len) throws IOException {
+		byte[] buf = new byte[len];
+		int off = 0;
+		while (off < len) {
+			int n = in.read(buf, off, len - off);
+			if (n < 0) throw new IOException("Truncated BAM header");
+			off += n;
+		}
+		return buf;
+	}
+
+	private int readInt() throws IOException {
+		byte[] b = readBytes(4);
+		return (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24);
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	/* the records from the current position on (the reader can only be iterated once) */
+	public CloseableIterator<SAMRecord> iterator() {
+		return new CloseableIterator<SAMRecord>() {
+			private SAMRecord next = codec.decode();
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public SAMRecord next() {
+				if (next == null) throw new NoSuchElementException();
+				SAMRecord rec = next;
+				next = codec.decode();
+				return rec;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				ParallelBAMReader.this.close();
+			}
+		};
+	}
+
+	public void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+}
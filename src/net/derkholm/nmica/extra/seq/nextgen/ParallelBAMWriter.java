@@ -0,0 +1,71 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.RuntimeIOException;
+
+/*
+ * Writes records to a BAM file in the order they are added,
+ * with the BGZF blocks compressed by a ParallelBGZFOutputStream.
+ * Unlike the writers of SAMFileWriterFactory this never sorts the records,
+ * so it is meant for output in the (sorted) order of the input.
+ */
+public class ParallelBAMWriter implements SAMFileWriter {
+	private final ParallelBGZFOutputStream out;
+	private final BAMRecordCodec codec;
+
+	public ParallelBAMWriter(SAMFileHeader header, File f, int threads) throws IOException {
+		this.out = new ParallelBGZFOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16), threads);
+		writeHeader(header);
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setOutputStream(out);
+	}
+
+	private void writeHeader(SAMFileHeader header) throws IOException {
+		out.write(new byte[] {'B', 'A', 'M', 1});
+
+		StringWriter text = new StringWriter();
+		new SAMTextHeaderCodec().encode(text, header);
+		byte[] textBytes = text.toString().getBytes("US-ASCII");
+		writeInt(textBytes.length);
+		out.write(textBytes);
+
+		writeInt(header.getSequenceDictionary().size());
+		for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+			byte[] name = seq.getSequenceName().getBytes("US-ASCII");
+			writeInt(name.length + 1);
+			out.write(name);
+			out.write(0);
+			writeInt(seq.getSequenceLength());
+		}
+	}
+
+	private void writeInt(int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >>> 8) & 0xff);
+		out.write((value >>> 16) & 0xff);
+		out.write((value >>> 24) & 0xff);
+	}
+
+	public void addAlignment(SAMRecord rec) {
+		codec.encode(rec);
+	}
+
+	public void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+}
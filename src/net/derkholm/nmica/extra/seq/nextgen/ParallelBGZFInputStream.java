@@ -0,0 +1,223 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Decompresses a BGZF (blocked gzip, as used by BAM) stream with several threads.
+ *
+ * A read-ahead thread reads the compressed blocks and hands each one to a pool of
+ * inflater threads. The futures of the blocks are queued in file order, so the
+ * decompressed bytes come out in order. The queue is bounded, which keeps the memory
+ * use at a few blocks per thread however far ahead the inflaters could get.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	/* marks the end of the stream in the queue */
+	private static final Future<byte[]> END = new FutureTask<byte[]>(new Callable<byte[]>() {
+		public byte[] call() {
+			return null;
+		}
+	});
+	static {
+		((FutureTask<byte[]>) END).run();
+	}
+
+	private final InputStream in;
+	private final ExecutorService inflaters;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Thread readAhead;
+
+	private byte[] current = new byte[0];
+	private int pos = 0;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	public ParallelBGZFInputStream(InputStream in, int threads) {
+		this.in = in;
+		this.inflaters = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("BGZF inflater"));
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(threads * BLOCKS_PER_THREAD);
+
+		this.readAhead = new Thread(new Runnable() {
+			public void run() {
+				readBlocks();
+			}
+		}, "BGZF read-ahead");
+		this.readAhead.setDaemon(true);
+		this.readAhead.start();
+	}
+
+	private void readBlocks() {
+		try {
+			byte[] block;
+			while (!closed && (block = readBlock()) != null) {
+				final byte[] compressed = block;
+				blocks.put(inflaters.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return inflate(compressed);
+					}
+				}));
+			}
+			blocks.put(END);
+		} catch (final IOException e) {
+			FutureTask<byte[]> failed = new FutureTask<byte[]>(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					throw e;
+				}
+			});
+			failed.run();
+			try {
+				blocks.put(failed);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			inflaters.shutdown();
+		}
+	}
+
+	/* a whole compressed block, or null at the end of the stream */
+	private byte[] readBlock() throws IOException {
+		byte[] header = new byte[12];
+		int n = readFully(header, 0, header.length);
+		if (n == 0) return null;
+		if (n < header.length || (header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0) {
+			throw new IOException("Input is not BGZF compressed");
+		}
+
+		int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte[] extra = new byte[xlen];
+		if (readFully(extra, 0, xlen) < xlen) throw new IOException("Truncated BGZF block");
+
+		int blockSize = -1;
+		for (int i = 0; i + 4 <= xlen;) {
+			int subfieldLength = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+			if (extra[i] == 66 && extra[i + 1] == 67 && subfieldLength == 2) {
+				blockSize = ((extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8)) + 1;
+			}
+			i += 4 + subfieldLength;
+		}
+		if (blockSize < 0) throw new IOException("No block size in the BGZF header");
+
+		byte[] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, header.length);
+		System.arraycopy(extra, 0, block, header.length, xlen);
+		int headerLength = header.length + xlen;
+		if (readFully(block, headerLength, blockSize - headerLength) < blockSize - headerLength) {
+			throw new IOException("Truncated BGZF block");
+		}
+		return block;
+	}
+
+	private int readFully(byte[] buf, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(buf, off + total, len - total);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	static byte[] inflate(byte[] block) throws IOException {
+		int xlen = (block[10] & 0xff) | ((block[11] & 0xff) << 8);
+		int dataStart = 12 + xlen;
+		int dataLength = block.length - dataStart - 8;
+		long crc = intAt(block, block.length - 8) & 0xffffffffL;
+		int size = intAt(block, block.length - 4);
+
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, dataStart, dataLength);
+			int inflated = 0;
+			while (inflated < size) {
+				int n = inflater.inflate(data, inflated, size - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+				inflated += n;
+			}
+			if (inflated != size) throw new IOException("BGZF block inflated to the wrong size");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, size);
+		if (crc32.getValue() != crc) throw new IOException("CRC mismatch in BGZF block");
+		return data;
+	}
+
+	private static int intAt(byte[] buf, int off) {
+		return (buf[off] & 0xff)
+			| ((buf[off + 1] & 0xff) << 8)
+			| ((buf[off + 2] & 0xff) << 16)
+			| ((buf[off + 3] & 0xff) << 24);
+	}
+
+	/* moves to the next non-empty block, returns false at the end of the stream */
+	private boolean nextBlock() throws IOException {
+		while (pos == current.length) {
+			if (finished) return false;
+			try {
+				byte[] data = blocks.take().get();
+				if (data == null) {
+					finished = true;
+					return false;
+				}
+				current = data;
+				pos = 0;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading BGZF blocks");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException(e.getCause().toString());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBlock()) return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!nextBlock()) return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, buf, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		readAhead.interrupt();
+		inflaters.shutdownNow();
+		in.close();
+	}
+}
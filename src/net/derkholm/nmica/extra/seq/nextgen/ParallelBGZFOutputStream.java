@@ -0,0 +1,172 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Writes a BGZF (blocked gzip, as used by BAM) stream, compressing the blocks on several threads.
+ *
+ * The data is cut into blocks of up to BLOCK_SIZE bytes as it is written, and each block is
+ * deflated by a thread pool. Compressed blocks are written out in order, with at most a few
+ * blocks per thread in flight. close() writes the standard empty BGZF block that marks the end of file.
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+	/* the same as samtools, small enough for the compressed block to stay under 64kB */
+	public static final int BLOCK_SIZE = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 0x10000;
+	private static final int HEADER_SIZE = 18;
+	private static final int FOOTER_SIZE = 8;
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	private static final byte[] EOF_BLOCK = {
+		31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final OutputStream out;
+	private final int level;
+	private final int maxPending;
+	private final ExecutorService deflaters;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int count = 0;
+	private boolean closed = false;
+
+	public ParallelBGZFOutputStream(OutputStream out, int threads) {
+		this(out, threads, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelBGZFOutputStream(OutputStream out, int threads, int level) {
+		this.out = out;
+		this.level = level;
+		this.maxPending = threads * BLOCKS_PER_THREAD;
+		this.deflaters = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("BGZF deflater"));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[count++] = (byte) b;
+		if (count == BLOCK_SIZE) submitBlock();
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(buf, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == BLOCK_SIZE) submitBlock();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		if (count == 0) return;
+		final byte[] data = buffer;
+		final int length = count;
+		buffer = new byte[BLOCK_SIZE];
+		count = 0;
+
+		pending.addLast(deflaters.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflate(data, length);
+			}
+		}));
+		while (pending.size() > maxPending) {
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing BGZF blocks");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
+	private byte[] deflate(byte[] data, int length) {
+		byte[] compressed = new byte[MAX_BLOCK_SIZE];
+		int compressedLength = deflate(data, length, level, compressed);
+		if (compressedLength < 0) {
+			/* incompressible data, stored blocks always fit */
+			compressedLength = deflate(data, length, Deflater.NO_COMPRESSION, compressed);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+		byte[] block = new byte[blockSize];
+		block[0] = 31;
+		block[1] = (byte) 139;
+		block[2] = 8;
+		block[3] = 4;
+		block[9] = (byte) 255;
+		block[10] = 6;
+		block[12] = 66;
+		block[13] = 67;
+		block[14] = 2;
+		block[16] = (byte) ((blockSize - 1) & 0xff);
+		block[17] = (byte) ((blockSize - 1) >>> 8);
+		System.arraycopy(compressed, 0, block, HEADER_SIZE, compressedLength);
+		putInt(block, HEADER_SIZE + compressedLength, (int) crc.getValue());
+		putInt(block, HEADER_SIZE + compressedLength + 4, length);
+		return block;
+	}
+
+	/* the compressed length, or -1 if it doesn't fit in a block */
+	private static int deflate(byte[] data, int length, int level, byte[] compressed) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int limit = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+			int n = deflater.deflate(compressed, 0, limit);
+			return deflater.finished() ? n : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void putInt(byte[] buf, int off, int value) {
+		buf[off] = (byte) value;
+		buf[off + 1] = (byte) (value >>> 8);
+		buf[off + 2] = (byte) (value >>> 16);
+		buf[off + 3] = (byte) (value >>> 24);
+	}
+
+	/* compresses and writes out everything written so far (ending the current block) */
+	@Override
+	public void flush() throws IOException {
+		submitBlock();
+		while (!pending.isEmpty()) {
+			writeNextBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			flush();
+			out.write(EOF_BLOCK);
+			out.close();
+		} finally {
+			deflaters.shutdown();
+		}
+	}
+}
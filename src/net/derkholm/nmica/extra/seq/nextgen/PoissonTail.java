@@ -0,0 +1,136 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+/*
+ * Memoised upper tail P(X > k) of a Poisson distribution, for integer k.
+ *
+ * The table is filled lazily up to the largest k asked for (growing by doubling) and
+ * is computed in log space so that tails far beyond lambda don't underflow to 0 before
+ * the log is taken. pvalue(k) is the same quantity as 1.0 - Poisson.cdf(k) in colt.
+ */
+public class PoissonTail {
+	private static final int INITIAL_SIZE = 64;
+
+	/* stop summing the series once a term is this far below the sum (e^-40 ~ 4e-18) */
+	private static final double LOG_EPSILON = -40.0;
+
+	private final double lambda;
+	private final double logLambda;
+	private volatile Table table;
+
+	private static final class Table {
+		final double[] logPmf; // log P(X = k), one longer than the tails
+		final double[] logTail; // log P(X > k)
+		final double[] tail; // P(X > k)
+
+		Table(int size) {
+			logPmf = new double[size + 1];
+			logTail = new double[size];
+			tail = new double[size];
+		}
+	}
+
+	public PoissonTail(double lambda) {
+		if (lambda < 0 || Double.isNaN(lambda)) {
+			throw new IllegalArgumentException("Invalid Poisson mean " + lambda);
+		}
+		this.lambda = lambda;
+		this.logLambda = Math.log(lambda);
+		this.table = fill(null, INITIAL_SIZE);
+	}
+
+	public double getLambda() {
+		return lambda;
+	}
+
+	/* P(X > k) */
+	public double pvalue(int k) {
+		if (k < 0) return 1.0;
+		Table t = this.table;
+		if (k >= t.tail.length) t = grow(k);
+		return t.tail[k];
+	}
+
+	/* log P(X > k) */
+	public double logPValue(int k) {
+		if (k < 0) return 0.0;
+		Table t = this.table;
+		if (k >= t.logTail.length) t = grow(k);
+		return t.logTail[k];
+	}
+
+	/* P(X > k) for k = 0..maxK */
+	public double[] pvalues(int maxK) {
+		Table t = this.table;
+		if (maxK >= t.tail.length) t = grow(maxK);
+		double[] p = new double[maxK + 1];
+		System.arraycopy(t.tail, 0, p, 0, maxK + 1);
+		return p;
+	}
+
+	private synchronized Table grow(int k) {
+		Table t = this.table;
+		if (k < t.tail.length) return t;
+
+		int size = t.tail.length;
+		while (size <= k) size *= 2;
+		t = fill(t, size);
+		this.table = t;
+		return t;
+	}
+
+	private Table fill(Table old, int size) {
+		Table t = new Table(size);
+		int from = 0;
+		if (old != null) {
+			from = old.tail.length;
+			System.arraycopy(old.logPmf, 0, t.logPmf, 0, old.logPmf.length);
+			System.arraycopy(old.logTail, 0, t.logTail, 0, from);
+			System.arraycopy(old.tail, 0, t.tail, 0, from);
+		}
+
+		if (lambda == 0.0) {
+			t.logPmf[0] = 0.0;
+			for (int k = Math.max(from, 1); k <= size; k++) t.logPmf[k] = Double.NEGATIVE_INFINITY;
+			for (int k = from; k < size; k++) {
+				t.logTail[k] = Double.NEGATIVE_INFINITY;
+				t.tail[k] = 0.0;
+			}
+			return t;
+		}
+
+		/* log pmf by the recurrence p(k) = p(k - 1) * lambda / k */
+		if (from == 0) t.logPmf[0] = -lambda;
+		for (int k = Math.max(from + 1, 1); k <= size; k++) {
+			t.logPmf[k] = t.logPmf[k - 1] + logLambda - Math.log(k);
+		}
+
+		/* the top of the table from the series sum_{j > k} p(j), the rest downwards from it */
+		int top = size - 1;
+		t.logTail[top] = seriesFrom(top + 1, t.logPmf[top + 1]);
+		for (int k = top - 1; k >= from; k--) {
+			t.logTail[k] = Math.min(0.0, logAdd(t.logTail[k + 1], t.logPmf[k + 1]));
+		}
+		for (int k = from; k < size; k++) {
+			t.tail[k] = Math.exp(t.logTail[k]);
+		}
+		return t;
+	}
+
+	/* log sum_{j >= k} p(j), given log p(k) */
+	private double seriesFrom(int k, double logPk) {
+		double sum = logPk;
+		double term = logPk;
+		for (int j = k + 1; ; j++) {
+			term += logLambda - Math.log(j);
+			sum = logAdd(sum, term);
+			if (j > lambda && term - sum < LOG_EPSILON) break;
+		}
+		return sum;
+	}
+
+	private static double logAdd(double a, double b) {
+		if (a == Double.NEGATIVE_INFINITY) return b;
+		if (b == Double.NEGATIVE_INFINITY) return a;
+		return a > b ? a + Math.log1p(Math.exp(b - a)) : b + Math.log1p(Math.exp(a - b));
+	}
+}
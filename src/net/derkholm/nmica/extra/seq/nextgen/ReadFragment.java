@@ -0,0 +1,77 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import net.sf.samtools.SAMRecord;
+
+/*
+ * The interval a read covers once extended towards its 3' end, computed on demand
+ * from the alignment start / end and strand, without touching the SAMRecord.
+ *
+ * Reads are either extended to a fragment length (positive strand: [start, start + length),
+ * negative strand: [end - length, end)) or by a number of nucleotides past the
+ * aligned bases. Intervals are bound by 0 and the reference sequence length.
+ * One instance is meant to be shared by all reads of a reference sequence.
+ */
+public class ReadFragment {
+	private final int fragmentLength;
+	private final int extendBy;
+	private final int refLength;
+
+	private ReadFragment(int fragmentLength, int extendBy, int refLength) {
+		this.fragmentLength = fragmentLength;
+		this.extendBy = extendBy;
+		this.refLength = refLength;
+	}
+
+	/* reads extended to the given fragment length (reads are left as they are if length <= 0) */
+	public static ReadFragment extendedTo(int length, int refLength) {
+		return new ReadFragment(Math.max(0, length), 0, refLength);
+	}
+
+	/* reads extended by n nucleotides past their aligned end */
+	public static ReadFragment extendedBy(int n, int refLength) {
+		return new ReadFragment(0, Math.max(0, n), refLength);
+	}
+
+	public int start(SAMRecord rec) {
+		if (!rec.getReadNegativeStrandFlag()) {
+			return Math.max(0, rec.getAlignmentStart());
+		}
+		if (fragmentLength > 0) {
+			return Math.max(0, Math.min(refLength, rec.getAlignmentEnd() - fragmentLength));
+		}
+		return Math.max(0, rec.getAlignmentStart() - extendBy);
+	}
+
+	public int end(SAMRecord rec) {
+		if (rec.getReadNegativeStrandFlag()) {
+			return Math.min(refLength, rec.getAlignmentEnd());
+		}
+		if (fragmentLength > 0) {
+			return Math.min(refLength, rec.getAlignmentStart() + fragmentLength);
+		}
+		return Math.min(refLength, rec.getAlignmentEnd() + extendBy);
+	}
+
+	/*
+	 * The interval in BED coordinates (0-based, end exclusive). start() and end() are 1-based and closed
+	 * for reads extended by n nucleotides, but [start, start + length) / [end - length, end) for reads
+	 * extended to a fragment length, which are then exactly the fragment length long on both strands.
+	 */
+	public int bedStart(SAMRecord rec) {
+		if (fragmentLength > 0 && rec.getReadNegativeStrandFlag()) {
+			return start(rec);
+		}
+		return Math.max(0, start(rec) - 1);
+	}
+
+	public int bedEnd(SAMRecord rec) {
+		if (fragmentLength > 0 && !rec.getReadNegativeStrandFlag()) {
+			return Math.max(0, Math.min(refLength, rec.getAlignmentStart() - 1 + fragmentLength));
+		}
+		return end(rec);
+	}
+
+	public int getRefLength() {
+		return refLength;
+	}
+}
@@ -1,20 +1,29 @@
 package net.derkholm.nmica.extra.seq.nextgen;
 
+import java.util.Arrays;
+
 import net.sf.samtools.SAMRecord;
 
 import org.biojava.bio.BioError;
 
+/*
+ * Reads are recorded as +1 / -1 at the ends of the extended fragment
+ * and the depths are obtained with a single prefix sum when first asked for.
+ */
 public class SAMPileup {
 	private int extendedLength;
-	private short[] pileup;
+	private ReadFragment fragment;
+	private int[] pileup;
+	private boolean summed = false;
 	private int refLength;
 	private String refName;
 
 	public SAMPileup(String refName, int refLength, int extendedLength) {
-		this.pileup = new short[refLength];
+		this.pileup = new int[refLength + 1];
 		this.extendedLength = extendedLength;
 		this.refLength = refLength;
 		this.refName = refName;
+		this.fragment = ReadFragment.extendedTo(extendedLength, refLength);
 	}
 
 	public void add(SAMRecord rec) {
@@ -22,24 +31,116 @@ public class SAMPileup {
 			throw new BioError(String.format("Unexpected reference sequence %s (expecting %s)",rec.getReferenceName(), this.refName));
 		}
 
-		int start = rec.getAlignmentStart();
-		int end = rec.getAlignmentEnd();
-		if (!rec.getReadNegativeStrandFlag()) {
-			for (int i = Math.max(start,0), endpos = Math.min(this.refLength, start + extendedLength); i < endpos; i++) {pileup[i]++;}
-		} else {
-			for (int i = Math.max(0, Math.min(this.refLength,end - extendedLength)); i < end; i++) {pileup[i]++;}
-		}
+		add(fragment.start(rec), fragment.end(rec));
+	}
+
+	/* increment depth in [from, to) */
+	public void add(int from, int to) {
+		if (from >= to) return;
+		if (summed) unsum();
+
+		pileup[from]++;
+		pileup[to]--;
 	}
 
 	public int depthAt(int i) {
+		if (!summed) sum();
 		return pileup[i];
 	}
 
+	public int length() {
+		return refLength;
+	}
+
+	public String getRefName() {
+		return refName;
+	}
+
+	/* the depths as a track with one entry per position (shared, not copied) */
+	public int[] depths() {
+		if (!summed) sum();
+		return pileup;
+	}
+
+	public Runs runs() {
+		if (!summed) sum();
+
+		int n = 0;
+		for (int i = 0; i < refLength; i++) {
+			if (i == 0 || pileup[i] != pileup[i - 1]) n++;
+		}
+
+		int[] starts = new int[n];
+		int[] depths = new int[n];
+		int r = -1;
+		for (int i = 0; i < refLength; i++) {
+			if (i == 0 || pileup[i] != pileup[i - 1]) {
+				r++;
+				starts[r] = i;
+				depths[r] = pileup[i];
+			}
+		}
+		return new Runs(starts, depths, refLength);
+	}
+
+	private void sum() {
+		for (int i = 1; i <= refLength; i++) {
+			pileup[i] += pileup[i - 1];
+		}
+		summed = true;
+	}
+
+	private void unsum() {
+		for (int i = refLength; i > 0; i--) {
+			pileup[i] -= pileup[i - 1];
+		}
+		summed = false;
+	}
+
 	public int getExtendedLength() {
 		return extendedLength;
 	}
 
 	public void setExtendedLength(int extendedLength) {
 		this.extendedLength = extendedLength;
+		this.fragment = ReadFragment.extendedTo(extendedLength, refLength);
+	}
+
+	/* Run-length encoded depths: run i covers [start(i), end(i)) at depth(i) */
+	public static class Runs {
+		private final int[] starts;
+		private final int[] depths;
+		private final int length;
+
+		public Runs(int[] starts, int[] depths, int length) {
+			this.starts = starts;
+			this.depths = depths;
+			this.length = length;
+		}
+
+		public int size() {
+			return starts.length;
+		}
+
+		public int start(int run) {
+			return starts[run];
+		}
+
+		public int end(int run) {
+			return (run + 1) < starts.length ? starts[run + 1] : length;
+		}
+
+		public int depth(int run) {
+			return depths[run];
+		}
+
+		public int runAt(int pos) {
+			int i = Arrays.binarySearch(starts, pos);
+			return i >= 0 ? i : -i - 2;
+		}
+
+		public int depthAt(int pos) {
+			return depths[runAt(pos)];
+		}
 	}
-}
\ No newline at end of file
+}
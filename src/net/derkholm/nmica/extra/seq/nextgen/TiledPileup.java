@@ -0,0 +1,97 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.util.Arrays;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+/*
+ * Depths of a reference sequence computed one tile at a time, so that memory is
+ * bounded by the tile size rather than the reference length.
+ *
+ * The reads of a tile are queried from the index with a halo of the extended length
+ * on both sides (reads outside the tile that reach into it once extended) and recorded
+ * as +1 / -1 at the ends of their fragments clipped to the tile, like SAMPileup does,
+ * followed by a prefix sum. Positions are indexed the same way as in SAMPileup.
+ * The depth buffer is reused from tile to tile.
+ */
+public class TiledPileup {
+	/* tiles are at least this long whatever the budget */
+	public static final int MIN_TILE_SIZE = 1 << 16;
+
+	private final int tileSize;
+	private final int[] depths;
+	private long duplicateCount = 0;
+
+	public TiledPileup(int tileSize) {
+		this.tileSize = tileSize;
+		this.depths = new int[tileSize + 1];
+	}
+
+	/* the tile size for a memory budget (in bytes) of the depth buffers, each taking 4 bytes per position */
+	public static int tileSizeFor(long budget, int buffers) {
+		long size = budget / (4L * Math.max(1, buffers));
+		return (int) Math.max(MIN_TILE_SIZE, Math.min(Integer.MAX_VALUE - 1, size));
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/* duplicates removed by the last fill() that start in the tile */
+	public long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	/*
+	 * Fills the buffer with the depths of [from, to) (at most tileSize positions)
+	 * and returns it, depth of position i at index i - from.
+	 * Unmapped reads and reads below the mapping quality cutoff are skipped before the duplicates,
+	 * as by CountReads, so that they don't use up the copies of a position.
+	 * duplicates is a fresh filter for the tile, or null.
+	 */
+	public int[] fill(
+			SAMFileReader reader,
+			String name,
+			int refLength,
+			int extendedLength,
+			int from,
+			int to,
+			int qualityCutoff,
+			DuplicateFilter duplicates) {
+		if (to - from > tileSize) {
+			throw new IllegalArgumentException("Tile of " + (to - from) + " positions exceeds the tile size " + tileSize);
+		}
+		Arrays.fill(depths, 0, to - from + 1, 0);
+
+		ReadFragment fragment = ReadFragment.extendedTo(extendedLength, refLength);
+		int halo = Math.max(0, extendedLength);
+		CloseableIterator<SAMRecord> recs = reader.queryOverlapping(
+				name,
+				Math.max(0, from - halo),
+				Math.min(refLength, to + halo));
+		duplicateCount = 0;
+		while (recs.hasNext()) {
+			SAMRecord rec = recs.next();
+			if (rec.getReadUnmappedFlag() || rec.getMappingQuality() < qualityCutoff) continue;
+			if (duplicates != null && !duplicates.accept(rec)) {
+				/* reads in the halo are queried by the neighbouring tile too, count them once */
+				int readStart = rec.getAlignmentStart() - 1;
+				if (readStart >= from && readStart < to) duplicateCount++;
+				continue;
+			}
+			int start = Math.max(from, fragment.start(rec));
+			int end = Math.min(to, fragment.end(rec));
+			if (start >= end) continue;
+			depths[start - from]++;
+			depths[end - from]--;
+		}
+		recs.close();
+
+		for (int i = 1; i < to - from; i++) {
+			depths[i] += depths[i - 1];
+		}
+		return depths;
+	}
+}
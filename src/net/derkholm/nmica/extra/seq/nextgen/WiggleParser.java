@@ -0,0 +1,273 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.StringTokenizer;
+
+import org.biojava.bio.BioException;
+
+/*
+ * Streaming parser for wiggle (fixedStep / variableStep) and bedGraph files.
+ *
+ * Lines are scanned in a byte buffer: the first byte tells declaration lines
+ * (fixedStep, variableStep, track, browser, #) from data lines, and numbers are
+ * parsed straight from the bytes, so data lines don't allocate. Only declaration
+ * lines and changes of chromosome in bedGraph data create Strings.
+ */
+public class WiggleParser {
+	public static interface Handler {
+		/* called before the values of a chromosome */
+		public void chromosome(String name) throws Exception;
+
+		/* value for the 1-based positions [start, start + span) */
+		public void value(int start, int span, double value) throws Exception;
+	}
+
+	private static enum Mode {
+		BEDGRAPH,
+		FIXED_STEP,
+		VARIABLE_STEP
+	}
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	private final InputStream in;
+	private final Handler handler;
+	private byte[] buf = new byte[1 << 16];
+	private int lineNumber = 0;
+
+	private Mode mode = Mode.BEDGRAPH;
+	private String chrom = null;
+	private int pos, step, span;
+
+	/* field boundaries of the current line, filled in by split() */
+	private final int[] fieldStart = new int[8];
+	private final int[] fieldEnd = new int[8];
+
+	public WiggleParser(InputStream in, Handler handler) {
+		this.in = in;
+		this.handler = handler;
+	}
+
+	public void parse() throws Exception {
+		int len = 0, lineStart = 0;
+		while (true) {
+			int n = in.read(buf, len, buf.length - len);
+			if (n < 0) {
+				if (lineStart < len) line(lineStart, len);
+				break;
+			}
+			len += n;
+
+			int i = lineStart;
+			while (i < len) {
+				if (buf[i] == '\n') {
+					int end = (i > lineStart && buf[i - 1] == '\r') ? i - 1 : i;
+					line(lineStart, end);
+					lineStart = i + 1;
+				}
+				i++;
+			}
+
+			/* keep the incomplete last line at the start of the buffer (growing it for very long lines) */
+			int rest = len - lineStart;
+			if (lineStart == 0 && rest == buf.length) {
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, rest);
+				buf = bigger;
+			} else {
+				System.arraycopy(buf, lineStart, buf, 0, rest);
+			}
+			len = rest;
+			lineStart = 0;
+		}
+	}
+
+	private void line(int from, int to) throws Exception {
+		lineNumber++;
+		if (from >= to) return;
+
+		byte first = buf[from];
+		if (first == '#') return;
+		if (first == 't' && startsWith(from, to, "track")) {
+			mode = Mode.BEDGRAPH;
+			return;
+		}
+		if (first == 'b' && startsWith(from, to, "browser")) return;
+		if (first == 'f' && startsWith(from, to, "fixedStep")) {
+			declaration(Mode.FIXED_STEP, new String(buf, from, to - from, "US-ASCII"));
+			return;
+		}
+		if (first == 'v' && startsWith(from, to, "variableStep")) {
+			declaration(Mode.VARIABLE_STEP, new String(buf, from, to - from, "US-ASCII"));
+			return;
+		}
+
+		if (mode == Mode.FIXED_STEP) {
+			handler.value(pos, span, parseDouble(from, to));
+			pos += step;
+		} else if (mode == Mode.VARIABLE_STEP) {
+			int fields = split(from, to);
+			if (fields < 2) throw error("Expected a position and a value");
+			handler.value(parseInt(fieldStart[0], fieldEnd[0]), span, parseDouble(fieldStart[1], fieldEnd[1]));
+		} else {
+			int fields = split(from, to);
+			if (fields < 4) throw error("Expected a bedGraph line with four fields");
+			if (chrom == null || !sameAs(chrom, fieldStart[0], fieldEnd[0])) {
+				chrom = new String(buf, fieldStart[0], fieldEnd[0] - fieldStart[0], "US-ASCII");
+				handler.chromosome(chrom);
+			}
+			int start = parseInt(fieldStart[1], fieldEnd[1]);
+			int end = parseInt(fieldStart[2], fieldEnd[2]);
+			handler.value(start + 1, end - start, parseDouble(fieldStart[3], fieldEnd[3]));
+		}
+	}
+
+	private void declaration(Mode mode, String line) throws Exception {
+		String newChrom = null;
+		int start = 1;
+		this.step = 1;
+		this.span = 1;
+
+		StringTokenizer tok = new StringTokenizer(line);
+		tok.nextToken();
+		while (tok.hasMoreTokens()) {
+			String field = tok.nextToken();
+			int eq = field.indexOf('=');
+			if (eq < 0) throw error("Invalid declaration field " + field);
+			String key = field.substring(0, eq);
+			String value = field.substring(eq + 1);
+			if (key.equals("chrom")) {
+				newChrom = value;
+			} else if (key.equals("start")) {
+				start = Integer.parseInt(value);
+			} else if (key.equals("step")) {
+				this.step = Integer.parseInt(value);
+			} else if (key.equals("span")) {
+				this.span = Integer.parseInt(value);
+			}
+		}
+		if (newChrom == null) throw error("No chrom in declaration line");
+
+		this.mode = mode;
+		this.pos = start;
+		if (!newChrom.equals(chrom)) {
+			chrom = newChrom;
+			handler.chromosome(chrom);
+		}
+	}
+
+	/* tab or space separated fields */
+	private int split(int from, int to) {
+		int n = 0;
+		int i = from;
+		while (i < to && n < fieldStart.length) {
+			while (i < to && (buf[i] == '\t' || buf[i] == ' ')) i++;
+			if (i >= to) break;
+			fieldStart[n] = i;
+			while (i < to && buf[i] != '\t' && buf[i] != ' ') i++;
+			fieldEnd[n++] = i;
+		}
+		return n;
+	}
+
+	private boolean startsWith(int from, int to, String prefix) {
+		if (to - from < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[from + i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean sameAs(String str, int from, int to) {
+		if (str.length() != to - from) return false;
+		for (int i = 0; i < str.length(); i++) {
+			if (buf[from + i] != str.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private int parseInt(int from, int to) throws BioException {
+		boolean negative = false;
+		int i = from;
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+		if (i >= to) throw error("Invalid integer");
+
+		int value = 0;
+		for (; i < to; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9) throw error("Invalid integer");
+			value = value * 10 + d;
+		}
+		return negative ? -value : value;
+	}
+
+	/*
+	 * Plain decimal numbers with at most 15 significant digits and small exponents
+	 * are computed from the digits as mantissa / 10^k (exact as both fit in a double),
+	 * anything else goes to Double.parseDouble.
+	 */
+	private double parseDouble(int from, int to) throws BioException {
+		while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) to--;
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0, fractionDigits = 0, exponent = 0;
+		boolean seenPoint = false, valid = i < to;
+		for (; i < to; i++) {
+			byte c = buf[i];
+			if (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa > 0) digits++;
+					if (seenPoint) fractionDigits++;
+				} else if (!seenPoint) {
+					exponent++;
+				}
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else if (c == 'e' || c == 'E') {
+				try {
+					exponent += parseInt(i + 1, to);
+				} catch (BioException e) {
+					valid = false;
+				}
+				break;
+			} else {
+				valid = false;
+				break;
+			}
+		}
+
+		int scale = exponent - fractionDigits;
+		if (valid && digits <= 15 && scale >= -22 && scale <= 22) {
+			double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(new String(buf, from, to - from, "US-ASCII"));
+		} catch (NumberFormatException e) {
+			throw error("Invalid number");
+		} catch (IOException e) {
+			throw new BioException(e);
+		}
+	}
+
+	private BioException error(String message) {
+		return new BioException(String.format("%s on line %d", message, lineNumber));
+	}
+}
@@ -0,0 +1,163 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Binned multi-resolution summaries of a per-base track (written with ZoomTrackWriter),
+ * so that views of whole reference sequences read a few bins instead of every position.
+ *
+ * Layout:
+ *   int magic, int version, long index offset,
+ *   for each reference and zoom level the bins as 4 floats (mean, min, max, coverage),
+ *   the index: int ref count and for each reference
+ *   name, length, level count and for each level bin size, bin count, offset.
+ */
+public class ZoomTrack {
+	public static final int MAGIC = 0x4e475a4c; // "NGZL"
+	public static final int VERSION = 1;
+	private static final int FIELDS = 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final List<String> refNames = new ArrayList<String>();
+	private final Map<String, Level[]> levels = new HashMap<String, Level[]>();
+
+	private ZoomTrack(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = file.getChannel();
+
+		if (file.readInt() != MAGIC) {
+			throw new IOException(f.getPath() + " is not a zoom track");
+		}
+		int version = file.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported zoom track version " + version);
+		}
+		file.seek(file.readLong());
+
+		int refCount = file.readInt();
+		for (int r = 0; r < refCount; r++) {
+			String name = file.readUTF();
+			int length = file.readInt();
+			Level[] refLevels = new Level[file.readInt()];
+			for (int l = 0; l < refLevels.length; l++) {
+				refLevels[l] = new Level(length, file.readInt(), file.readInt(), file.readLong());
+			}
+			refNames.add(name);
+			levels.put(name, refLevels);
+		}
+	}
+
+	public static ZoomTrack open(File f) throws IOException {
+		return new ZoomTrack(f);
+	}
+
+	public List<String> getRefNames() {
+		return Collections.unmodifiableList(refNames);
+	}
+
+	public Level[] levels(String refName) {
+		Level[] refLevels = levels.get(refName);
+		if (refLevels == null) {
+			throw new BioError("No summaries for reference sequence " + refName);
+		}
+		return refLevels;
+	}
+
+	/*
+	 * The coarsest level that still gives at least 'bins' bins over [start, end)
+	 * (or the finest level if none does).
+	 */
+	public Level levelFor(String refName, int start, int end, int bins) {
+		Level[] refLevels = levels(refName);
+		Level best = null, finest = null;
+		for (Level level : refLevels) {
+			if (finest == null || level.binSize < finest.binSize) {
+				finest = level;
+			}
+			if ((end - start) / level.binSize >= bins && (best == null || level.binSize > best.binSize)) {
+				best = level;
+			}
+		}
+		return best != null ? best : finest;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	public class Level {
+		private final int refLength;
+		private final int binSize;
+		private final int binCount;
+		private final long offset;
+		private FloatBuffer bins;
+
+		private Level(int refLength, int binSize, int binCount, long offset) {
+			this.refLength = refLength;
+			this.binSize = binSize;
+			this.binCount = binCount;
+			this.offset = offset;
+		}
+
+		public int getBinSize() {
+			return binSize;
+		}
+
+		public int getBinCount() {
+			return binCount;
+		}
+
+		public int binStart(int bin) {
+			return bin * binSize;
+		}
+
+		public int binEnd(int bin) {
+			return Math.min(refLength, (bin + 1) * binSize);
+		}
+
+		public int binAt(int pos) {
+			return pos / binSize;
+		}
+
+		public float mean(int bin) {
+			return bins().get(bin * FIELDS);
+		}
+
+		public float min(int bin) {
+			return bins().get(bin * FIELDS + 1);
+		}
+
+		public float max(int bin) {
+			return bins().get(bin * FIELDS + 2);
+		}
+
+		/* fraction of the positions in the bin with a value */
+		public float coverage(int bin) {
+			return bins().get(bin * FIELDS + 3);
+		}
+
+		private synchronized FloatBuffer bins() {
+			if (bins == null) {
+				try {
+					bins = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * FIELDS * binCount).asFloatBuffer();
+				} catch (IOException e) {
+					throw new BioError(e);
+				}
+			}
+			return bins;
+		}
+	}
+}
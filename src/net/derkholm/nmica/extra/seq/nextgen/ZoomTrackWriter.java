@@ -0,0 +1,201 @@
+package net.derkholm.nmica.extra.seq.nextgen;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.biojava.bio.BioError;
+
+/*
+ * Writes the binned summaries read by ZoomTrack.
+ *
+ * Values of a reference sequence are given to the Reference returned by beginReference()
+ * in increasing position order, either per position (add) or as runs of equal value (addRun).
+ * Each zoom level keeps only the bin currently being filled, finished bins are streamed
+ * to a temporary file per level and copied into the track when the reference is ended.
+ * Several references can be filled concurrently (one thread per reference).
+ */
+public class ZoomTrackWriter {
+	public static final int[] DEFAULT_BIN_SIZES = {10, 100, 1000, 10000};
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int[] binSizes;
+	private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	private final DataOutputStream index = new DataOutputStream(indexBytes);
+	private int refCount = 0;
+
+	public ZoomTrackWriter(File f, int[] binSizes) throws IOException {
+		this.file = new RandomAccessFile(f, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+		this.binSizes = binSizes.clone();
+
+		file.writeInt(ZoomTrack.MAGIC);
+		file.writeInt(ZoomTrack.VERSION);
+		file.writeLong(0L);
+	}
+
+	public Reference beginReference(String name, int length) throws IOException {
+		return new Reference(name, length);
+	}
+
+	private synchronized void write(Reference ref) throws IOException {
+		index.writeUTF(ref.name);
+		index.writeInt(ref.length);
+		index.writeInt(ref.levels.length);
+		for (Level level : ref.levels) {
+			index.writeInt(level.binSize);
+			index.writeInt(level.binCount);
+			index.writeLong(channel.position());
+			level.copyTo(channel);
+		}
+		refCount++;
+	}
+
+	public synchronized void close() throws IOException {
+		long indexOffset = channel.position();
+		index.flush();
+
+		ByteBuffer count = ByteBuffer.allocate(4);
+		count.putInt(refCount);
+		count.flip();
+		channel.write(count);
+		channel.write(ByteBuffer.wrap(indexBytes.toByteArray()));
+
+		ByteBuffer offset = ByteBuffer.allocate(8);
+		offset.putLong(indexOffset);
+		offset.flip();
+		channel.write(offset, 8);
+
+		channel.close();
+		file.close();
+	}
+
+	public class Reference {
+		private final String name;
+		private final int length;
+		private final Level[] levels;
+
+		private Reference(String name, int length) throws IOException {
+			this.name = name;
+			this.length = length;
+			this.levels = new Level[binSizes.length];
+			for (int l = 0; l < binSizes.length; l++) {
+				levels[l] = new Level(binSizes[l], length);
+			}
+		}
+
+		/* value at a single (0-based) position */
+		public void add(int pos, double value) throws IOException {
+			addRun(pos, pos + 1, value);
+		}
+
+		/* the same value at positions [start, end) */
+		public void addRun(int start, int end, double value) throws IOException {
+			end = Math.min(end, length);
+			for (Level level : levels) {
+				level.add(start, end, value);
+			}
+		}
+
+		/* finishes the bins and appends them to the track */
+		public void end() throws IOException {
+			for (Level level : levels) {
+				level.finish();
+			}
+			write(this);
+		}
+	}
+
+	/* bins of one zoom level: mean, min, max (of the positions with a value) and the fraction of positions with a value */
+	private static class Level {
+		final int binSize;
+		final int binCount;
+		final int refLength;
+		final File tmp;
+		final DataOutputStream out;
+
+		int bin = 0;
+		long covered = 0;
+		double sum = 0.0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		Level(int binSize, int refLength) throws IOException {
+			this.binSize = binSize;
+			this.binCount = (refLength + binSize - 1) / binSize;
+			this.refLength = refLength;
+			this.tmp = File.createTempFile("zoom", ".bin");
+			this.tmp.deleteOnExit();
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		}
+
+		void add(int start, int end, double value) throws IOException {
+			while (start < end) {
+				int b = start / binSize;
+				if (b < bin) {
+					throw new BioError("Values need to be added in increasing position order");
+				}
+				advanceTo(b);
+
+				int n = Math.min(end, (b + 1) * binSize) - start;
+				covered += n;
+				sum += value * n;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				start += n;
+			}
+		}
+
+		private void advanceTo(int b) throws IOException {
+			while (bin < b) {
+				writeBin();
+			}
+		}
+
+		private void writeBin() throws IOException {
+			if (covered > 0) {
+				out.writeFloat((float) (sum / covered));
+				out.writeFloat((float) min);
+				out.writeFloat((float) max);
+			} else {
+				out.writeFloat(0.0f);
+				out.writeFloat(0.0f);
+				out.writeFloat(0.0f);
+			}
+			int size = Math.min(binSize, refLength - bin * binSize);
+			out.writeFloat((float) covered / size);
+
+			bin++;
+			covered = 0;
+			sum = 0.0;
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+		}
+
+		void finish() throws IOException {
+			advanceTo(binCount);
+			out.close();
+		}
+
+		void copyTo(FileChannel channel) throws IOException {
+			FileChannel in = new RandomAccessFile(tmp, "r").getChannel();
+			try {
+				long pos = 0, size = in.size();
+				while (pos < size) {
+					pos += in.transferTo(pos, size - pos, channel);
+				}
+			} finally {
+				in.close();
+				tmp.delete();
+			}
+		}
+	}
+}